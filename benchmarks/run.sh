@@ -0,0 +1,9 @@
+#!/bin/sh
+# Builds the benchmark jar and writes JMH results to benchmarks/results/<commit>.json.
+# Extra arguments are passed to JMH, e.g. ./benchmarks/run.sh HashBenchmark -f 2
+set -e
+cd "$(dirname "$0")/.."
+mvn -B -q package -DskipTests
+mkdir -p benchmarks/results
+rev=$(git rev-parse --short HEAD 2>/dev/null || echo local)
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/$rev.json" "$@"
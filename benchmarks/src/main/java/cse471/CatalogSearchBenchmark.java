@@ -0,0 +1,60 @@
+package cse471;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogSearchBenchmark {
+
+    private static final int PROVIDERS = 1000;
+    private static final String[] GENRES = {"drama", "comedy", "action", "documentary", "concert", "lecture"};
+    private static final String[] WORDS = {"river", "summer", "night", "city", "ocean", "winter", "garden", "signal"};
+
+    @Param({"100000"})
+    public int titles;
+
+    @Param({"04217", "comedy", "mp4"})
+    public String query;
+
+    private RemoteCatalog catalog;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        catalog = new RemoteCatalog(Long.MAX_VALUE / 2);
+        int perProvider = (titles + PROVIDERS - 1) / PROVIDERS;
+        for (int p = 0; p < PROVIDERS; p++) {
+            List<String> entries = new ArrayList<>();
+            for (int i = p * perProvider; i < Math.min(titles, (p + 1) * perProvider); i++) {
+                String name = GENRES[i % GENRES.length] + " " + WORDS[i / GENRES.length % WORDS.length] + " "
+                        + String.format(Locale.ROOT, "%05d", i) + ".mp4";
+                entries.add(String.format(Locale.ROOT, "%064x", i) + ":" + name + ":" + (1L << 30) + ":256");
+            }
+            catalog.addEntries("10.0." + (p / 250) + "." + (p % 250 + 1), entries);
+        }
+    }
+
+    @Benchmark
+    public List<RemoteCatalog.Row> search() {
+        return catalog.search(query, null);
+    }
+}
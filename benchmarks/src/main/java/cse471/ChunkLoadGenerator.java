@@ -0,0 +1,217 @@
+package cse471;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class ChunkLoadGenerator {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int REPLY_BUSY = -2;
+    private static final long MAX_LATENCY_NS = 60_000_000_000L;
+
+    private final String host;
+    private final int port;
+    private final String fileHash;
+    private final int chunks;
+    private final int concurrency;
+    private final double rate;
+    private final long durationNs;
+    private final long warmupNs;
+    private final String pattern;
+    private final double[] zipfCdf;
+
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final AtomicLong ok = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final List<Worker> workers = new ArrayList<>();
+    private long startNs;
+
+    private class Worker extends Thread {
+        final Histogram response = new Histogram(MAX_LATENCY_NS, 3);
+        final Histogram service = new Histogram(MAX_LATENCY_NS, 3);
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        int cursor;
+
+        Worker(int id) {
+            super("LoadGen-" + id);
+            this.cursor = ThreadLocalRandom.current().nextInt(chunks);
+        }
+
+        @Override
+        public void run() {
+            long endNs = startNs + warmupNs + durationNs;
+            while (true) {
+                long intended;
+                if (rate > 0) {
+                    long seq = nextRequest.getAndIncrement();
+                    intended = startNs + (long) (seq * 1e9 / rate);
+                    if (intended >= endNs) return;
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                } else {
+                    intended = System.nanoTime();
+                    if (intended >= endNs) return;
+                }
+
+                long sent = System.nanoTime();
+                int result = request(nextChunk());
+                long done = System.nanoTime();
+                if (intended < startNs + warmupNs) continue;
+
+                if (result > 0) {
+                    ok.incrementAndGet();
+                    bytes.addAndGet(result);
+                } else if (result == REPLY_BUSY) {
+                    busy.incrementAndGet();
+                } else if (result == Integer.MIN_VALUE) {
+                    errors.incrementAndGet();
+                } else {
+                    missing.incrementAndGet();
+                }
+                response.recordValue(Math.min(MAX_LATENCY_NS, done - intended));
+                service.recordValue(Math.min(MAX_LATENCY_NS, done - sent));
+            }
+        }
+
+        private int nextChunk() {
+            switch (pattern) {
+                case "zipf":
+                    double u = ThreadLocalRandom.current().nextDouble();
+                    int lo = 0, hi = chunks - 1;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (zipfCdf[mid] < u) lo = mid + 1;
+                        else hi = mid;
+                    }
+                    return lo;
+                case "random":
+                    return ThreadLocalRandom.current().nextInt(chunks);
+                default:
+                    int idx = cursor;
+                    cursor = (cursor + 1) % chunks;
+                    return idx;
+            }
+        }
+
+        private int request(int chunkIndex) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 5000);
+                socket.setSoTimeout(30000);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeUTF(fileHash);
+                out.writeInt(chunkIndex);
+                out.flush();
+                int len = in.readInt();
+                if (len > 0) in.readFully(buffer, 0, len);
+                return len;
+            } catch (IOException e) {
+                return Integer.MIN_VALUE;
+            }
+        }
+    }
+
+    public ChunkLoadGenerator(Map<String, String> opts) throws IOException {
+        this.host = opts.getOrDefault("host", "127.0.0.1");
+        this.port = Integer.parseInt(opts.getOrDefault("port", "8889"));
+        this.concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "16"));
+        this.rate = Double.parseDouble(opts.getOrDefault("rate", "0"));
+        this.durationNs = Long.parseLong(opts.getOrDefault("durationSec", "30")) * 1_000_000_000L;
+        this.warmupNs = Long.parseLong(opts.getOrDefault("warmupSec", "5")) * 1_000_000_000L;
+        this.pattern = opts.getOrDefault("pattern", "sequential");
+
+        String file = opts.get("file");
+        if (file != null) {
+            File f = new File(file);
+            this.fileHash = FileChecksum.getFileHash(f);
+            this.chunks = (int) Math.max(1, (f.length() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        } else {
+            this.fileHash = opts.get("hash");
+            if (fileHash == null) throw new IllegalArgumentException("Either file=<path> or hash=<sha256> is required");
+            long size = Long.parseLong(opts.getOrDefault("size", "0"));
+            this.chunks = size > 0 ? (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                    : Integer.parseInt(opts.getOrDefault("chunks", "64"));
+        }
+        this.zipfCdf = zipfCdf(chunks, Double.parseDouble(opts.getOrDefault("zipfS", "1.0")));
+    }
+
+    public void run() throws InterruptedException {
+        startNs = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Worker w = new Worker(i);
+            workers.add(w);
+            w.start();
+        }
+        for (Worker w : workers) w.join();
+    }
+
+    public void printReport(PrintStream out) {
+        Histogram response = new Histogram(MAX_LATENCY_NS, 3);
+        Histogram service = new Histogram(MAX_LATENCY_NS, 3);
+        for (Worker w : workers) {
+            response.add(w.response);
+            service.add(w.service);
+        }
+        double seconds = durationNs / 1e9;
+
+        out.println("Target: " + host + ":" + port + " hash=" + fileHash + " chunks=" + chunks);
+        out.println("Pattern: " + pattern + ", concurrency=" + concurrency +
+                (rate > 0 ? ", open loop at " + rate + " req/s" : ", closed loop"));
+        out.printf("Requests: ok=%d busy=%d missing=%d errors=%d%n", ok.get(), busy.get(), missing.get(), errors.get());
+        out.printf("Throughput: %.1f req/s, %.1f MB/s%n", ok.get() / seconds, bytes.get() / seconds / (1024 * 1024));
+        printHistogram(out, rate > 0 ? "Response time (from intended start)" : "Response time", response);
+        printHistogram(out, "Service time (from actual send)", service);
+    }
+
+    private static void printHistogram(PrintStream out, String title, Histogram h) {
+        out.println(title + " (ms):");
+        if (h.getTotalCount() == 0) {
+            out.println("  no samples");
+            return;
+        }
+        out.printf("  p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f mean=%.3f%n",
+                h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6,
+                h.getValueAtPercentile(99) / 1e6, h.getValueAtPercentile(99.9) / 1e6,
+                h.getMaxValue() / 1e6, h.getMean() / 1e6);
+    }
+
+    private static double[] zipfCdf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) cdf[i] /= sum;
+        return cdf;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        ChunkLoadGenerator gen = new ChunkLoadGenerator(opts);
+        gen.run();
+        gen.printReport(System.out);
+    }
+}
@@ -0,0 +1,94 @@
+package cse471;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkServeBenchmark {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int CHUNKS = 64;
+
+    @Param({"0", "64"})
+    public int chunkCacheMb;
+
+    private File root;
+    private FileChunkServer server;
+    private String fileHash;
+    private int port;
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("chunk-serve-bench").toFile();
+        File video = new File(root, "bench.mp4");
+        Random random = new Random(1);
+        byte[] block = new byte[CHUNK_SIZE];
+        try (OutputStream out = new FileOutputStream(video)) {
+            for (int i = 0; i < CHUNKS; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        fileHash = FileChecksum.getFileHash(video);
+
+        PeerConfig config = new PeerConfig();
+        config.setBindAddress("127.0.0.1");
+        config.setTcpPort(0);
+        config.setChunkCacheMb(chunkCacheMb);
+        server = new FileChunkServer(root, config);
+        server.start();
+        while ((port = server.getLocalPort()) < 0) Thread.sleep(10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        for (File f : root.listFiles()) f.delete();
+        root.delete();
+    }
+
+    @Benchmark
+    public int serveChunk() throws IOException {
+        int idx = next;
+        next = (next + 1) % CHUNKS;
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF(fileHash);
+            out.writeInt(idx);
+            out.flush();
+            int len = in.readInt();
+            if (len > 0) in.readFully(buffer, 0, len);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package cse471;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = ChunkWriteBenchmark.CHUNKS_PER_THREAD)
+@Measurement(iterations = 5, batchSize = ChunkWriteBenchmark.CHUNKS_PER_THREAD)
+@Threads(ChunkWriteBenchmark.THREADS)
+@Fork(1)
+public class ChunkWriteBenchmark {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int FIRST_UNVERIFIED_CHUNK = 3;
+    static final int THREADS = 4;
+    static final int CHUNKS_PER_THREAD = 1024;
+    private static final int CHUNKS = FIRST_UNVERIFIED_CHUNK + THREADS * CHUNKS_PER_THREAD;
+
+    private File dir;
+    private StreamManager stream;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        dir = Files.createTempDirectory("chunk-write-bench").toFile();
+        data = new byte[CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        stream = new StreamManager("bench.bin", "bench", (long) CHUNKS * CHUNK_SIZE, dir.getAbsolutePath(),
+                List.of("127.0.0.1"), new PeerConfig());
+        nextChunk.set(FIRST_UNVERIFIED_CHUNK);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        stream.close();
+        new File(dir, "bench.bin").delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        dir.delete();
+    }
+
+    @Benchmark
+    public void saveChunk() throws IOException {
+        int idx = nextChunk.getAndIncrement();
+        if (idx >= CHUNKS) throw new IllegalStateException("Chunk index wrapped");
+        stream.saveChunk(idx, data, "127.0.0.1");
+    }
+}
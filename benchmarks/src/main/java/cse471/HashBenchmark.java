@@ -0,0 +1,68 @@
+package cse471;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"16", "64"})
+    public int fileMb;
+
+    private File file;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("hash-bench", ".bin");
+        Random random = new Random(1);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < fileMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        chunk = new byte[256 * 1024];
+        random.nextBytes(chunk);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String fileChecksum() throws IOException {
+        return FileChecksum.getFileHash(file);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String chunkSha256Hex() {
+        return StreamManager.sha256Hex(chunk);
+    }
+}
@@ -0,0 +1,92 @@
+package cse471;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketDecodeBenchmark {
+
+    private static final byte TYPE_STATUS = 0x03;
+    private static final int UNIQUE_PACKETS = 1 << 16;
+
+    private P2PNetworkManager manager;
+    private DatagramPacket[] unique;
+    private DatagramPacket duplicate;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        PeerConfig config = new PeerConfig();
+        config.setBindAddress("127.0.0.1");
+        config.setUdpPort(0);
+        config.setBootstrapPeers(List.of());
+        manager = new P2PNetworkManager(new P2PNetworkManager.PeerDiscoveryListener() {
+            @Override
+            public void onPeerDiscovered(String peerIP, List<String> filesData) {}
+            @Override
+            public void onStatusReceived(String peerIP, String fileHash, String filename, String progress, String state) {}
+            @Override
+            public void onProvidersDiscovered(String fileHash, List<String> peerIPs) {}
+            @Override
+            public void onFilesRemoved(String peerIP, List<String> filesData) {}
+        }, config);
+        manager.start();
+
+        InetAddress sender = InetAddress.getByName("127.0.0.2");
+        byte[] status = "movie.mp4|42%|Streaming".getBytes(StandardCharsets.UTF_8);
+        unique = new DatagramPacket[UNIQUE_PACKETS];
+        for (int i = 0; i < UNIQUE_PACKETS; i++) {
+            unique[i] = packet(sender, BroadcastTree.encodeGossip(TYPE_STATUS, "bench-peer:" + i, "", status));
+        }
+        duplicate = unique[0];
+        manager.processPacket(duplicate);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.stop();
+    }
+
+    @Benchmark
+    public void gossipUnique() {
+        manager.processPacket(unique[next]);
+        next = (next + 1) & (UNIQUE_PACKETS - 1);
+    }
+
+    @Benchmark
+    public void gossipDuplicate() {
+        manager.processPacket(duplicate);
+    }
+
+    private static DatagramPacket packet(InetAddress sender, byte[] payload) {
+        byte[] id = "bench-peer".getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[4 + id.length + payload.length];
+        buffer[1] = 5;
+        buffer[2] = BroadcastTree.TYPE_GOSSIP;
+        buffer[3] = (byte) id.length;
+        System.arraycopy(id, 0, buffer, 4, id.length);
+        System.arraycopy(payload, 0, buffer, 4 + id.length, payload.length);
+        return new DatagramPacket(buffer, buffer.length, sender, 9);
+    }
+}
@@ -0,0 +1,100 @@
+package cse471;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+@SuppressWarnings("serial")
+public class ActiveStreamsTableModel extends AbstractTableModel {
+
+    private static final String[] COLUMNS = {"Video", "Source Peer", "Progress %", "Status"};
+
+    private static class Row {
+        final String key;
+        final Object[] cells = new Object[COLUMNS.length];
+        long lastUpdate;
+
+        Row(String key) {
+            this.key = key;
+        }
+    }
+
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        return rows.get(rowIndex).cells[columnIndex];
+    }
+
+    public void upsert(String key, String video, String source, String progress, String status, long now) {
+        Integer i = index.get(key);
+        if (i == null) {
+            Row row = new Row(key);
+            row.cells[0] = video;
+            row.cells[1] = source;
+            row.cells[2] = progress;
+            row.cells[3] = status;
+            row.lastUpdate = now;
+            rows.add(row);
+            index.put(key, rows.size() - 1);
+            fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+            return;
+        }
+
+        Row row = rows.get(i);
+        row.lastUpdate = now;
+        setCell(row, i, 0, video);
+        setCell(row, i, 1, source);
+        setCell(row, i, 2, progress);
+        setCell(row, i, 3, status);
+    }
+
+    public void remove(String key) {
+        Integer i = index.get(key);
+        if (i == null) return;
+        rows.remove((int) i);
+        reindexFrom(i);
+        fireTableRowsDeleted(i, i);
+    }
+
+    public void removeOlderThan(long cutoff, String keepKey) {
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            Row row = rows.get(i);
+            if (row.lastUpdate < cutoff && !row.key.equals(keepKey)) {
+                rows.remove(i);
+                reindexFrom(i);
+                fireTableRowsDeleted(i, i);
+            }
+        }
+    }
+
+    private void setCell(Row row, int rowIndex, int column, Object value) {
+        if (Objects.equals(row.cells[column], value)) return;
+        row.cells[column] = value;
+        fireTableCellUpdated(rowIndex, column);
+    }
+
+    private void reindexFrom(int start) {
+        index.values().removeIf(v -> v >= start);
+        for (int j = start; j < rows.size(); j++) index.put(rows.get(j).key, j);
+    }
+}
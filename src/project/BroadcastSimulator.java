@@ -0,0 +1,231 @@
+package cse471;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+public class BroadcastSimulator {
+
+    private static final byte TYPE_ANNOUNCE = 0x02;
+    private static final int FLOOD_TTL = 5;
+    private static final long TICK_MS = 10;
+    private static final long SETTLE_MS = 1000;
+
+    private static class Event implements Comparable<Event> {
+        final long at;
+        final long seq;
+        final String from;
+        final String to;
+        final byte type;
+        final byte[] payload;
+
+        Event(long at, long seq, String from, String to, byte type, byte[] payload) {
+            this.at = at;
+            this.seq = seq;
+            this.from = from;
+            this.to = to;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return at != o.at ? Long.compare(at, o.at) : Long.compare(seq, o.seq);
+        }
+    }
+
+    private static class Result {
+        long broadcasts;
+        long complete;
+        final long[] sent = new long[16];
+
+        long total() {
+            long sum = 0;
+            for (long n : sent) sum += n;
+            return sum;
+        }
+    }
+
+    private final Map<String, String> opts;
+    private final Random random;
+    private final List<String> nodes = new ArrayList<>();
+    private final Map<String, Integer> latencies = new HashMap<>();
+    private final Map<String, BroadcastTree> trees = new HashMap<>();
+    private final Set<String> dead = new HashSet<>();
+    private final Set<String> delivered = new HashSet<>();
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private Result counting;
+    private long now;
+    private long seq;
+
+    public BroadcastSimulator(Map<String, String> opts) {
+        this.opts = opts;
+        this.random = new Random(intOpt("randomSeed", 1));
+        int peers = intOpt("peers", 50);
+        for (int i = 0; i < peers; i++) nodes.add("10.0." + (i / 250) + "." + (i % 250 + 1));
+    }
+
+    public void run(PrintStream out) {
+        int broadcasts = intOpt("broadcasts", 50);
+        int warmup = intOpt("warmup", 20);
+        int view = intOpt("view", 6);
+        double deadFraction = Double.parseDouble(opts.getOrDefault("dead", "0"));
+
+        for (String id : nodes) {
+            trees.put(id, new BroadcastTree(id, view, new BroadcastTree.Link() {
+                @Override
+                public void send(String peer, byte type, byte[] payload) {
+                    transmit(id, peer, type, payload);
+                }
+
+                @Override
+                public void deliver(String originAddr, byte innerType, byte[] payload) {
+                    delivered.add(id);
+                }
+            }));
+        }
+        for (String id : nodes) refill(id, view);
+
+        runTree(warmup, null);
+        if (deadFraction > 0) {
+            List<String> shuffled = new ArrayList<>(nodes);
+            Collections.shuffle(shuffled, random);
+            dead.addAll(shuffled.subList(0, (int) Math.round(nodes.size() * deadFraction)));
+            for (String id : nodes) {
+                if (dead.contains(id) || "false".equals(opts.get("detectDead"))) continue;
+                for (String peer : trees.get(id).getNeighbors()) {
+                    if (dead.contains(peer)) trees.get(id).neighborDown(peer);
+                }
+                refill(id, view);
+            }
+            runTree(warmup, null);
+        }
+
+        Result tree = new Result();
+        runTree(broadcasts, tree);
+        Result flood = runFlood(broadcasts);
+
+        out.printf("peers=%d dead=%d view=%d broadcasts=%d (after %d warm-up)%n",
+                nodes.size(), dead.size(), view, broadcasts, warmup);
+        out.printf("%-22s %12s %10s %8s %8s %8s %10s%n", "", "datagrams/bc", "payload", "ihave", "graft", "prune", "complete");
+        out.printf("%-22s %12.1f %10.1f %8s %8s %8s %10s%n", "flood (TTL " + FLOOD_TTL + ")",
+                perBroadcast(flood.total(), flood), perBroadcast(flood.total(), flood), "-", "-", "-",
+                flood.complete + "/" + flood.broadcasts);
+        out.printf("%-22s %12.1f %10.1f %8.1f %8.1f %8.1f %10s%n", "plumtree",
+                perBroadcast(tree.total(), tree), perBroadcast(tree.sent[BroadcastTree.TYPE_GOSSIP], tree),
+                perBroadcast(tree.sent[BroadcastTree.TYPE_IHAVE], tree), perBroadcast(tree.sent[BroadcastTree.TYPE_GRAFT], tree),
+                perBroadcast(tree.sent[BroadcastTree.TYPE_PRUNE], tree), tree.complete + "/" + tree.broadcasts);
+        out.printf("Reduction per broadcast: %.1fx%n", (double) flood.total() / Math.max(1, tree.total()));
+    }
+
+    private void runTree(int broadcasts, Result result) {
+        counting = result;
+        for (int b = 0; b < broadcasts; b++) {
+            String origin = randomLiveNode();
+            delivered.clear();
+            trees.get(origin).broadcast(TYPE_ANNOUNCE, new byte[100]);
+            long idleSince = now;
+            while (!queue.isEmpty() || now - idleSince < SETTLE_MS) {
+                now += TICK_MS;
+                while (!queue.isEmpty() && queue.peek().at <= now) {
+                    Event e = queue.poll();
+                    trees.get(e.to).onMessage(e.from, e.type, e.payload, now);
+                    idleSince = now;
+                }
+                for (String id : nodes) {
+                    if (!dead.contains(id)) trees.get(id).tick(now);
+                }
+            }
+            if (result != null) {
+                result.broadcasts++;
+                if (delivered.size() == nodes.size() - dead.size() - 1) result.complete++;
+            }
+        }
+        counting = null;
+    }
+
+    // The pre-tree flood: every node forwards the first copy it sees to all known
+    // peers except the sender, and repeats are dropped by the seen set. Subnet
+    // broadcast datagrams are not counted. An event's type field carries its remaining TTL.
+    private Result runFlood(int broadcasts) {
+        Result result = new Result();
+        for (int b = 0; b < broadcasts; b++) {
+            String origin = randomLiveNode();
+            Set<String> seen = new HashSet<>();
+            seen.add(origin);
+            PriorityQueue<Event> pending = new PriorityQueue<>();
+            long sent = 0;
+            for (String peer : nodes) {
+                if (peer.equals(origin)) continue;
+                pending.add(new Event(latency(origin, peer), seq++, origin, peer, (byte) FLOOD_TTL, null));
+                sent++;
+            }
+            while (!pending.isEmpty()) {
+                Event e = pending.poll();
+                if (dead.contains(e.to) || !seen.add(e.to) || e.type == 0) continue;
+                for (String peer : nodes) {
+                    if (peer.equals(e.to) || peer.equals(e.from)) continue;
+                    pending.add(new Event(e.at + latency(e.to, peer), seq++, e.to, peer, (byte) (e.type - 1), null));
+                    sent++;
+                }
+            }
+            result.sent[TYPE_ANNOUNCE] += sent;
+            result.broadcasts++;
+            if (seen.size() == nodes.size() - dead.size()) result.complete++;
+        }
+        return result;
+    }
+
+    private void transmit(String from, String to, byte type, byte[] payload) {
+        if (dead.contains(from)) return;
+        if (counting != null) counting.sent[type]++;
+        if (dead.contains(to)) return;
+        queue.add(new Event(now + latency(from, to), seq++, from, to, type, payload));
+    }
+
+    private void refill(String id, int view) {
+        BroadcastTree tree = trees.get(id);
+        List<String> candidates = new ArrayList<>(nodes);
+        Collections.shuffle(candidates, random);
+        for (String peer : candidates) {
+            if (tree.getNeighbors().size() >= view) break;
+            if (!peer.equals(id) && !dead.contains(peer)) tree.neighborUp(peer);
+        }
+    }
+
+    private int latency(String from, String to) {
+        return latencies.computeIfAbsent(from + ">" + to, k -> 1 + random.nextInt(20));
+    }
+
+    private String randomLiveNode() {
+        while (true) {
+            String id = nodes.get(random.nextInt(nodes.size()));
+            if (!dead.contains(id)) return id;
+        }
+    }
+
+    private static double perBroadcast(long count, Result r) {
+        return r.broadcasts == 0 ? 0 : (double) count / r.broadcasts;
+    }
+
+    private int intOpt(String key, int def) {
+        String v = opts.get(key);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new BroadcastSimulator(opts).run(System.out);
+    }
+}
@@ -0,0 +1,312 @@
+package cse471;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class BroadcastTree {
+
+    static final byte TYPE_GOSSIP = 0x06;
+    static final byte TYPE_IHAVE  = 0x07;
+    static final byte TYPE_GRAFT  = 0x08;
+    static final byte TYPE_PRUNE  = 0x09;
+
+    private static final long IHAVE_TIMEOUT_MS = 500;
+    private static final long GRAFT_TIMEOUT_MS = 250;
+    private static final long IHAVE_FLUSH_MS = 100;
+    private static final int MAX_IHAVE_PER_PACKET = 48;
+    private static final int MAX_RECEIVED = 4096;
+
+    public interface Link {
+        void send(String peer, byte type, byte[] payload);
+        void deliver(String originAddr, byte innerType, byte[] payload);
+    }
+
+    private static class Delivery {
+        final String originAddr;
+        final byte innerType;
+        final byte[] payload;
+
+        Delivery(String originAddr, byte innerType, byte[] payload) {
+            this.originAddr = originAddr;
+            this.innerType = innerType;
+            this.payload = payload;
+        }
+    }
+
+    private static class Missing {
+        final ArrayDeque<String> sources = new ArrayDeque<>();
+        long deadline;
+    }
+
+    private final String myId;
+    private final int fanout;
+    private final Link link;
+    private long nextSeq = 0;
+    private long lastIHaveFlush = 0;
+    private MetricsRegistry.Counter duplicateCounter;
+
+    private final Set<String> eagerPeers = new LinkedHashSet<>();
+    private final Set<String> lazyPeers = new LinkedHashSet<>();
+    private final Map<String, Missing> missing = new HashMap<>();
+    private final Map<String, List<String>> pendingIHave = new HashMap<>();
+
+    private final Map<String, byte[]> received = new LinkedHashMap<String, byte[]>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_RECEIVED;
+        }
+    };
+
+    public BroadcastTree(String myId, int fanout, Link link) {
+        this.myId = myId;
+        this.fanout = fanout;
+        this.link = link;
+    }
+
+    public void setDuplicateCounter(MetricsRegistry.Counter duplicateCounter) {
+        this.duplicateCounter = duplicateCounter;
+    }
+
+    public synchronized void neighborUp(String peer) {
+        if (isNeighbor(peer)) return;
+        if (eagerPeers.size() < fanout && hasRoom()) {
+            eagerPeers.add(peer);
+            link.send(peer, TYPE_GRAFT, new byte[0]);
+        } else {
+            makeLazy(peer);
+        }
+    }
+
+    public synchronized void neighborDown(String peer) {
+        eagerPeers.remove(peer);
+        lazyPeers.remove(peer);
+        pendingIHave.remove(peer);
+        for (Missing m : missing.values()) {
+            m.sources.remove(peer);
+        }
+    }
+
+    public synchronized boolean isNeighbor(String peer) {
+        return eagerPeers.contains(peer) || lazyPeers.contains(peer);
+    }
+
+    public synchronized List<String> getNeighbors() {
+        List<String> all = new ArrayList<>(eagerPeers);
+        all.addAll(lazyPeers);
+        return all;
+    }
+
+    public synchronized int getEagerCount() { return eagerPeers.size(); }
+
+    public synchronized void broadcast(byte innerType, byte[] data) {
+        String msgId = myId + ":" + (nextSeq++);
+        byte[] frame = encodeGossip(innerType, msgId, "", data);
+        received.put(msgId, frame);
+        push(msgId, frame, null);
+    }
+
+    public void onMessage(String from, byte type, byte[] payload, long now) {
+        Delivery delivery = null;
+        synchronized (this) {
+            switch (type) {
+                case TYPE_GOSSIP: delivery = onGossip(from, payload); break;
+                case TYPE_IHAVE:  onIHave(from, payload, now); break;
+                case TYPE_GRAFT:  onGraft(from, payload); break;
+                case TYPE_PRUNE:  onPrune(from); break;
+                default: break;
+            }
+        }
+        if (delivery != null) link.deliver(delivery.originAddr, delivery.innerType, delivery.payload);
+    }
+
+    public synchronized void tick(long now) {
+        Iterator<Map.Entry<String, Missing>> it = missing.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Missing> e = it.next();
+            Missing m = e.getValue();
+            if (m.deadline > now) continue;
+
+            String source = m.sources.poll();
+            while (source != null && !makeEager(source)) source = m.sources.poll();
+            if (source == null) {
+                it.remove();
+                continue;
+            }
+            link.send(source, TYPE_GRAFT, encodeId(e.getKey()));
+            m.deadline = now + GRAFT_TIMEOUT_MS;
+        }
+
+        if (now - lastIHaveFlush >= IHAVE_FLUSH_MS) {
+            flushIHave();
+            lastIHaveFlush = now;
+        }
+    }
+
+    private Delivery onGossip(String from, byte[] frame) {
+        String msgId = readGossipId(frame);
+        if (msgId == null) return null;
+
+        if (received.containsKey(msgId)) {
+            if (duplicateCounter != null) duplicateCounter.inc();
+            makeLazy(from);
+            link.send(from, TYPE_PRUNE, new byte[0]);
+            return null;
+        }
+
+        String originAddr = readGossipOrigin(frame);
+        if (originAddr.isEmpty()) {
+            originAddr = from;
+            frame = encodeGossip(frame[0], msgId, from, readGossipData(frame));
+        }
+
+        received.put(msgId, frame);
+        missing.remove(msgId);
+        if (!makeEager(from)) link.send(from, TYPE_PRUNE, new byte[0]);
+
+        push(msgId, frame, from);
+        return new Delivery(originAddr, frame[0], readGossipData(frame));
+    }
+
+    private void onIHave(String from, byte[] payload, long now) {
+        if (!isNeighbor(from) && !makeLazy(from)) return;
+
+        int pos = 0;
+        while (pos < payload.length) {
+            int len = payload[pos] & 0xFF;
+            if (pos + 1 + len > payload.length) return;
+            String msgId = new String(payload, pos + 1, len, StandardCharsets.UTF_8);
+            pos += 1 + len;
+
+            if (received.containsKey(msgId)) continue;
+            Missing m = missing.get(msgId);
+            if (m == null) {
+                m = new Missing();
+                m.deadline = now + IHAVE_TIMEOUT_MS;
+                missing.put(msgId, m);
+            }
+            if (!m.sources.contains(from)) m.sources.add(from);
+        }
+    }
+
+    private void onGraft(String from, byte[] payload) {
+        if (!makeEager(from)) link.send(from, TYPE_PRUNE, new byte[0]);
+        if (payload.length == 0) return;
+
+        int len = payload[0] & 0xFF;
+        if (1 + len > payload.length) return;
+        String msgId = new String(payload, 1, len, StandardCharsets.UTF_8);
+        byte[] frame = received.get(msgId);
+        if (frame != null) link.send(from, TYPE_GOSSIP, frame);
+    }
+
+    private void onPrune(String from) {
+        makeLazy(from);
+    }
+
+    // The view (eager plus lazy) is capped at twice the fanout, which leaves room for
+    // links other nodes opened to us. A peer already in the view only moves between
+    // the two sets and is never dropped here; a newcomer is refused once it is full.
+    private boolean makeEager(String peer) {
+        if (eagerPeers.contains(peer)) return true;
+        if (!lazyPeers.remove(peer) && !hasRoom()) return false;
+        eagerPeers.add(peer);
+        return true;
+    }
+
+    private boolean makeLazy(String peer) {
+        if (lazyPeers.contains(peer)) return true;
+        if (!eagerPeers.remove(peer) && !hasRoom()) return false;
+        lazyPeers.add(peer);
+        return true;
+    }
+
+    private boolean hasRoom() {
+        return eagerPeers.size() + lazyPeers.size() < 2 * fanout;
+    }
+
+    private void push(String msgId, byte[] frame, String exclude) {
+        for (String peer : eagerPeers) {
+            if (!peer.equals(exclude)) link.send(peer, TYPE_GOSSIP, frame);
+        }
+        for (String peer : lazyPeers) {
+            if (!peer.equals(exclude)) pendingIHave.computeIfAbsent(peer, k -> new ArrayList<>()).add(msgId);
+        }
+    }
+
+    private void flushIHave() {
+        for (Map.Entry<String, List<String>> e : pendingIHave.entrySet()) {
+            List<String> ids = e.getValue();
+            for (int start = 0; start < ids.size(); start += MAX_IHAVE_PER_PACKET) {
+                List<String> batch = ids.subList(start, Math.min(ids.size(), start + MAX_IHAVE_PER_PACKET));
+                link.send(e.getKey(), TYPE_IHAVE, encodeIds(batch));
+            }
+        }
+        pendingIHave.clear();
+    }
+
+    static byte[] encodeGossip(byte innerType, String msgId, String originAddr, byte[] data) {
+        byte[] idBytes = msgId.getBytes(StandardCharsets.UTF_8);
+        byte[] originBytes = originAddr.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[3 + idBytes.length + originBytes.length + data.length];
+        frame[0] = innerType;
+        frame[1] = (byte) idBytes.length;
+        System.arraycopy(idBytes, 0, frame, 2, idBytes.length);
+        int pos = 2 + idBytes.length;
+        frame[pos] = (byte) originBytes.length;
+        System.arraycopy(originBytes, 0, frame, pos + 1, originBytes.length);
+        System.arraycopy(data, 0, frame, pos + 1 + originBytes.length, data.length);
+        return frame;
+    }
+
+    private static String readGossipId(byte[] frame) {
+        if (frame.length < 3) return null;
+        int idLen = frame[1] & 0xFF;
+        if (3 + idLen > frame.length) return null;
+        int originLen = frame[2 + idLen] & 0xFF;
+        if (3 + idLen + originLen > frame.length) return null;
+        return new String(frame, 2, idLen, StandardCharsets.UTF_8);
+    }
+
+    private static String readGossipOrigin(byte[] frame) {
+        int idLen = frame[1] & 0xFF;
+        int originLen = frame[2 + idLen] & 0xFF;
+        return new String(frame, 3 + idLen, originLen, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readGossipData(byte[] frame) {
+        int idLen = frame[1] & 0xFF;
+        int originLen = frame[2 + idLen] & 0xFF;
+        return Arrays.copyOfRange(frame, 3 + idLen + originLen, frame.length);
+    }
+
+    private static byte[] encodeId(String msgId) {
+        return encodeIds(List.of(msgId));
+    }
+
+    private static byte[] encodeIds(List<String> msgIds) {
+        List<byte[]> parts = new ArrayList<>();
+        int total = 0;
+        for (String id : msgIds) {
+            byte[] b = id.getBytes(StandardCharsets.UTF_8);
+            parts.add(b);
+            total += 1 + b.length;
+        }
+        byte[] out = new byte[total];
+        int pos = 0;
+        for (byte[] b : parts) {
+            out[pos] = (byte) b.length;
+            System.arraycopy(b, 0, out, pos + 1, b.length);
+            pos += 1 + b.length;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,296 @@
+package cse471;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class BufferCache {
+
+    public enum Policy { LRU, LFU }
+
+    private static final String META_FILE = ".cache";
+
+    private static class Entry {
+        final String hash;
+        final String name;
+        final long size;
+        final File file;
+        boolean complete;
+        boolean verifying;
+        int pins;
+        long lastUsed;
+        long uses;
+
+        Entry(String hash, String name, long size, File file) {
+            this.hash = hash;
+            this.name = name;
+            this.size = size;
+            this.file = file;
+        }
+    }
+
+    private final File folder;
+    private final long quotaBytes;
+    private final Policy policy;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final MetricsRegistry.Counter evictions;
+    private final MetricsRegistry.Counter verifyFailures;
+    private volatile LibraryWatcher.Listener listener;
+    private long usedBytes;
+
+    public BufferCache(File folder, long quotaBytes, Policy policy, MetricsRegistry metrics) {
+        this.folder = folder;
+        this.quotaBytes = quotaBytes;
+        this.policy = policy;
+        this.evictions = metrics.counter("p2p_buffer_cache_evictions_total", "Completed titles evicted from the buffer folder");
+        this.verifyFailures = metrics.counter("p2p_buffer_cache_verify_failures_total", "Downloads whose file hash did not match");
+        metrics.gaugeFn("p2p_buffer_cache_bytes", "Bytes held in the buffer folder", this::getUsedBytes);
+        metrics.gaugeFn("p2p_buffer_cache_titles", "Complete titles retained in the buffer folder", () -> completedEntries().size());
+        folder.mkdirs();
+        load();
+    }
+
+    public static BufferCache fromConfig(PeerConfig config) {
+        if (config.getBufferFolder() == null) return null;
+        Policy policy = "lfu".equals(config.getBufferEviction()) ? Policy.LFU : Policy.LRU;
+        return new BufferCache(config.getBufferFolder(), config.getBufferQuotaMb() * 1024 * 1024, policy, config.getMetrics());
+    }
+
+    public void setListener(LibraryWatcher.Listener listener) {
+        this.listener = listener;
+    }
+
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != 64) return false;
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public File allocate(String hash, String name, long size) throws IOException {
+        if (!isValidHash(hash)) throw new IOException("Invalid file hash " + hash);
+        String fileName = name == null ? "" : new File(name).getName();
+        if (fileName.isEmpty() || fileName.equals("..") || fileName.equals(".") || fileName.equals(META_FILE)) {
+            throw new IOException("Invalid file name " + name);
+        }
+        List<LibraryWatcher.Entry> evicted = new ArrayList<>();
+        Entry e;
+        synchronized (this) {
+            e = entries.get(hash);
+            if (e != null && !e.complete && !e.verifying && e.pins == 0) {
+                remove(e);
+                e = null;
+            }
+            if (e == null) {
+                makeRoom(size, evicted);
+                File dir = new File(folder, hash);
+                dir.mkdirs();
+                e = new Entry(hash, fileName, size, new File(dir, fileName));
+                entries.put(hash, e);
+                usedBytes += size;
+            }
+            e.pins++;
+            use(e);
+            save(e);
+        }
+        notifyListener(List.of(), evicted);
+        return e.file;
+    }
+
+    public synchronized boolean isComplete(String hash) {
+        Entry e = entries.get(hash);
+        return e != null && e.complete;
+    }
+
+    public synchronized boolean isVerifying(String hash) {
+        Entry e = entries.get(hash);
+        return e != null && e.verifying;
+    }
+
+    public synchronized File getCompletedFile(String hash) {
+        Entry e = entries.get(hash);
+        return e != null && e.complete ? e.file : null;
+    }
+
+    public synchronized void touch(String hash) {
+        Entry e = entries.get(hash);
+        if (e != null) use(e);
+    }
+
+    public void complete(String hash) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(hash);
+            if (e == null || e.complete || e.verifying) return;
+            e.verifying = true;
+        }
+        new Thread(() -> verify(e), "BufferCache-Verify").start();
+    }
+
+    public void release(String hash) {
+        List<LibraryWatcher.Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry e = entries.get(hash);
+            if (e == null) return;
+            e.pins = Math.max(0, e.pins - 1);
+            if (e.pins > 0) return;
+            if (e.complete) {
+                save(e);
+                makeRoom(0, evicted);
+            } else if (!e.verifying) {
+                remove(e);
+            }
+        }
+        notifyListener(List.of(), evicted);
+    }
+
+    public synchronized List<LibraryWatcher.Entry> completedEntries() {
+        List<LibraryWatcher.Entry> out = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (e.complete && e.file.exists()) out.add(new LibraryWatcher.Entry(e.hash, e.file));
+        }
+        return out;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized void flush() {
+        for (Entry e : entries.values()) save(e);
+    }
+
+    private void verify(Entry e) {
+        boolean ok;
+        try {
+            ok = e.hash.equals(FileChecksum.getFileHash(e.file));
+        } catch (IOException ex) {
+            ok = false;
+        }
+        synchronized (this) {
+            e.verifying = false;
+            if (entries.get(e.hash) != e) return;
+            if (!ok) {
+                verifyFailures.inc();
+                System.out.println("[Cache] Discarding " + e.name + ": file hash does not match");
+                if (e.pins == 0) remove(e);
+                return;
+            }
+            e.complete = true;
+            save(e);
+        }
+        System.out.println("[Cache] Retained " + e.name + " (" + (e.size / 1024) + " KB)");
+        notifyListener(List.of(new LibraryWatcher.Entry(e.hash, e.file)), List.of());
+        List<LibraryWatcher.Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            makeRoom(0, evicted);
+        }
+        notifyListener(List.of(), evicted);
+    }
+
+    private void makeRoom(long incoming, List<LibraryWatcher.Entry> evicted) {
+        if (quotaBytes <= 0) return;
+        while (usedBytes + incoming > quotaBytes) {
+            Entry victim = null;
+            for (Entry e : entries.values()) {
+                if (!e.complete || e.pins > 0) continue;
+                if (victim == null || colder(e, victim)) victim = e;
+            }
+            if (victim == null) break;
+            evicted.add(new LibraryWatcher.Entry(victim.hash, victim.file));
+            remove(victim);
+            evictions.inc();
+            System.out.println("[Cache] Evicted " + victim.name + " (" + policy + ")");
+        }
+    }
+
+    private boolean colder(Entry a, Entry b) {
+        if (policy == Policy.LFU && a.uses != b.uses) return a.uses < b.uses;
+        return a.lastUsed < b.lastUsed;
+    }
+
+    private void use(Entry e) {
+        e.uses++;
+        e.lastUsed = System.currentTimeMillis();
+    }
+
+    private void remove(Entry e) {
+        entries.remove(e.hash);
+        usedBytes -= e.size;
+        File dir = e.file.getParentFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    private void notifyListener(List<LibraryWatcher.Entry> added, List<LibraryWatcher.Entry> removed) {
+        LibraryWatcher.Listener l = listener;
+        if (l != null && (!added.isEmpty() || !removed.isEmpty())) l.onLibraryChanged(added, removed);
+    }
+
+    private void save(Entry e) {
+        Properties p = new Properties();
+        p.setProperty("name", e.name);
+        p.setProperty("size", String.valueOf(e.size));
+        p.setProperty("complete", String.valueOf(e.complete));
+        p.setProperty("lastUsed", String.valueOf(e.lastUsed));
+        p.setProperty("uses", String.valueOf(e.uses));
+        try (OutputStream out = new FileOutputStream(new File(e.file.getParentFile(), META_FILE))) {
+            p.store(out, null);
+        } catch (IOException ex) {
+            System.err.println("[Cache] Could not save " + e.name + ": " + ex.getMessage());
+        }
+    }
+
+    private void load() {
+        File[] dirs = folder.listFiles(File::isDirectory);
+        if (dirs == null) return;
+        for (File dir : dirs) {
+            if (!isValidHash(dir.getName())) continue;
+            Properties p = new Properties();
+            try (InputStream in = new FileInputStream(new File(dir, META_FILE))) {
+                p.load(in);
+            } catch (IOException e) {
+                continue;
+            }
+            try {
+                Entry e = new Entry(dir.getName(), p.getProperty("name"), Long.parseLong(p.getProperty("size")),
+                        new File(dir, p.getProperty("name")));
+                e.complete = Boolean.parseBoolean(p.getProperty("complete"));
+                e.lastUsed = Long.parseLong(p.getProperty("lastUsed", "0"));
+                e.uses = Long.parseLong(p.getProperty("uses", "0"));
+                usedBytes += e.size;
+                entries.put(e.hash, e);
+                if (!e.complete || e.file.length() != e.size) remove(e);
+            } catch (RuntimeException e) {
+                System.err.println("[Cache] Skipping " + dir + ": " + e.getMessage());
+            }
+        }
+        makeRoom(0, new ArrayList<>());
+        System.out.println("[Cache] " + entries.size() + " title(s), " + (usedBytes / (1024 * 1024)) + " MB in " + folder);
+    }
+}
@@ -0,0 +1,75 @@
+package cse471;
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+@SuppressWarnings("serial")
+public class CatalogListModel extends AbstractListModel<String> implements RemoteCatalog.Listener {
+
+    private final RemoteCatalog catalog;
+    private final Predicate<String> nameFilter;
+    private final List<RemoteCatalog.Row> rows = new ArrayList<>();
+    private String query = "";
+
+    public CatalogListModel(RemoteCatalog catalog, Predicate<String> nameFilter) {
+        this.catalog = catalog;
+        this.nameFilter = nameFilter;
+        catalog.setListener(this);
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return rows.get(index).name;
+    }
+
+    public RemoteCatalog.Row getRow(int index) {
+        return rows.get(index);
+    }
+
+    public void setQuery(String query) {
+        this.query = query == null ? "" : query.toLowerCase();
+        reload();
+    }
+
+    public void reload() {
+        List<RemoteCatalog.Row> fresh = catalog.search(query, nameFilter);
+        int old = rows.size();
+        rows.clear();
+        if (old > 0) fireIntervalRemoved(this, 0, old - 1);
+        rows.addAll(fresh);
+        if (!rows.isEmpty()) fireIntervalAdded(this, 0, rows.size() - 1);
+    }
+
+    @Override
+    public void onRowsChanged(List<RemoteCatalog.Row> added, List<RemoteCatalog.Row> removed) {
+        SwingUtilities.invokeLater(() -> apply(added, removed));
+    }
+
+    private void apply(List<RemoteCatalog.Row> added, List<RemoteCatalog.Row> removed) {
+        for (RemoteCatalog.Row row : removed) {
+            int idx = Collections.binarySearch(rows, row, RemoteCatalog.ROW_ORDER);
+            if (idx >= 0) {
+                rows.remove(idx);
+                fireIntervalRemoved(this, idx, idx);
+            }
+        }
+        for (RemoteCatalog.Row row : added) {
+            if (!RemoteCatalog.matches(row, query, nameFilter)) continue;
+            int idx = Collections.binarySearch(rows, row, RemoteCatalog.ROW_ORDER);
+            if (idx < 0) {
+                idx = -idx - 1;
+                rows.add(idx, row);
+                fireIntervalAdded(this, idx, idx);
+            }
+        }
+    }
+}
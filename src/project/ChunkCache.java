@@ -0,0 +1,197 @@
+package cse471;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChunkCache {
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final int slotSize;
+    private final int slotCount;
+    private final int protectedCapacity;
+    private final ByteBuffer slab;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int protectedSlots;
+
+    private final LinkedHashMap<ChunkKey, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ChunkKey, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong readaheadLoads = new AtomicLong();
+
+    private static final class ChunkKey {
+        final String fileHash;
+        final int chunkIndex;
+
+        ChunkKey(String fileHash, int chunkIndex) {
+            this.fileHash = fileHash;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey)) return false;
+            ChunkKey k = (ChunkKey) o;
+            return chunkIndex == k.chunkIndex && fileHash.equals(k.fileHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return fileHash.hashCode() * 31 + chunkIndex;
+        }
+    }
+
+    private static final class Entry {
+        final int[] slots;
+        final int length;
+
+        Entry(int[] slots, int length) {
+            this.slots = slots;
+            this.length = length;
+        }
+    }
+
+    public ChunkCache(long budgetBytes, int slotSize) {
+        this.slotSize = slotSize;
+        this.slotCount = (int) Math.max(0, Math.min(Integer.MAX_VALUE / slotSize, budgetBytes / slotSize));
+        this.protectedCapacity = (int) (slotCount * PROTECTED_RATIO);
+        this.slab = ByteBuffer.allocateDirect(slotCount * slotSize);
+        for (int i = 0; i < slotCount; i++) freeSlots.add(i);
+    }
+
+    public int get(String fileHash, int chunkIndex, byte[] dst) {
+        return get(fileHash, chunkIndex, 0, dst, Integer.MAX_VALUE);
+    }
+
+    public synchronized int get(String fileHash, int chunkIndex, int offset, byte[] dst, int length) {
+        ChunkKey key = new ChunkKey(fileHash, chunkIndex);
+        Entry e = protectedSegment.get(key);
+        if (e == null) {
+            e = probation.remove(key);
+            if (e != null) promote(key, e);
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        hits.incrementAndGet();
+        if (offset >= e.length) return 0;
+        int n = Math.min(length, e.length - offset);
+        copyOut(e, offset, dst, n);
+        return n;
+    }
+
+    public synchronized boolean contains(String fileHash, int chunkIndex) {
+        ChunkKey key = new ChunkKey(fileHash, chunkIndex);
+        return protectedSegment.containsKey(key) || probation.containsKey(key);
+    }
+
+    public void put(String fileHash, int chunkIndex, byte[] data, int length) {
+        insert(fileHash, chunkIndex, data, length);
+    }
+
+    public void putReadahead(String fileHash, int chunkIndex, byte[] data, int length) {
+        if (insert(fileHash, chunkIndex, data, length)) readaheadLoads.incrementAndGet();
+    }
+
+    public synchronized void invalidate(String fileHash) {
+        removeFile(probation, fileHash);
+        removeFile(protectedSegment, fileHash);
+    }
+
+    private synchronized boolean insert(String fileHash, int chunkIndex, byte[] data, int length) {
+        int needed = (length + slotSize - 1) / slotSize;
+        if (length <= 0 || needed > slotCount) return false;
+        ChunkKey key = new ChunkKey(fileHash, chunkIndex);
+        if (protectedSegment.containsKey(key) || probation.containsKey(key)) return false;
+
+        while (freeSlots.size() < needed) evictOne();
+        int[] slots = new int[needed];
+        ByteBuffer view = slab.duplicate();
+        for (int i = 0; i < needed; i++) {
+            slots[i] = freeSlots.poll();
+            view.position(slots[i] * slotSize);
+            view.put(data, i * slotSize, Math.min(slotSize, length - i * slotSize));
+        }
+        probation.put(key, new Entry(slots, length));
+        return true;
+    }
+
+    private void promote(ChunkKey key, Entry e) {
+        protectedSegment.put(key, e);
+        protectedSlots += e.slots.length;
+        while (protectedSlots > protectedCapacity && protectedSegment.size() > 1) {
+            Iterator<Map.Entry<ChunkKey, Entry>> it = protectedSegment.entrySet().iterator();
+            Map.Entry<ChunkKey, Entry> lru = it.next();
+            it.remove();
+            protectedSlots -= lru.getValue().slots.length;
+            probation.put(lru.getKey(), lru.getValue());
+        }
+    }
+
+    private void evictOne() {
+        LinkedHashMap<ChunkKey, Entry> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        Iterator<Map.Entry<ChunkKey, Entry>> it = victimSegment.entrySet().iterator();
+        if (!it.hasNext()) return;
+        Map.Entry<ChunkKey, Entry> victim = it.next();
+        it.remove();
+        if (victimSegment == protectedSegment) protectedSlots -= victim.getValue().slots.length;
+        free(victim.getValue());
+        evictions.incrementAndGet();
+    }
+
+    private void removeFile(LinkedHashMap<ChunkKey, Entry> segment, String fileHash) {
+        Iterator<Map.Entry<ChunkKey, Entry>> it = segment.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ChunkKey, Entry> e = it.next();
+            if (e.getKey().fileHash.startsWith(fileHash)) {
+                if (segment == protectedSegment) protectedSlots -= e.getValue().slots.length;
+                free(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private void free(Entry e) {
+        for (int slot : e.slots) freeSlots.add(slot);
+    }
+
+    private void copyOut(Entry e, int offset, byte[] dst, int length) {
+        ByteBuffer view = slab.duplicate();
+        for (int copied = 0; copied < length; ) {
+            int pos = offset + copied;
+            int n = Math.min(slotSize - pos % slotSize, length - copied);
+            view.position(e.slots[pos / slotSize] * slotSize + pos % slotSize);
+            view.get(dst, copied, n);
+            copied += n;
+        }
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEvictions() { return evictions.get(); }
+
+    public long getReadaheadLoads() { return readaheadLoads.get(); }
+
+    public synchronized int getCachedChunks() { return probation.size() + protectedSegment.size(); }
+
+    public long getCapacityBytes() { return (long) slotCount * slotSize; }
+
+    public String getStats() {
+        long h = hits.get();
+        long m = misses.get();
+        double ratio = (h + m) == 0 ? 0 : (double) h / (h + m);
+        return "hits=" + h + " misses=" + m + " hitRatio=" + String.format("%.2f", ratio) +
+                " evictions=" + evictions.get() + " readahead=" + readaheadLoads.get() +
+                " chunks=" + getCachedChunks() + "/" + slotCount;
+    }
+}
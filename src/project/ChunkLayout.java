@@ -0,0 +1,116 @@
+package cse471;
+
+public class ChunkLayout {
+
+    static final int LEGACY_CHUNK_SIZE = 256 * 1024;
+    static final int MIN_CHUNK_SIZE = 256 * 1024;
+    static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    static final int RAMP_START = 64 * 1024;
+    static final char KEY_SEPARATOR = '@';
+    private static final int TARGET_CHUNKS = 2048;
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final int rampStart;
+    private final int rampCount;
+    private final long rampBytes;
+    private final int size;
+
+    private ChunkLayout(long fileSize, int chunkSize, int rampStart) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.rampStart = rampStart;
+        this.rampCount = Integer.numberOfTrailingZeros(chunkSize / rampStart);
+        this.rampBytes = chunkSize - rampStart;
+        int n = 0;
+        long covered = 0;
+        while (n < rampCount && covered < fileSize) covered += (long) rampStart << n++;
+        if (covered < fileSize) n += (int) ((fileSize - covered + chunkSize - 1) / chunkSize);
+        this.size = n;
+    }
+
+    public static ChunkLayout fixed(long fileSize) {
+        return new ChunkLayout(fileSize, LEGACY_CHUNK_SIZE, LEGACY_CHUNK_SIZE);
+    }
+
+    public static ChunkLayout ramped(long fileSize, int chunkSize) {
+        if (!isValidChunkSize(chunkSize)) throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        return new ChunkLayout(fileSize, chunkSize, RAMP_START);
+    }
+
+    public static ChunkLayout choose(long fileSize) {
+        return ramped(fileSize, chooseChunkSize(fileSize));
+    }
+
+    public static ChunkLayout announced(long fileSize, int chunkSize) {
+        return isValidChunkSize(chunkSize) ? ramped(fileSize, chunkSize) : fixed(fileSize);
+    }
+
+    public static ChunkLayout forRequestKey(String requestKey, long fileSize) {
+        if (requestKey.indexOf(KEY_SEPARATOR) < 0) return fixed(fileSize);
+        int chunkSize = parseChunkSize(requestKey);
+        return chunkSize < 0 ? null : ramped(fileSize, chunkSize);
+    }
+
+    static int chooseChunkSize(long fileSize) {
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < MAX_CHUNK_SIZE && (long) chunkSize * TARGET_CHUNKS < fileSize) chunkSize <<= 1;
+        return chunkSize;
+    }
+
+    static boolean isValidChunkSize(int chunkSize) {
+        return chunkSize >= MIN_CHUNK_SIZE && chunkSize <= MAX_CHUNK_SIZE && Integer.bitCount(chunkSize) == 1;
+    }
+
+    public static int parseChunkSize(String requestKey) {
+        int at = requestKey.indexOf(KEY_SEPARATOR);
+        if (at < 0) return LEGACY_CHUNK_SIZE;
+        try {
+            int chunkSize = Integer.parseInt(requestKey.substring(at + 1)) * 1024;
+            return isValidChunkSize(chunkSize) ? chunkSize : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String parseFileHash(String requestKey) {
+        int at = requestKey.indexOf(KEY_SEPARATOR);
+        return at < 0 ? requestKey : requestKey.substring(0, at);
+    }
+
+    public String requestKey(String fileHash) {
+        return isFixed() ? fileHash : fileHash + KEY_SEPARATOR + (chunkSize / 1024);
+    }
+
+    public boolean isFixed() {
+        return rampCount == 0 && chunkSize == LEGACY_CHUNK_SIZE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getOffset(int index) {
+        if (index < rampCount) return (long) rampStart * ((1L << index) - 1);
+        return rampBytes + (long) (index - rampCount) * chunkSize;
+    }
+
+    public int indexOf(long offset) {
+        if (offset < rampBytes) return 63 - Long.numberOfLeadingZeros(offset / rampStart + 1);
+        return rampCount + (int) ((offset - rampBytes) / chunkSize);
+    }
+
+    public int getLength(int index) {
+        if (index < 0 || index >= size) return 0;
+        int nominal = index < rampCount ? rampStart << index : chunkSize;
+        return (int) Math.min(nominal, fileSize - getOffset(index));
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+}
@@ -0,0 +1,114 @@
+package cse471;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+public class ChunkManifest {
+
+    private static final int HASH_BYTES = 32;
+
+    private final long[] offsets;
+    private final int[] lengths;
+    private final String[] hashes;
+
+    public ChunkManifest(List<Integer> lengths, List<String> hashes) {
+        int n = lengths.size();
+        this.offsets = new long[n];
+        this.lengths = new int[n];
+        this.hashes = hashes.toArray(new String[0]);
+        long offset = 0;
+        for (int i = 0; i < n; i++) {
+            this.offsets[i] = offset;
+            this.lengths[i] = lengths.get(i);
+            offset += this.lengths[i];
+        }
+    }
+
+    public int size() {
+        return lengths.length;
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    public String getHash(int index) {
+        return hashes[index];
+    }
+
+    public int indexOf(long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    public long getFileSize() {
+        int n = lengths.length;
+        return n == 0 ? 0 : offsets[n - 1] + lengths[n - 1];
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + lengths.length * (4 + HASH_BYTES));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(lengths.length);
+            for (int i = 0; i < lengths.length; i++) {
+                out.writeInt(lengths[i]);
+                for (int j = 0; j < HASH_BYTES; j++) {
+                    out.writeByte(Integer.parseInt(hashes[i].substring(2 * j, 2 * j + 2), 16));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public String digest() {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(toBytes());
+            StringBuilder sb = new StringBuilder();
+            for (byte b : d) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Every chunk but the last is at least the CDC minimum, so this bounds what a peer may send.
+    public static long maxEncodedLength(long fileSize) {
+        return 4 + (fileSize / FileChecksum.CDC_MIN_CHUNK + 1) * (4 + HASH_BYTES);
+    }
+
+    public static ChunkManifest fromBytes(byte[] data, long fileSize) throws IOException {
+        if (data.length < 4) throw new IOException("Bad manifest length");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int n = in.readInt();
+        if (n < 0 || data.length != 4 + (long) n * (4 + HASH_BYTES)) throw new IOException("Bad manifest length");
+        Integer[] lengths = new Integer[n];
+        String[] hashes = new String[n];
+        byte[] hash = new byte[HASH_BYTES];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            lengths[i] = in.readInt();
+            if (lengths[i] <= 0 || lengths[i] > FileChecksum.CDC_MAX_CHUNK) throw new IOException("Bad chunk length " + lengths[i]);
+            total += lengths[i];
+            if (total > fileSize) throw new IOException("Manifest covers more than " + fileSize + " bytes");
+            in.readFully(hash);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) sb.append(String.format("%02x", b));
+            hashes[i] = sb.toString();
+        }
+        if (total != fileSize) throw new IOException("Manifest covers " + total + " of " + fileSize + " bytes");
+        return new ChunkManifest(List.of(lengths), List.of(hashes));
+    }
+}
@@ -0,0 +1,157 @@
+package cse471;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ChunkTrace {
+
+    public enum Stage { SCHEDULED, CONNECT, FIRST_BYTE, COMPLETED, VERIFIED, PERSISTED, FAILED }
+
+    private static final Stage[] STAGES = Stage.values();
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public static class Event {
+        public final long seq;
+        public final long nanoTime;
+        public final Stage stage;
+        public final int chunkIndex;
+        public final String peer;
+        public final long value;
+        public final String reason;
+
+        Event(long seq, long nanoTime, Stage stage, int chunkIndex, String peer, long value, String reason) {
+            this.seq = seq;
+            this.nanoTime = nanoTime;
+            this.stage = stage;
+            this.chunkIndex = chunkIndex;
+            this.peer = peer;
+            this.value = value;
+            this.reason = reason;
+        }
+    }
+
+    private final String fileHash;
+    private final int mask;
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicLongArray published;
+    private final long[] times;
+    private final long[] values;
+    private final int[] chunks;
+    private final byte[] stages;
+    private final String[] peers;
+    private final String[] reasons;
+
+    public ChunkTrace(String fileHash) {
+        this(fileHash, DEFAULT_CAPACITY);
+    }
+
+    public ChunkTrace(String fileHash, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.fileHash = fileHash;
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        this.times = new long[size];
+        this.values = new long[size];
+        this.chunks = new int[size];
+        this.stages = new byte[size];
+        this.peers = new String[size];
+        this.reasons = new String[size];
+        for (int i = 0; i < size; i++) published.set(i, -1);
+    }
+
+    public void record(Stage stage, int chunkIndex, String peer, long value, String reason) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & mask);
+        published.set(slot, -1);
+        // A volatile store only orders what comes before it, so without the fence the
+        // plain stores below could become visible ahead of the -1 and a reader could
+        // accept a half-written event under the old sequence number.
+        VarHandle.releaseFence();
+        times[slot] = System.nanoTime();
+        stages[slot] = (byte) stage.ordinal();
+        chunks[slot] = chunkIndex;
+        peers[slot] = peer;
+        values[slot] = value;
+        reasons[slot] = reason;
+        published.set(slot, seq);
+    }
+
+    public void record(Stage stage, int chunkIndex, String peer, long value) {
+        record(stage, chunkIndex, peer, value, null);
+    }
+
+    public void failed(int chunkIndex, String peer, String reason) {
+        record(Stage.FAILED, chunkIndex, peer, 0, reason);
+    }
+
+    public List<Event> snapshot() {
+        long end = cursor.get();
+        long start = Math.max(0, end - (mask + 1));
+        List<Event> events = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            if (published.get(slot) != seq) continue;
+            Event e = new Event(seq, times[slot], STAGES[stages[slot]], chunks[slot], peers[slot], values[slot], reasons[slot]);
+            VarHandle.acquireFence();
+            if (published.get(slot) == seq) events.add(e);
+        }
+        return events;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public long toEpochMillis(long nanoTime) {
+        return baseMillis + (nanoTime - baseNanos) / 1_000_000;
+    }
+
+    public void writeJsonLines(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        for (Event e : snapshot()) {
+            out.print("{\"seq\":" + e.seq + ",\"ts\":" + toEpochMillis(e.nanoTime) +
+                    ",\"nanos\":" + (e.nanoTime - baseNanos) + ",\"file\":\"" + fileHash +
+                    "\",\"chunk\":" + e.chunkIndex + ",\"stage\":\"" + e.stage + "\"" +
+                    ",\"value\":" + e.value);
+            if (e.peer != null) out.print(",\"peer\":\"" + e.peer + "\"");
+            if (e.reason != null) out.print(",\"reason\":\"" + e.reason.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+            out.println("}");
+        }
+        out.flush();
+    }
+
+    public void dump(File file) throws IOException {
+        try (Writer w = new FileWriter(file)) {
+            writeJsonLines(w);
+        }
+    }
+
+    public int dumpToJfr() {
+        if (!new ChunkTraceEvent().isEnabled()) return 0;
+        int n = 0;
+        for (Event e : snapshot()) {
+            ChunkTraceEvent jfr = new ChunkTraceEvent();
+            jfr.fileHash = fileHash;
+            jfr.chunkIndex = e.chunkIndex;
+            jfr.stage = e.stage.name();
+            jfr.peer = e.peer;
+            jfr.value = e.value;
+            jfr.reason = e.reason;
+            jfr.epochMillis = toEpochMillis(e.nanoTime);
+            jfr.commit();
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,36 @@
+package cse471;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timestamp;
+
+@Name("cse471.ChunkTrace")
+@Label("Chunk Lifecycle")
+@Category({"P2P", "Streaming"})
+@StackTrace(false)
+class ChunkTraceEvent extends jdk.jfr.Event {
+
+    @Label("File Hash")
+    String fileHash;
+
+    @Label("Chunk Index")
+    int chunkIndex;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Peer")
+    String peer;
+
+    @Label("Value")
+    long value;
+
+    @Label("Reason")
+    String reason;
+
+    @Label("Recorded At")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long epochMillis;
+}
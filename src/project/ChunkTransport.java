@@ -0,0 +1,18 @@
+package cse471;
+
+import java.io.IOException;
+
+public interface ChunkTransport {
+
+    byte[] fetch(String peer, String fileHash, int chunkIndex, int timeoutMs, ChunkTrace trace) throws IOException;
+
+    byte[] fetchPiece(String peer, String fileHash, int chunkIndex, int dataPieces, int parityPieces, int piece,
+                      int timeoutMs, ChunkTrace trace) throws IOException;
+
+    byte[] fetchRange(String peer, String fileHash, int chunkIndex, int offset, int length, int timeoutMs,
+                      ChunkTrace trace) throws IOException;
+
+    boolean canWarm();
+
+    void warm(String peer, String fileHash, int chunkIndex, int timeoutMs) throws IOException;
+}
@@ -0,0 +1,168 @@
+package cse471;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ContainerProbe {
+
+    static final long MAX_RANGE_BYTES = 32L * 1024 * 1024;
+
+    private static final int EBML_MAGIC = 0x1A45DFA3;
+    private static final int MKV_SEGMENT = 0x18538067;
+    private static final int MKV_SEEK_HEAD = 0x114D9B74;
+    private static final int MKV_SEEK = 0x4DBB;
+    private static final int MKV_SEEK_ID = 0x53AB;
+    private static final int MKV_SEEK_POSITION = 0x53AC;
+    private static final int MKV_CUES = 0x1C53BB6B;
+    private static final int MKV_CLUSTER = 0x1F43B675;
+
+    public static class Range {
+        public final String what;
+        public final long start;
+        public final long end;
+
+        Range(String what, long start, long end) {
+            this.what = what;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static List<Range> probe(byte[] head, int length, long fileSize) {
+        List<Range> ranges = new ArrayList<>();
+        if (length >= 8 && "ftyp".equals(type(head, 4))) probeMp4(head, length, fileSize, ranges);
+        else if (length >= 4 && readInt(head, 0) == EBML_MAGIC) probeMkv(head, length, fileSize, ranges);
+        return ranges;
+    }
+
+    private static void probeMp4(byte[] head, int length, long fileSize, List<Range> ranges) {
+        long pos = 0;
+        while (pos + 8 <= length && pos < fileSize) {
+            int p = (int) pos;
+            long size = readInt(head, p) & 0xFFFFFFFFL;
+            String type = type(head, p + 4);
+            int header = 8;
+            if (size == 1) {
+                if (p + 16 > length) return;
+                size = readLong(head, p + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = fileSize - pos;
+            }
+            if (size < header) return;
+            if ("moov".equals(type)) {
+                add(ranges, "mp4 moov", pos, pos + size, fileSize);
+                return;
+            }
+            pos += size;
+        }
+        if (pos < fileSize) add(ranges, "mp4 tail (moov)", pos, fileSize, fileSize);
+    }
+
+    private static void probeMkv(byte[] head, int length, long fileSize, List<Range> ranges) {
+        int[] cursor = {0};
+        readId(head, length, cursor);
+        long headerSize = readSize(head, length, cursor);
+        if (headerSize < 0 || headerSize >= length - cursor[0]) return;
+        cursor[0] += (int) headerSize;
+        if (readId(head, length, cursor) != MKV_SEGMENT || readSize(head, length, cursor) < 0) return;
+        long segmentData = cursor[0];
+
+        while (cursor[0] < length) {
+            int id = readId(head, length, cursor);
+            long size = readSize(head, length, cursor);
+            if (id < 0 || size < 0 || id == MKV_CLUSTER) return;
+            if (id == MKV_SEEK_HEAD) {
+                probeSeekHead(head, (int) Math.min(length, cursor[0] + Math.min(size, length)), cursor, segmentData, fileSize, ranges);
+                return;
+            }
+            if (size >= length - cursor[0]) return;
+            cursor[0] += (int) size;
+        }
+    }
+
+    private static void probeSeekHead(byte[] head, int end, int[] cursor, long segmentData, long fileSize, List<Range> ranges) {
+        List<Long> positions = new ArrayList<>();
+        long cues = -1;
+        while (cursor[0] < end) {
+            int id = readId(head, end, cursor);
+            long size = readSize(head, end, cursor);
+            if (id != MKV_SEEK || size < 0 || size > end - cursor[0]) break;
+            int seekEnd = cursor[0] + (int) size;
+            int target = -1;
+            long position = -1;
+            while (cursor[0] < seekEnd) {
+                int childId = readId(head, seekEnd, cursor);
+                long childSize = readSize(head, seekEnd, cursor);
+                if (childId < 0 || childSize < 0 || childSize > seekEnd - cursor[0]) break;
+                if (childId == MKV_SEEK_ID) target = (int) readUnsigned(head, cursor[0], (int) childSize);
+                else if (childId == MKV_SEEK_POSITION) position = readUnsigned(head, cursor[0], (int) childSize);
+                cursor[0] += (int) childSize;
+            }
+            cursor[0] = seekEnd;
+            if (position < 0) continue;
+            positions.add(segmentData + position);
+            if (target == MKV_CUES) cues = segmentData + position;
+        }
+        if (cues < 0) return;
+        long cuesEnd = fileSize;
+        for (long p : positions) {
+            if (p > cues && p < cuesEnd) cuesEnd = p;
+        }
+        add(ranges, "mkv cues", cues, cuesEnd, fileSize);
+    }
+
+    private static void add(List<Range> ranges, String what, long start, long end, long fileSize) {
+        end = Math.min(end, fileSize);
+        if (start >= end) return;
+        ranges.add(new Range(what, start, Math.min(end, start + MAX_RANGE_BYTES)));
+    }
+
+    private static int readId(byte[] b, int limit, int[] cursor) {
+        int p = cursor[0];
+        if (p >= limit) return -1;
+        int first = b[p] & 0xFF;
+        int len = Integer.numberOfLeadingZeros(first) - 23;
+        if (len < 1 || len > 4 || p + len > limit) return -1;
+        int id = 0;
+        for (int i = 0; i < len; i++) id = id << 8 | (b[p + i] & 0xFF);
+        cursor[0] = p + len;
+        return id;
+    }
+
+    private static long readSize(byte[] b, int limit, int[] cursor) {
+        int p = cursor[0];
+        if (p >= limit) return -1;
+        int first = b[p] & 0xFF;
+        int len = Integer.numberOfLeadingZeros(first) - 23;
+        if (len < 1 || len > 8 || p + len > limit) return -1;
+        long value = first & (0xFF >> len);
+        boolean unknown = value == (0xFF >> len);
+        for (int i = 1; i < len; i++) {
+            int v = b[p + i] & 0xFF;
+            value = value << 8 | v;
+            if (v != 0xFF) unknown = false;
+        }
+        cursor[0] = p + len;
+        return unknown ? Long.MAX_VALUE : value;
+    }
+
+    private static long readUnsigned(byte[] b, int p, int len) {
+        long v = 0;
+        for (int i = 0; i < len && i < 8; i++) v = v << 8 | (b[p + i] & 0xFF);
+        return v;
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return (b[p] & 0xFF) << 24 | (b[p + 1] & 0xFF) << 16 | (b[p + 2] & 0xFF) << 8 | (b[p + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] b, int p) {
+        return (readInt(b, p) & 0xFFFFFFFFL) << 32 | (readInt(b, p + 4) & 0xFFFFFFFFL);
+    }
+
+    private static String type(byte[] b, int p) {
+        return new String(b, p, 4, StandardCharsets.ISO_8859_1);
+    }
+}
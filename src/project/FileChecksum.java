@@ -3,10 +3,28 @@ package cse471;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 public class FileChecksum {
 
+    public static final int CDC_MIN_CHUNK = 64 * 1024;
+    public static final int CDC_AVG_CHUNK = 128 * 1024;
+    public static final int CDC_MAX_CHUNK = 256 * 1024;
+
+    private static final long MASK_SMALL = -1L << (64 - 19);
+    private static final long MASK_LARGE = -1L << (64 - 15);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EED_CDCL);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
     public static String getFileHash(File file) throws IOException {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
@@ -19,13 +37,62 @@ public class FileChecksum {
             }
             fis.close();
 
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest.digest()) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return toHex(digest.digest());
         } catch (Exception e) {
             throw new IOException("Could not calculate hash", e);
         }
     }
-}
\ No newline at end of file
+
+    public static ChunkManifest getChunkManifest(File file) throws IOException {
+        List<Integer> lengths = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        byte[] window = new byte[CDC_MAX_CHUNK];
+        int filled = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            boolean eof = false;
+            while (true) {
+                while (!eof && filled < window.length) {
+                    int n = in.read(window, filled, window.length - filled);
+                    if (n < 0) eof = true;
+                    else filled += n;
+                }
+                if (filled == 0) break;
+
+                int cut = findBoundary(window, filled);
+                digest.update(window, 0, cut);
+                lengths.add(cut);
+                hashes.add(toHex(digest.digest()));
+                System.arraycopy(window, cut, window, 0, filled - cut);
+                filled -= cut;
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Could not calculate manifest", e);
+        }
+        return new ChunkManifest(lengths, hashes);
+    }
+
+    static int findBoundary(byte[] data, int length) {
+        if (length <= CDC_MIN_CHUNK) return length;
+        int normal = Math.min(CDC_AVG_CHUNK, length);
+        long hash = 0;
+        int i = CDC_MIN_CHUNK;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK_SMALL) == 0) return i + 1;
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK_LARGE) == 0) return i + 1;
+        }
+        return length;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -2,21 +2,134 @@ package cse471;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-public class FileChunkServer {
+public class FileChunkServer implements UdpChunkTransport.ChunkSource {
     
-    private static final int TCP_PORT = 8889;
     private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int WRITE_BLOCK = 16 * 1024;
+    static final int REPLY_BUSY = -2;
+    static final int PIECE_REQUEST = -2;
+    static final int RANGE_REQUEST = -3;
+    static final int WARM_REQUEST = -4;
+    static final String MANIFEST_SUFFIX = ".manifest";
+    static final String MANIFEST_DIGEST_SUFFIX = ".manifest-sha256";
+    private static final int READAHEAD_CHUNKS = 2;
+    private static final int SEQUENTIAL_GAP = 4;
+    private static final int MAX_TRACKED_STREAMS = 4096;
+    private static final int SCRATCH_BUFFERS = 8;
+    static final int KEEP_ALIVE_MS = 30000;
     private File rootFolder;
     private boolean running = false;
-    private ServerSocket serverSocket;
+    private volatile ServerSocket serverSocket;
     
-    private Map<String, File> fileMap = new ConcurrentHashMap<>();
+    private volatile Map<String, File> fileMap = Collections.emptyMap();
+    private LibraryWatcher libraryWatcher;
+    private volatile LibraryWatcher.Listener libraryListener;
+    private volatile RequestListener requestListener;
+    private final UploadScheduler uploadScheduler;
+    private final ChunkCache chunkCache;
+    private volatile BufferCache bufferCache;
+    private volatile LiveManager liveManager;
+    private final PeerConfig config;
+    private final Map<String, Integer> lastServedChunk = new ConcurrentHashMap<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final MetricsRegistry.Counter servedOk;
+    private final MetricsRegistry.Counter servedBusy;
+    private final MetricsRegistry.Counter servedNotFound;
+    private final MetricsRegistry.Counter servedPastEof;
+    private final MetricsRegistry.Counter servedErrors;
+    private final MetricsRegistry.Histogram serveTime;
+    private final MetricsRegistry.Counter piecesEncoded;
+    private final MetricsRegistry.Counter rangesServed;
+    private final MetricsRegistry.Counter warmRequests;
+    private final Map<String, IndexedManifest> manifests = new ConcurrentHashMap<>();
+    private volatile Map<String, ChunkLocation> contentIndex = Collections.emptyMap();
+    private final ArrayBlockingQueue<byte[]> scratchBuffers = new ArrayBlockingQueue<>(SCRATCH_BUFFERS);
+    private final ExecutorService manifestExecutor = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor readaheadExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(64), new ThreadPoolExecutor.DiscardPolicy());
+
+    public interface RequestListener {
+        void onTitleRequested(String peer, String fileHash);
+    }
+
+    private static class IndexedManifest {
+        final String hash;
+        final File file;
+        final ChunkManifest manifest;
+        final byte[] bytes;
+        final byte[] digest;
+
+        IndexedManifest(String hash, File file, ChunkManifest manifest) {
+            this.hash = hash;
+            this.file = file;
+            this.manifest = manifest;
+            this.bytes = manifest.toBytes();
+            this.digest = manifest.digest().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static class ChunkLocation {
+        final File file;
+        final long offset;
+        final int length;
+
+        ChunkLocation(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
 
     public FileChunkServer(File rootFolder) {
+        this(rootFolder, PeerConfig.fromEnv());
+    }
+
+    public FileChunkServer(File rootFolder, PeerConfig config) {
+        this(rootFolder, config, UploadScheduler.fromConfig(config));
+    }
+
+    public FileChunkServer(File rootFolder, PeerConfig config, UploadScheduler uploadScheduler) {
         this.rootFolder = rootFolder;
+        this.config = config;
+        this.uploadScheduler = uploadScheduler;
+        this.chunkCache = new ChunkCache(config.getChunkCacheMb() * 1024 * 1024, CHUNK_SIZE);
+
+        MetricsRegistry metrics = config.getMetrics();
+        String requests = "p2p_server_requests_total";
+        String help = "Chunk requests handled by result";
+        this.servedOk = metrics.counter(requests, help, "result", "ok");
+        this.servedBusy = metrics.counter(requests, help, "result", "busy");
+        this.servedNotFound = metrics.counter(requests, help, "result", "not_found");
+        this.servedPastEof = metrics.counter(requests, help, "result", "past_eof");
+        this.servedErrors = metrics.counter(requests, help, "result", "error");
+        this.serveTime = metrics.histogram("p2p_server_serve_seconds", "Time from request to last byte written");
+        this.piecesEncoded = metrics.counter("p2p_server_fec_pieces_total", "Reed-Solomon pieces encoded for coded requests");
+        this.rangesServed = metrics.counter("p2p_server_range_requests_total", "Byte-range requests served from within a chunk");
+        this.warmRequests = metrics.counter("p2p_server_warm_requests_total", "Connection warm-ups that prefetched a chunk into the cache");
+        metrics.counterFn("p2p_server_bytes_sent_total", "Chunk bytes uploaded", bytesSent::get);
+        metrics.gaugeFn("p2p_server_active_connections", "Open chunk connections, including idle kept-alive ones", activeConnections::get);
+        metrics.counterFn("p2p_chunk_cache_hits_total", "Chunk cache hits", chunkCache::getHits);
+        metrics.counterFn("p2p_chunk_cache_misses_total", "Chunk cache misses", chunkCache::getMisses);
+        metrics.counterFn("p2p_chunk_cache_evictions_total", "Chunk cache evictions", chunkCache::getEvictions);
+        metrics.gaugeFn("p2p_server_content_chunks", "Distinct content-defined chunks indexed", () -> contentIndex.size());
+        metrics.gaugeFn("p2p_upload_unchoked_peers", "Peers holding an upload slot", uploadScheduler::getUnchokedCount);
     }
 
     public void start() {
@@ -25,8 +138,9 @@ public class FileChunkServer {
         
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(TCP_PORT);
-                System.out.println("File Chunk Server started on TCP Port " + TCP_PORT);
+                InetAddress bind = config.getBindAddress() == null ? null : InetAddress.getByName(config.getBindAddress());
+                serverSocket = new ServerSocket(config.getTcpPort(), 50, bind);
+                System.out.println("File Chunk Server started on TCP Port " + config.getTcpPort());
                 
                 while (running) {
                     Socket client = serverSocket.accept();
@@ -39,66 +153,476 @@ public class FileChunkServer {
     }
 
     private void indexFiles() {
-        System.out.println("Indexing files in root folder...");
-        File[] files = rootFolder.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                if (f.isFile() && !f.getName().startsWith(".")) {
-                    try {
-                        String hash = FileChecksum.getFileHash(f);
-                        fileMap.put(hash, f);
-                        System.out.println("Indexed: " + f.getName() + " -> " + hash);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        Map<String, File> initial = new HashMap<>();
+        if (rootFolder != null) {
+            System.out.println("Indexing files in root folder...");
+            libraryWatcher = new LibraryWatcher(rootFolder, this::applyLibraryDelta);
+            for (LibraryWatcher.Entry e : libraryWatcher.scanAll()) {
+                initial.put(e.hash, e.file);
+            }
+        }
+        BufferCache cache = bufferCache;
+        if (cache != null) {
+            for (LibraryWatcher.Entry e : cache.completedEntries()) initial.putIfAbsent(e.hash, e.file);
+        }
+        synchronized (this) {
+            fileMap = Collections.unmodifiableMap(initial);
+        }
+        indexManifests(initial.entrySet());
+        if (libraryWatcher != null) {
+            libraryWatcher.start();
+            System.out.println("Indexing complete.");
+        }
+    }
+
+    public void setLiveManager(LiveManager liveManager) {
+        this.liveManager = liveManager;
+    }
+
+    public void setBufferCache(BufferCache cache) {
+        this.bufferCache = cache;
+        cache.setListener(this::applyCacheDelta);
+    }
+
+    private synchronized void applyCacheDelta(List<LibraryWatcher.Entry> added, List<LibraryWatcher.Entry> removed) {
+        List<LibraryWatcher.Entry> fresh = new ArrayList<>();
+        for (LibraryWatcher.Entry e : added) {
+            if (!fileMap.containsKey(e.hash)) fresh.add(e);
+        }
+        applyLibraryDelta(fresh, removed);
+    }
+
+    private synchronized void applyLibraryDelta(List<LibraryWatcher.Entry> added, List<LibraryWatcher.Entry> removed) {
+        Map<String, File> next = new HashMap<>(fileMap);
+        BufferCache cache = bufferCache;
+        List<LibraryWatcher.Entry> gone = new ArrayList<>();
+        for (LibraryWatcher.Entry e : removed) {
+            if (e.file.equals(next.get(e.hash))) {
+                next.remove(e.hash);
+                chunkCache.invalidate(e.hash);
+                File cached = cache == null ? null : cache.getCompletedFile(e.hash);
+                if (cached != null && !cached.equals(e.file)) {
+                    next.put(e.hash, cached);
+                    continue;
+                }
+            }
+            gone.add(e);
+        }
+        removed = gone;
+        for (LibraryWatcher.Entry e : added) {
+            next.put(e.hash, e.file);
+        }
+        fileMap = Collections.unmodifiableMap(next);
+        if (config.isContentDefinedChunking()) {
+            for (LibraryWatcher.Entry e : removed) manifests.remove(e.hash);
+            if (!removed.isEmpty()) rebuildContentIndex();
+            Map<String, File> addedFiles = new HashMap<>();
+            for (LibraryWatcher.Entry e : added) addedFiles.put(e.hash, e.file);
+            indexManifests(addedFiles.entrySet());
+        }
+
+        LibraryWatcher.Listener l = libraryListener;
+        if (l != null && (!added.isEmpty() || !removed.isEmpty())) l.onLibraryChanged(added, removed);
+    }
+
+    public void setLibraryListener(LibraryWatcher.Listener listener) {
+        this.libraryListener = listener;
+    }
+
+    public void setRequestListener(RequestListener listener) {
+        this.requestListener = listener;
+    }
+
+    public Map<String, File> getIndexedFiles() {
+        return fileMap;
+    }
+
+    private void indexManifests(Collection<Map.Entry<String, File>> files) {
+        if (!config.isContentDefinedChunking()) return;
+        for (Map.Entry<String, File> e : files) {
+            String hash = e.getKey();
+            File file = e.getValue();
+            manifestExecutor.execute(() -> {
+                if (!file.equals(fileMap.get(hash))) return;
+                try {
+                    manifests.put(hash, new IndexedManifest(hash, file, FileChecksum.getChunkManifest(file)));
+                    rebuildContentIndex();
+                } catch (IOException ex) {
+                    System.err.println("Could not chunk " + file.getName() + ": " + ex.getMessage());
                 }
+            });
+        }
+    }
+
+    private synchronized void rebuildContentIndex() {
+        Map<String, ChunkLocation> next = new HashMap<>();
+        for (IndexedManifest m : manifests.values()) {
+            if (!m.file.equals(fileMap.get(m.hash))) continue;
+            for (int i = 0; i < m.manifest.size(); i++) {
+                next.putIfAbsent(m.manifest.getHash(i), new ChunkLocation(m.file, m.manifest.getOffset(i), m.manifest.getLength(i)));
             }
         }
-        System.out.println("Indexing complete.");
+        contentIndex = Collections.unmodifiableMap(next);
+    }
+
+    public ChunkManifest getManifest(String fileHash) {
+        IndexedManifest m = manifests.get(fileHash);
+        return m == null ? null : m.manifest;
+    }
+
+    public int readContent(String contentHash, byte[] buffer) throws IOException {
+        ChunkLocation loc = contentIndex.get(contentHash);
+        if (loc == null || !loc.file.exists()) return -1;
+        return readRange(loc.file, loc.offset, loc.length, buffer);
     }
 
     public void stop() {
         running = false;
+        if (libraryWatcher != null) libraryWatcher.stop();
+        readaheadExecutor.shutdownNow();
+        manifestExecutor.shutdownNow();
+        System.out.println("Chunk cache: " + chunkCache.getStats());
         try { if(serverSocket != null) serverSocket.close(); } catch (IOException e) {}
     }
 
     private void handleClient(Socket socket) {
+        activeConnections.incrementAndGet();
         try (
             DataInputStream in = new DataInputStream(socket.getInputStream());
             DataOutputStream out = new DataOutputStream(socket.getOutputStream())
         ) {
-            String requestedHash = in.readUTF(); 
-            int chunkIndex = in.readInt();
-            
-            File file = fileMap.get(requestedHash); 
-            
-            if (file == null || !file.exists()) {
-                out.writeInt(-1); 
-                return;
-            }
-
-            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-                long offset = (long) chunkIndex * CHUNK_SIZE;
-                if (offset >= file.length()) {
-                    out.writeInt(0); 
-                    return;
-                }
-                
-                raf.seek(offset);
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int bytesRead = raf.read(buffer);
-                
-                if (bytesRead > 0) {
-                    out.writeInt(bytesRead);
-                    out.write(buffer, 0, bytesRead);
-                } else {
-                    out.writeInt(0);
+            socket.setSoTimeout(KEEP_ALIVE_MS);
+            while (running) {
+                String requestedHash;
+                try {
+                    requestedHash = in.readUTF();
+                } catch (EOFException | SocketTimeoutException e) {
+                    break;
                 }
+                serveRequest(socket, requestedHash, in, out);
             }
-            
         } catch (IOException e) {
+            servedErrors.inc();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            activeConnections.decrementAndGet();
             try { socket.close(); } catch (IOException e) {}
         }
     }
-}
\ No newline at end of file
+
+    private void serveRequest(Socket socket, String requestedHash, DataInputStream in, DataOutputStream out)
+            throws IOException, InterruptedException {
+        int chunkIndex = in.readInt();
+        if (chunkIndex == WARM_REQUEST) {
+            out.writeInt(warmChunk(requestedHash, in.readInt()));
+            out.flush();
+            return;
+        }
+        int dataPieces = 0, parityPieces = 0, piece = -1, rangeOffset = 0, rangeLength = -1;
+        if (chunkIndex == PIECE_REQUEST) {
+            chunkIndex = in.readInt();
+            dataPieces = in.readUnsignedByte();
+            parityPieces = in.readUnsignedByte();
+            piece = in.readUnsignedByte();
+        } else if (chunkIndex == RANGE_REQUEST) {
+            chunkIndex = in.readInt();
+            rangeOffset = in.readInt();
+            rangeLength = in.readInt();
+        }
+        long requestStart = System.nanoTime();
+        String peer = socket.getInetAddress().getHostAddress();
+
+        int bufferSize = maxChunkLength(requestedHash);
+        if (piece >= 0 && dataPieces > 0) bufferSize = (bufferSize + dataPieces - 1) / dataPieces;
+        else if (rangeLength >= 0) bufferSize = Math.min(bufferSize, rangeLength);
+        byte[] buffer = new byte[bufferSize];
+        int bytesRead = piece >= 0 ? preparePiece(peer, requestedHash, chunkIndex, dataPieces, parityPieces, piece, buffer)
+                : rangeLength >= 0 ? prepareRange(peer, requestedHash, chunkIndex, rangeOffset, rangeLength, buffer)
+                : prepareChunk(peer, requestedHash, chunkIndex, buffer);
+        if (bytesRead <= 0) {
+            out.writeInt(bytesRead);
+            out.flush();
+            return;
+        }
+
+        NetworkEmulator emulator = config.getNetworkEmulator();
+        out.writeInt(bytesRead);
+        for (int pos = 0; pos < bytesRead; pos += WRITE_BLOCK) {
+            int n = Math.min(WRITE_BLOCK, bytesRead - pos);
+            throttle(peer, n);
+            if (emulator != null) emulator.transfer(config.getBindAddress(), peer, n);
+            out.write(buffer, pos, n);
+        }
+        out.flush();
+        served(requestStart, true);
+    }
+
+    @Override
+    public int prepareChunk(String peer, String requestKey, int chunkIndex, byte[] buffer) throws IOException {
+        String fileHash = ChunkLayout.parseFileHash(requestKey);
+        File file = fileMap.get(fileHash);
+        if (file == null && requestKey.endsWith(MANIFEST_SUFFIX)) {
+            return prepareManifest(requestKey.substring(0, requestKey.length() - MANIFEST_SUFFIX.length()), chunkIndex, buffer);
+        }
+        if (file == null && requestKey.endsWith(MANIFEST_DIGEST_SUFFIX)) {
+            return prepareManifestDigest(requestKey.substring(0, requestKey.length() - MANIFEST_DIGEST_SUFFIX.length()), buffer);
+        }
+        if (file == null && contentIndex.containsKey(requestKey)) {
+            return prepareContent(peer, requestKey, buffer);
+        }
+        LiveManager live = liveManager;
+        boolean isLive = file == null && live != null && live.isLiveStream(requestKey);
+        ChunkLayout layout = file == null ? null : ChunkLayout.forRequestKey(requestKey, file.length());
+        if (!isLive && (layout == null || !file.exists())) {
+            servedNotFound.inc();
+            return -1;
+        }
+
+        BufferCache cache = bufferCache;
+        if (cache != null && chunkIndex == 0 && !isLive) cache.touch(fileHash);
+
+        if (!uploadScheduler.tryAdmit(peer)) {
+            servedBusy.inc();
+            return REPLY_BUSY;
+        }
+        if (isLive) {
+            int n = live.readChunk(requestKey, chunkIndex, buffer);
+            if (n <= 0) servedPastEof.inc();
+            return n;
+        }
+        RequestListener listener = requestListener;
+        if (listener != null && chunkIndex == 0) listener.onTitleRequested(peer, fileHash);
+
+        int bytesRead = chunkCache.get(requestKey, chunkIndex, buffer);
+        if (bytesRead < 0) {
+            bytesRead = readChunkFromDisk(file, layout, chunkIndex, buffer);
+            chunkCache.put(requestKey, chunkIndex, buffer, bytesRead);
+        }
+        scheduleReadahead(peer, requestKey, file, layout, chunkIndex);
+
+        if (bytesRead <= 0) {
+            servedPastEof.inc();
+            return 0;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public int maxChunkLength(String requestKey) {
+        return Math.max(CHUNK_SIZE, ChunkLayout.parseChunkSize(requestKey));
+    }
+
+    private int prepareManifest(String fileHash, int page, byte[] buffer) {
+        IndexedManifest m = manifests.get(fileHash);
+        if (m == null) {
+            servedNotFound.inc();
+            return -1;
+        }
+        long start = (long) page * CHUNK_SIZE;
+        if (page < 0 || start >= m.bytes.length) {
+            servedPastEof.inc();
+            return 0;
+        }
+        int n = (int) Math.min(CHUNK_SIZE, m.bytes.length - start);
+        System.arraycopy(m.bytes, (int) start, buffer, 0, n);
+        return n;
+    }
+
+    private int prepareManifestDigest(String fileHash, byte[] buffer) {
+        IndexedManifest m = manifests.get(fileHash);
+        if (m == null) {
+            servedNotFound.inc();
+            return -1;
+        }
+        System.arraycopy(m.digest, 0, buffer, 0, m.digest.length);
+        return m.digest.length;
+    }
+
+    private int prepareContent(String peer, String contentHash, byte[] buffer) throws IOException {
+        if (!uploadScheduler.tryAdmit(peer)) {
+            servedBusy.inc();
+            return REPLY_BUSY;
+        }
+        int bytesRead = chunkCache.get(contentHash, 0, buffer);
+        if (bytesRead < 0) {
+            bytesRead = readContent(contentHash, buffer);
+            if (bytesRead < 0) {
+                servedNotFound.inc();
+                return -1;
+            }
+            chunkCache.put(contentHash, 0, buffer, bytesRead);
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public int preparePiece(String peer, String fileHash, int chunkIndex, int dataPieces, int parityPieces, int piece,
+                            byte[] buffer) throws IOException {
+        if (!ReedSolomon.isValid(dataPieces, parityPieces) || piece >= dataPieces + parityPieces) {
+            servedNotFound.inc();
+            return -1;
+        }
+        byte[] chunk = borrowScratch(maxChunkLength(fileHash));
+        try {
+            int len = prepareChunk(peer, fileHash, chunkIndex, chunk);
+            if (len <= 0) return len;
+            piecesEncoded.inc();
+            return ReedSolomon.get(dataPieces, parityPieces).encodePiece(chunk, len, piece, buffer);
+        } finally {
+            releaseScratch(chunk);
+        }
+    }
+
+    // File-backed ranges are copied straight from the chunk cache or the file into the
+    // caller's buffer, which only needs to hold the range. Other keys (content hashes,
+    // live streams) are read whole into a pooled buffer first.
+    @Override
+    public int prepareRange(String peer, String requestKey, int chunkIndex, int offset, int length, byte[] buffer)
+            throws IOException {
+        String fileHash = ChunkLayout.parseFileHash(requestKey);
+        File file = fileMap.get(fileHash);
+        ChunkLayout layout = file == null ? null : ChunkLayout.forRequestKey(requestKey, file.length());
+        if (layout == null || !file.exists()) return prepareRangeFromChunk(peer, requestKey, chunkIndex, offset, length, buffer);
+
+        if (chunkIndex < 0 || chunkIndex >= layout.size() || offset < 0 || length <= 0 || offset >= layout.getLength(chunkIndex)) {
+            servedPastEof.inc();
+            return 0;
+        }
+        BufferCache cache = bufferCache;
+        if (cache != null && chunkIndex == 0) cache.touch(fileHash);
+        if (!uploadScheduler.tryAdmit(peer)) {
+            servedBusy.inc();
+            return REPLY_BUSY;
+        }
+        RequestListener listener = requestListener;
+        if (listener != null && chunkIndex == 0) listener.onTitleRequested(peer, fileHash);
+
+        int n = Math.min(Math.min(length, buffer.length), layout.getLength(chunkIndex) - offset);
+        int bytesRead = chunkCache.get(requestKey, chunkIndex, offset, buffer, n);
+        if (bytesRead < 0) bytesRead = readRange(file, layout.getOffset(chunkIndex) + offset, n, buffer);
+        if (bytesRead <= 0) {
+            servedPastEof.inc();
+            return 0;
+        }
+        rangesServed.inc();
+        return bytesRead;
+    }
+
+    private int prepareRangeFromChunk(String peer, String requestKey, int chunkIndex, int offset, int length, byte[] buffer)
+            throws IOException {
+        byte[] chunk = borrowScratch(maxChunkLength(requestKey));
+        try {
+            int len = prepareChunk(peer, requestKey, chunkIndex, chunk);
+            if (len <= 0) return len;
+            if (offset < 0 || length <= 0 || offset >= len) {
+                servedPastEof.inc();
+                return 0;
+            }
+            rangesServed.inc();
+            int n = Math.min(Math.min(length, buffer.length), len - offset);
+            System.arraycopy(chunk, offset, buffer, 0, n);
+            return n;
+        } finally {
+            releaseScratch(chunk);
+        }
+    }
+
+    private byte[] borrowScratch(int size) {
+        byte[] b = scratchBuffers.poll();
+        return b != null && b.length >= size ? b : new byte[size];
+    }
+
+    private void releaseScratch(byte[] b) {
+        scratchBuffers.offer(b);
+    }
+
+    @Override
+    public void throttle(String peer, int bytes) throws InterruptedException {
+        uploadScheduler.throttle(peer, bytes);
+        bytesSent.addAndGet(bytes);
+    }
+
+    @Override
+    public void served(long requestStartNanos, boolean ok) {
+        if (ok) {
+            servedOk.inc();
+            serveTime.observeNanos(System.nanoTime() - requestStartNanos);
+        } else {
+            servedErrors.inc();
+        }
+    }
+
+    private int readChunkFromDisk(File file, ChunkLayout layout, int chunkIndex, byte[] buffer) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= layout.size()) return 0;
+        return readRange(file, layout.getOffset(chunkIndex), layout.getLength(chunkIndex), buffer);
+    }
+
+    private static int readRange(File file, long offset, int length, byte[] buffer) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (offset >= raf.length()) return 0;
+
+            raf.seek(offset);
+            int total = 0;
+            while (total < length) {
+                int n = raf.read(buffer, total, length - total);
+                if (n < 0) break;
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    private void scheduleReadahead(String peer, String requestKey, File file, ChunkLayout layout, int chunkIndex) {
+        String streamKey = peer + "|" + requestKey;
+        Integer last = lastServedChunk.put(streamKey, chunkIndex);
+        if (lastServedChunk.size() > MAX_TRACKED_STREAMS) lastServedChunk.clear();
+        if (last == null || chunkIndex <= last || chunkIndex - last > SEQUENTIAL_GAP) return;
+
+        for (int i = chunkIndex + 1; i <= chunkIndex + READAHEAD_CHUNKS && i < layout.size(); i++) {
+            readAhead(requestKey, file, layout, i);
+        }
+    }
+
+    private void readAhead(String requestKey, File file, ChunkLayout layout, int chunkIndex) {
+        if (chunkCache.contains(requestKey, chunkIndex)) return;
+        readaheadExecutor.execute(() -> {
+            if (chunkCache.contains(requestKey, chunkIndex)) return;
+            try {
+                byte[] data = new byte[layout.getLength(chunkIndex)];
+                int n = readChunkFromDisk(file, layout, chunkIndex, data);
+                chunkCache.putReadahead(requestKey, chunkIndex, data, n);
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    private int warmChunk(String requestKey, int chunkIndex) {
+        File file = fileMap.get(ChunkLayout.parseFileHash(requestKey));
+        ChunkLayout layout = file == null ? null : ChunkLayout.forRequestKey(requestKey, file.length());
+        if (layout == null || chunkIndex < 0 || chunkIndex >= layout.size()) {
+            servedNotFound.inc();
+            return -1;
+        }
+        warmRequests.inc();
+        readAhead(requestKey, file, layout, chunkIndex);
+        return 0;
+    }
+
+    public int getLocalPort() {
+        ServerSocket s = serverSocket;
+        return s == null ? -1 : s.getLocalPort();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public int getUnchokedCount() {
+        return uploadScheduler.getUnchokedCount();
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+}
@@ -0,0 +1,183 @@
+package cse471;
+
+import java.util.Arrays;
+
+class LedbatController {
+
+    static final long WINDOW_FULL = -1;
+
+    private static final long TARGET_DELAY_US = 100_000;
+    private static final double GAIN = 1.0;
+    private static final int MIN_CWND_SEGMENTS = 2;
+    private static final int INIT_CWND_SEGMENTS = 4;
+    private static final int ALLOWED_INCREASE_SEGMENTS = 2;
+    private static final int CURRENT_FILTER = 4;
+    private static final int BASE_HISTORY = 10;
+    private static final long BASE_INTERVAL_NANOS = 60_000_000_000L;
+    private static final long INITIAL_RTO_NANOS = 1_000_000_000L;
+    private static final long MIN_RTO_NANOS = 200_000_000L;
+    private static final long MAX_RTO_NANOS = 3_000_000_000L;
+    private static final long IDLE_RESTART_NANOS = 1_000_000_000L;
+    private static final long INITIAL_REORDER_NANOS = 10_000_000L;
+
+    private final int mss;
+    private double cwnd;
+    private boolean slowStart = true;
+    private double ssthresh = Double.MAX_VALUE;
+    private long flightBytes;
+    private long nextSendNanos;
+    private long lastSendNanos;
+    private long lastReductionNanos;
+    private double cwndBeforeReduction = -1;
+    private boolean slowStartBeforeReduction;
+    private int reorderQuarters = 1;
+
+    private final long[] baseDelays = new long[BASE_HISTORY];
+    private int baseIndex;
+    private long baseRolloverNanos;
+    private final long[] currentDelays = new long[CURRENT_FILTER];
+    private int currentCount;
+
+    private long srttUs = -1;
+    private long rttvarUs;
+
+    LedbatController(int mss) {
+        this.mss = mss;
+        this.cwnd = INIT_CWND_SEGMENTS * mss;
+        Arrays.fill(baseDelays, Long.MAX_VALUE);
+        this.baseRolloverNanos = System.nanoTime();
+    }
+
+    synchronized long acquire(int bytes, long now) {
+        if (flightBytes == 0 && lastSendNanos != 0 && now - lastSendNanos > IDLE_RESTART_NANOS) {
+            cwnd = Math.max(INIT_CWND_SEGMENTS * mss, cwnd / 2);
+        }
+        if (flightBytes + bytes > cwnd) return WINDOW_FULL;
+        if (now < nextSendNanos) return nextSendNanos - now;
+
+        flightBytes += bytes;
+        lastSendNanos = now;
+        nextSendNanos = Math.max(now, nextSendNanos) + pacingIntervalNanos(bytes);
+        return 0;
+    }
+
+    private long pacingIntervalNanos(int bytes) {
+        if (srttUs <= 0) return 0;
+        double rate = cwnd / (srttUs * 1000.0) * (slowStart ? 2 : 1);
+        return (long) (bytes / rate);
+    }
+
+    synchronized void onAck(int ackedBytes, long delayUs, long rttUs, long now) {
+        long flightBefore = flightBytes;
+        flightBytes = Math.max(0, flightBytes - ackedBytes);
+        if (rttUs > 0) updateRtt(rttUs);
+        if (delayUs < 0) return;
+        updateBaseDelay(delayUs, now);
+        currentDelays[currentCount++ % CURRENT_FILTER] = delayUs;
+        if (ackedBytes <= 0) return;
+
+        double before = cwnd;
+        long queuing = currentDelay() - baseDelay();
+        if (slowStart && queuing > TARGET_DELAY_US / 2) slowStart = false;
+        if (slowStart && cwnd < ssthresh) {
+            cwnd += ackedBytes;
+        } else {
+            double offTarget = (double) (TARGET_DELAY_US - queuing) / TARGET_DELAY_US;
+            cwnd += GAIN * offTarget * ackedBytes * mss / cwnd;
+        }
+        cwnd = Math.min(cwnd, Math.max(before, flightBefore + ALLOWED_INCREASE_SEGMENTS * mss));
+        cwnd = Math.max(cwnd, MIN_CWND_SEGMENTS * mss);
+    }
+
+    synchronized void onLoss(int lostBytes, long now) {
+        flightBytes = Math.max(0, flightBytes - lostBytes);
+        long rtt = srttUs > 0 ? srttUs * 1000 : INITIAL_RTO_NANOS;
+        if (now - lastReductionNanos < rtt) return;
+        lastReductionNanos = now;
+        slowStartBeforeReduction = slowStart;
+        slowStart = false;
+        cwndBeforeReduction = cwnd;
+        cwnd = Math.max(cwnd / 2, MIN_CWND_SEGMENTS * mss);
+        ssthresh = cwnd;
+    }
+
+    synchronized void onTimeout(int lostBytes, long now) {
+        flightBytes = Math.max(0, flightBytes - lostBytes);
+        lastReductionNanos = now;
+        slowStartBeforeReduction |= slowStart;
+        cwndBeforeReduction = Math.max(cwndBeforeReduction, cwnd);
+        ssthresh = Math.max(cwnd / 2, MIN_CWND_SEGMENTS * mss);
+        slowStart = true;
+        cwnd = mss;
+    }
+
+    synchronized void onSpuriousLoss() {
+        reorderQuarters = Math.min(4, reorderQuarters + 1);
+        if (cwndBeforeReduction > cwnd) {
+            cwnd = cwndBeforeReduction;
+            slowStart = slowStartBeforeReduction;
+            ssthresh = Double.MAX_VALUE;
+        }
+        cwndBeforeReduction = -1;
+    }
+
+    synchronized void release(int bytes) {
+        flightBytes = Math.max(0, flightBytes - bytes);
+    }
+
+    synchronized long rtoNanos() {
+        if (srttUs <= 0) return INITIAL_RTO_NANOS;
+        long rto = (srttUs + 4 * rttvarUs) * 1000;
+        return Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, rto));
+    }
+
+    synchronized long probeTimeoutNanos() {
+        if (srttUs <= 0) return INITIAL_RTO_NANOS;
+        return Math.max(10_000_000L, 2 * srttUs * 1000);
+    }
+
+    synchronized long reorderWindowNanos() {
+        return srttUs <= 0 ? INITIAL_REORDER_NANOS : srttUs * 1000 * reorderQuarters / 4;
+    }
+
+    synchronized long getCwndBytes() {
+        return (long) cwnd;
+    }
+
+    synchronized long getQueuingDelayUs() {
+        if (currentCount == 0) return 0;
+        return currentDelay() - baseDelay();
+    }
+
+    private void updateRtt(long rttUs) {
+        if (srttUs < 0) {
+            srttUs = rttUs;
+            rttvarUs = rttUs / 2;
+        } else {
+            rttvarUs = (3 * rttvarUs + Math.abs(srttUs - rttUs)) / 4;
+            srttUs = (7 * srttUs + rttUs) / 8;
+        }
+    }
+
+    private void updateBaseDelay(long delayUs, long now) {
+        if (now - baseRolloverNanos > BASE_INTERVAL_NANOS) {
+            baseRolloverNanos = now;
+            baseIndex = (baseIndex + 1) % BASE_HISTORY;
+            baseDelays[baseIndex] = delayUs;
+        } else {
+            baseDelays[baseIndex] = Math.min(baseDelays[baseIndex], delayUs);
+        }
+    }
+
+    private long baseDelay() {
+        long min = Long.MAX_VALUE;
+        for (long d : baseDelays) min = Math.min(min, d);
+        return min;
+    }
+
+    private long currentDelay() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < Math.min(currentCount, CURRENT_FILTER); i++) min = Math.min(min, currentDelays[i]);
+        return min;
+    }
+}
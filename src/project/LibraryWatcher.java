@@ -0,0 +1,188 @@
+package cse471;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryWatcher {
+
+    private static final long DEBOUNCE_MS = 2000;
+    private static final long POLL_MS = 500;
+
+    public static class Entry {
+        public final String hash;
+        public final File file;
+        public final long size;
+        public final long lastModified;
+
+        Entry(String hash, File file) {
+            this.hash = hash;
+            this.file = file;
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    public interface Listener {
+        void onLibraryChanged(List<Entry> added, List<Entry> removed);
+    }
+
+    private static class Pending {
+        long lastSeen;
+        long size = -1;
+        long lastModified = -1;
+    }
+
+    private final File rootFolder;
+    private final Listener listener;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final Map<String, Pending> pending = new HashMap<>();
+    private WatchService watchService;
+    private volatile boolean running = false;
+
+    public LibraryWatcher(File rootFolder, Listener listener) {
+        this.rootFolder = rootFolder;
+        this.listener = listener;
+    }
+
+    public List<Entry> scanAll() {
+        List<Entry> added = new ArrayList<>();
+        List<Entry> removed = new ArrayList<>();
+        rescan(added, removed);
+        return new ArrayList<>(index.values());
+    }
+
+    public void start() {
+        if (running) return;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            rootFolder.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.err.println("[Library] Could not watch " + rootFolder + ": " + e.getMessage());
+            return;
+        }
+        running = true;
+        Thread t = new Thread(this::watchLoop, "LibraryWatcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        running = false;
+        try { if (watchService != null) watchService.close(); } catch (IOException e) {}
+    }
+
+    private void watchLoop() {
+        while (running) {
+            try {
+                WatchKey key = watchService.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                boolean overflow = false;
+
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        Path name = (Path) event.context();
+                        File f = new File(rootFolder, name.toString());
+                        if (f.getName().startsWith(".")) continue;
+                        pending.computeIfAbsent(f.getAbsolutePath(), k -> new Pending()).lastSeen = now;
+                    }
+                    key.reset();
+                }
+
+                List<Entry> added = new ArrayList<>();
+                List<Entry> removed = new ArrayList<>();
+                if (overflow) {
+                    pending.clear();
+                    rescan(added, removed);
+                } else {
+                    processPending(now, added, removed);
+                }
+                if ((!added.isEmpty() || !removed.isEmpty()) && listener != null) {
+                    listener.onLibraryChanged(added, removed);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private void processPending(long now, List<Entry> added, List<Entry> removed) {
+        Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Pending> e = it.next();
+            Pending p = e.getValue();
+            File f = new File(e.getKey());
+
+            long size = f.exists() ? f.length() : -1;
+            long modified = f.exists() ? f.lastModified() : -1;
+            if (size != p.size || modified != p.lastModified) {
+                p.size = size;
+                p.lastModified = modified;
+                p.lastSeen = now;
+            }
+            if (now - p.lastSeen < DEBOUNCE_MS) continue;
+
+            it.remove();
+            reindex(f, added, removed);
+        }
+    }
+
+    private void rescan(List<Entry> added, List<Entry> removed) {
+        Set<String> present = new HashSet<>();
+        File[] files = rootFolder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.isFile() || f.getName().startsWith(".")) continue;
+                present.add(f.getAbsolutePath());
+                reindex(f, added, removed);
+            }
+        }
+        for (String path : new ArrayList<>(index.keySet())) {
+            if (!present.contains(path)) removed.add(index.remove(path));
+        }
+    }
+
+    private void reindex(File f, List<Entry> added, List<Entry> removed) {
+        String path = f.getAbsolutePath();
+        Entry old = index.get(path);
+
+        if (!f.isFile()) {
+            if (old != null) removed.add(index.remove(path));
+            return;
+        }
+        if (old != null && old.size == f.length() && old.lastModified == f.lastModified()) return;
+
+        try {
+            Entry fresh = new Entry(FileChecksum.getFileHash(f), f);
+            index.put(path, fresh);
+            if (old != null && old.hash.equals(fresh.hash)) return;
+            if (old != null) removed.add(old);
+            added.add(fresh);
+            System.out.println("Indexed: " + f.getName() + " -> " + fresh.hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package cse471;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class LiveManager {
+
+    static final byte TYPE_LIVE_ANNOUNCE = 0x10;
+    static final byte TYPE_LIVE_SUBSCRIBE = 0x11;
+    static final byte TYPE_LIVE_HAVE = 0x12;
+    static final byte TYPE_LIVE_REDIRECT = 0x13;
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final long ANNOUNCE_INTERVAL_MS = 5000;
+    private static final long ANNOUNCE_TTL_MS = 15000;
+    private static final long SUBSCRIBE_REFRESH_MS = 2000;
+    private static final long SUBSCRIBER_TTL_MS = 6000;
+    private static final long UPSTREAM_TIMEOUT_MS = 6000;
+    private static final long GAP_RESUBSCRIBE_MS = 500;
+    private static final long PUBLISHER_IDLE_END_MS = 30000;
+    private static final int JOIN_BACK_CHUNKS = 1;
+    private static final int FETCH_TIMEOUT_MS = 3000;
+
+    public interface Link {
+        void send(String peer, byte type, byte[] payload);
+        void broadcast(byte innerType, byte[] payload);
+        double rttMs(String peer);
+    }
+
+    public static class Announcement {
+        public final String streamId;
+        public final String name;
+        public final String source;
+        volatile long head;
+        volatile boolean ended;
+        volatile long seenAt;
+
+        Announcement(String streamId, String name, String source) {
+            this.streamId = streamId;
+            this.name = name;
+            this.source = source;
+        }
+
+        public long getHead() {
+            return head;
+        }
+
+        public boolean isEnded() {
+            return ended;
+        }
+    }
+
+    private static class Session {
+        final LiveStream stream;
+        final ChunkTrace trace;
+        final Map<String, Long> subscribers = new ConcurrentHashMap<>();
+        final File sourceFile;
+        volatile String upstream;
+        volatile long lastUpstreamNanos = System.nanoTime();
+        volatile long lastSubscribeMs;
+        volatile long lastGapMs;
+        volatile long lastGrowthMs = System.currentTimeMillis();
+        volatile long lastAnnounceMs;
+        volatile long nextExpected = -1;
+        final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+
+        Session(LiveStream stream, File sourceFile) {
+            this.stream = stream;
+            this.trace = new ChunkTrace(stream.getStreamId(), 256);
+            this.sourceFile = sourceFile;
+        }
+
+        boolean isPublisher() {
+            return sourceFile != null;
+        }
+    }
+
+    private final Link link;
+    private final PeerConfig config;
+    private final String myId;
+    private final Map<String, Announcement> announcements = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService fetchExecutor = Executors.newCachedThreadPool();
+    private volatile ChunkTransport transport;
+
+    private final MetricsRegistry.Histogram latency;
+    private final MetricsRegistry.Counter chunksProduced;
+    private final MetricsRegistry.Counter chunksReceived;
+    private final MetricsRegistry.Counter chunksSkipped;
+    private final MetricsRegistry.Counter chunksFailed;
+    private final MetricsRegistry.Counter redirects;
+
+    public LiveManager(String myId, Link link, PeerConfig config) {
+        this.myId = myId;
+        this.link = link;
+        this.config = config;
+        this.transport = new TcpChunkTransport(config);
+        MetricsRegistry metrics = config.getMetrics();
+        this.latency = metrics.histogram("p2p_live_latency_seconds", "Source-to-viewer latency of live chunks");
+        this.chunksProduced = metrics.counter("p2p_live_chunks_produced_total", "Live chunks published from a growing source");
+        this.chunksReceived = metrics.counter("p2p_live_chunks_received_total", "Live chunks received and verified");
+        this.chunksSkipped = metrics.counter("p2p_live_chunks_skipped_total", "Live chunks skipped for exceeding the latency bound");
+        this.chunksFailed = metrics.counter("p2p_live_chunk_failures_total", "Live chunk fetches that failed or did not verify");
+        this.redirects = metrics.counter("p2p_live_redirects_total", "Subscriptions redirected to a relay");
+        metrics.gaugeFn("p2p_live_subscribers", "Downstream peers subscribed to local live streams", this::subscriberCount);
+    }
+
+    public void setTransport(ChunkTransport transport) {
+        this.transport = transport;
+    }
+
+    public String publish(File file, String name) throws IOException {
+        String streamId = StreamManager.sha256Hex((myId + "|" + file.getAbsolutePath() + "|" + System.nanoTime())
+                .getBytes(StandardCharsets.UTF_8));
+        LiveStream stream = new LiveStream(streamId, name, CHUNK_SIZE, config.getLiveWindowChunks(), ringFolder());
+        sessions.put(streamId, new Session(stream, file));
+        System.out.println("[Live] Publishing " + name + " from " + file + " as " + streamId);
+        announce(sessions.get(streamId));
+        return streamId;
+    }
+
+    public LiveStream watch(String streamId) throws IOException {
+        Session existing = sessions.get(streamId);
+        if (existing != null) return existing.stream;
+        Announcement a = announcements.get(streamId);
+        if (a == null) throw new IllegalStateException("Unknown live stream " + streamId);
+
+        LiveStream stream = new LiveStream(streamId, a.name, CHUNK_SIZE, config.getLiveWindowChunks(), ringFolder());
+        Session s = new Session(stream, null);
+        s.upstream = a.source;
+        s.nextExpected = Math.max(0, a.head - JOIN_BACK_CHUNKS);
+        sessions.put(streamId, s);
+        subscribe(s, s.nextExpected);
+        System.out.println("[Live] Watching " + a.name + " via " + a.source + " from chunk " + s.nextExpected);
+        return stream;
+    }
+
+    public boolean stop(String streamId) {
+        Session s = sessions.get(streamId);
+        if (s == null) return false;
+        if (s.isPublisher() && !s.stream.isEnded()) {
+            try {
+                publishGrowth(s, true);
+            } catch (IOException e) {
+                System.err.println("[Live] " + s.stream.getName() + ": " + e.getMessage());
+            }
+            return true;
+        }
+        sessions.remove(streamId);
+        if (s.upstream != null) link.send(s.upstream, TYPE_LIVE_SUBSCRIBE, (streamId + "|-1").getBytes(StandardCharsets.UTF_8));
+        s.stream.close();
+        return true;
+    }
+
+    public LiveStream getStream(String streamId) {
+        Session s = sessions.get(streamId);
+        return s == null ? null : s.stream;
+    }
+
+    public Map<String, Announcement> getAnnouncements() {
+        return Collections.unmodifiableMap(announcements);
+    }
+
+    public int readChunk(String streamId, int index, byte[] buffer) throws IOException {
+        Session s = sessions.get(streamId);
+        if (s == null) return -1;
+        int n = s.stream.read(index, buffer);
+        return Math.max(0, n);
+    }
+
+    public boolean isLiveStream(String streamId) {
+        return sessions.containsKey(streamId);
+    }
+
+    public void tick(long now) {
+        for (Session s : sessions.values()) {
+            try {
+                if (s.isPublisher()) {
+                    if (!s.stream.isEnded()) publishGrowth(s, false);
+                    if (now - s.lastAnnounceMs >= ANNOUNCE_INTERVAL_MS) announce(s);
+                } else {
+                    tickViewer(s, now);
+                }
+                for (Map.Entry<String, Long> e : s.subscribers.entrySet()) {
+                    if (e.getValue() < now) s.subscribers.remove(e.getKey());
+                }
+            } catch (IOException e) {
+                System.err.println("[Live] " + s.stream.getName() + ": " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, Announcement> e : announcements.entrySet()) {
+            if (now - e.getValue().seenAt > ANNOUNCE_TTL_MS) announcements.remove(e.getKey());
+        }
+    }
+
+    public void stopAll() {
+        for (String id : new ArrayList<>(sessions.keySet())) {
+            Session s = sessions.remove(id);
+            if (s != null) s.stream.close();
+        }
+        fetchExecutor.shutdownNow();
+    }
+
+    public void onMessage(String peer, byte type, byte[] payload) {
+        String[] parts = new String(payload, StandardCharsets.UTF_8).split("\\|");
+        try {
+            switch (type) {
+                case TYPE_LIVE_ANNOUNCE: onAnnounce(peer, parts); break;
+                case TYPE_LIVE_SUBSCRIBE: onSubscribe(peer, parts); break;
+                case TYPE_LIVE_HAVE: onHave(peer, parts); break;
+                case TYPE_LIVE_REDIRECT: onRedirect(peer, parts); break;
+                default: break;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[Live] Bad message from " + peer + ": " + e);
+        }
+    }
+
+    private void onAnnounce(String source, String[] p) {
+        if (p.length < 4 || sessions.containsKey(p[0]) && sessions.get(p[0]).isPublisher()) return;
+        Announcement a = announcements.computeIfAbsent(p[0], id -> new Announcement(id, p[1], source));
+        a.head = Math.max(a.head, Long.parseLong(p[2]));
+        a.ended = "1".equals(p[3]);
+        a.seenAt = System.currentTimeMillis();
+    }
+
+    private void onSubscribe(String peer, String[] p) {
+        Session s = sessions.get(p[0]);
+        if (s == null) return;
+        long from = Long.parseLong(p[1]);
+        if (from < 0) {
+            s.subscribers.remove(peer);
+            return;
+        }
+        if (!s.subscribers.containsKey(peer) && s.subscribers.size() >= config.getLiveMaxSubscribers()) {
+            List<String> relays = new ArrayList<>(s.subscribers.keySet());
+            link.send(peer, TYPE_LIVE_REDIRECT, (p[0] + "|" + String.join(",", relays)).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        s.subscribers.put(peer, System.currentTimeMillis() + SUBSCRIBER_TTL_MS);
+        LiveStream stream = s.stream;
+        for (long i = Math.max(from, stream.getOldest()); i <= stream.getHead(); i++) {
+            if (stream.getLength(i) > 0) sendHave(peer, s, i);
+        }
+        if (stream.isEnded()) sendHave(peer, s, stream.getHead());
+    }
+
+    private void onHave(String peer, String[] p) {
+        Session s = sessions.get(p[0]);
+        if (s == null || s.isPublisher() || !peer.equals(s.upstream)) return;
+        long index = Long.parseLong(p[1]);
+        int length = Integer.parseInt(p[2]);
+        long ageMs = Long.parseLong(p[3]);
+        String hash = p[4];
+        boolean ended = "1".equals(p[5]);
+        s.lastUpstreamNanos = System.nanoTime();
+
+        if (ended) s.stream.end(index);
+        if (index < s.nextExpected || s.stream.has(index)) return;
+
+        long now = System.currentTimeMillis();
+        if (index > s.nextExpected && now - s.lastGapMs > GAP_RESUBSCRIBE_MS) {
+            s.lastGapMs = now;
+            subscribe(s, s.nextExpected);
+        }
+
+        long arrivalAgeMs = ageMs + halfRtt(peer);
+        if (arrivalAgeMs > config.getLiveMaxLatencyMs()) {
+            skip(s, index);
+            return;
+        }
+        if (!s.inFlight.add(index)) return;
+        long receivedNanos = System.nanoTime();
+        fetchExecutor.execute(() -> fetch(s, peer, index, length, hash, arrivalAgeMs, receivedNanos));
+    }
+
+    private void fetch(Session s, String peer, long index, int length, String hash, long arrivalAgeMs, long receivedNanos) {
+        try {
+            byte[] data = transport.fetch(peer, s.stream.getStreamId(), (int) index, FETCH_TIMEOUT_MS, s.trace);
+            if (data == null || data.length != length || !hash.equals(StreamManager.sha256Hex(data))) {
+                chunksFailed.inc();
+                return;
+            }
+            long ageMs = arrivalAgeMs + (System.nanoTime() - receivedNanos) / 1_000_000L;
+            if (ageMs > config.getLiveMaxLatencyMs()) {
+                skip(s, index);
+                return;
+            }
+            if (!s.stream.put(index, data, data.length, hash, ageMs)) return;
+            chunksReceived.inc();
+            latency.observeNanos(ageMs * 1_000_000L);
+            s.stream.recordLatency(ageMs);
+            advance(s);
+            for (String sub : s.subscribers.keySet()) sendHave(sub, s, index);
+        } catch (IOException e) {
+            chunksFailed.inc();
+        } finally {
+            s.inFlight.remove(index);
+        }
+    }
+
+    private void skip(Session s, long index) {
+        chunksSkipped.inc();
+        s.stream.skip(index);
+        advance(s);
+    }
+
+    private void advance(Session s) {
+        synchronized (s) {
+            while (s.stream.has(s.nextExpected)) s.nextExpected++;
+        }
+    }
+
+    private void skipStaleHoles(Session s) {
+        LiveStream stream = s.stream;
+        while (s.nextExpected < stream.getHead() && !stream.has(s.nextExpected)) {
+            long later = s.nextExpected + 1;
+            while (later < stream.getHead() && !stream.has(later)) later++;
+            if (stream.getAgeMs(later) <= config.getLiveMaxLatencyMs()) return;
+            skip(s, s.nextExpected);
+        }
+    }
+
+    private void onRedirect(String peer, String[] p) {
+        Session s = sessions.get(p[0]);
+        if (s == null || s.isPublisher() || !peer.equals(s.upstream) || p.length < 2) return;
+        List<String> relays = new ArrayList<>();
+        for (String r : p[1].split(",")) {
+            if (!r.isEmpty() && !r.equals(config.getBindAddress())) relays.add(r);
+        }
+        if (relays.isEmpty()) return;
+        redirects.inc();
+        s.upstream = relays.get(ThreadLocalRandom.current().nextInt(relays.size()));
+        s.lastUpstreamNanos = System.nanoTime();
+        subscribe(s, s.nextExpected);
+    }
+
+    private void tickViewer(Session s, long now) {
+        skipStaleHoles(s);
+        Announcement a = announcements.get(s.stream.getStreamId());
+        if ((System.nanoTime() - s.lastUpstreamNanos) / 1_000_000L > UPSTREAM_TIMEOUT_MS && a != null && !s.stream.isEnded()) {
+            System.out.println("[Live] Upstream " + s.upstream + " silent, rejoining at source " + a.source);
+            s.upstream = a.source;
+            s.lastUpstreamNanos = System.nanoTime();
+            subscribe(s, s.nextExpected);
+        } else if (now - s.lastSubscribeMs >= SUBSCRIBE_REFRESH_MS && !s.stream.isEnded()) {
+            subscribe(s, s.nextExpected);
+        }
+    }
+
+    private void publishGrowth(Session s, boolean end) throws IOException {
+        LiveStream stream = s.stream;
+        long length = s.sourceFile.length();
+        long next = stream.getHead() + 1;
+        long now = System.currentTimeMillis();
+        boolean grew = false;
+        try (RandomAccessFile raf = new RandomAccessFile(s.sourceFile, "r")) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while ((next + 1) * CHUNK_SIZE <= length || end && next * CHUNK_SIZE < length) {
+                int n = (int) Math.min(CHUNK_SIZE, length - next * CHUNK_SIZE);
+                raf.seek(next * CHUNK_SIZE);
+                raf.readFully(buffer, 0, n);
+                String hash = StreamManager.sha256Hex(n == CHUNK_SIZE ? buffer : Arrays.copyOf(buffer, n));
+                stream.put(next, buffer, n, hash, 0);
+                chunksProduced.inc();
+                for (String sub : s.subscribers.keySet()) sendHave(sub, s, next);
+                next++;
+                grew = true;
+            }
+        }
+        if (grew) s.lastGrowthMs = now;
+        if (end || now - s.lastGrowthMs > PUBLISHER_IDLE_END_MS) {
+            stream.end(stream.getHead());
+            for (String sub : s.subscribers.keySet()) sendHave(sub, s, stream.getHead());
+            announce(s);
+            System.out.println("[Live] " + stream.getName() + " ended after " + (stream.getHead() + 1) + " chunks");
+        }
+    }
+
+    private void announce(Session s) {
+        s.lastAnnounceMs = System.currentTimeMillis();
+        LiveStream stream = s.stream;
+        String msg = stream.getStreamId() + "|" + stream.getName() + "|" + Math.max(0, stream.getHead()) + "|" + (stream.isEnded() ? 1 : 0);
+        link.broadcast(TYPE_LIVE_ANNOUNCE, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void subscribe(Session s, long from) {
+        s.lastSubscribeMs = System.currentTimeMillis();
+        link.send(s.upstream, TYPE_LIVE_SUBSCRIBE, (s.stream.getStreamId() + "|" + from).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendHave(String peer, Session s, long index) {
+        LiveStream stream = s.stream;
+        int length = stream.getLength(index);
+        String hash = stream.getHash(index);
+        if (length <= 0 || hash == null) return;
+        String msg = stream.getStreamId() + "|" + index + "|" + length + "|" + stream.getAgeMs(index) + "|" + hash
+                + "|" + (stream.isEnded() && index == stream.getHead() ? 1 : 0);
+        link.send(peer, TYPE_LIVE_HAVE, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long halfRtt(String peer) {
+        double rtt = link.rttMs(peer);
+        return rtt > 0 ? (long) (rtt / 2) : 0;
+    }
+
+    private int subscriberCount() {
+        int n = 0;
+        for (Session s : sessions.values()) n += s.subscribers.size();
+        return n;
+    }
+
+    private File ringFolder() {
+        File folder = config.getBufferFolder();
+        if (folder == null) folder = new File(System.getProperty("java.io.tmpdir"));
+        folder.mkdirs();
+        return folder;
+    }
+}
@@ -0,0 +1,177 @@
+package cse471;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LiveStream {
+
+    static final int NOT_RETAINED = -1;
+    static final int SKIPPED = -2;
+
+    private static final int MAX_LATENCY_SAMPLES = 10000;
+
+    private final String streamId;
+    private final String name;
+    private final int chunkSize;
+    private final int window;
+    private final File ringFile;
+    private final RandomAccessFile ring;
+
+    private final long[] slotIndex;
+    private final int[] slotLength;
+    private final String[] slotHash;
+    private final long[] slotAgeMs;
+    private final long[] slotStoredNanos;
+
+    private long head = -1;
+    private long endIndex = -1;
+    private boolean ended;
+    private boolean closed;
+    private final List<Long> latencies = new ArrayList<>();
+
+    public LiveStream(String streamId, String name, int chunkSize, int window, File folder) throws IOException {
+        this.streamId = streamId;
+        this.name = name;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.ringFile = new File(folder, "live-" + streamId + ".ring");
+        this.ring = new RandomAccessFile(ringFile, "rw");
+        this.ring.setLength((long) window * chunkSize);
+        this.slotIndex = new long[window];
+        this.slotLength = new int[window];
+        this.slotHash = new String[window];
+        this.slotAgeMs = new long[window];
+        this.slotStoredNanos = new long[window];
+        Arrays.fill(slotIndex, -1);
+    }
+
+    public synchronized boolean put(long index, byte[] data, int length, String hash, long ageMs) throws IOException {
+        if (closed || index <= head - window) return false;
+        int slot = (int) (index % window);
+        if (slotIndex[slot] == index && slotLength[slot] >= 0) return false;
+        ring.seek((long) slot * chunkSize);
+        ring.write(data, 0, length);
+        slotIndex[slot] = index;
+        slotLength[slot] = length;
+        slotHash[slot] = hash;
+        slotAgeMs[slot] = ageMs;
+        slotStoredNanos[slot] = System.nanoTime();
+        head = Math.max(head, index);
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void skip(long index) {
+        if (index <= head - window || has(index)) return;
+        int slot = (int) (index % window);
+        slotIndex[slot] = index;
+        slotLength[slot] = SKIPPED;
+        head = Math.max(head, index);
+        notifyAll();
+    }
+
+    public synchronized int read(long index, byte[] buffer) throws IOException {
+        int slot = (int) (index % window);
+        if (index < 0 || slotIndex[slot] != index) return NOT_RETAINED;
+        if (slotLength[slot] < 0) return slotLength[slot];
+        ring.seek((long) slot * chunkSize);
+        ring.readFully(buffer, 0, slotLength[slot]);
+        return slotLength[slot];
+    }
+
+    public synchronized int await(long index, byte[] buffer, long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!closed && !has(index) && index > head - window && !isPastEnd(index)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) break;
+            wait(left);
+        }
+        return read(index, buffer);
+    }
+
+    public synchronized boolean has(long index) {
+        int slot = (int) (index % window);
+        return index >= 0 && slotIndex[slot] == index && slotLength[slot] != 0;
+    }
+
+    public synchronized String getHash(long index) {
+        int slot = (int) (index % window);
+        return index >= 0 && slotIndex[slot] == index ? slotHash[slot] : null;
+    }
+
+    public synchronized int getLength(long index) {
+        int slot = (int) (index % window);
+        return index >= 0 && slotIndex[slot] == index ? slotLength[slot] : NOT_RETAINED;
+    }
+
+    public synchronized long getAgeMs(long index) {
+        int slot = (int) (index % window);
+        if (index < 0 || slotIndex[slot] != index) return -1;
+        return slotAgeMs[slot] + (System.nanoTime() - slotStoredNanos[slot]) / 1_000_000L;
+    }
+
+    public synchronized long getHead() {
+        return head;
+    }
+
+    public synchronized long getOldest() {
+        return Math.max(0, head - window + 1);
+    }
+
+    public synchronized long getFirstRetained() {
+        for (long i = getOldest(); i <= head; i++) {
+            if (has(i)) return i;
+        }
+        return head;
+    }
+
+    public synchronized void end(long lastIndex) {
+        endIndex = lastIndex;
+        ended = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    public synchronized boolean isPastEnd(long index) {
+        return ended && index > endIndex;
+    }
+
+    synchronized void recordLatency(long latencyMs) {
+        if (latencies.size() < MAX_LATENCY_SAMPLES) latencies.add(latencyMs);
+    }
+
+    public synchronized List<Long> getLatencies() {
+        return new ArrayList<>(latencies);
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            ring.close();
+        } catch (IOException ignored) {
+        }
+        ringFile.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package cse471;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class LocalCatalog {
+
+    private static final int MAX_HELLO_PAYLOAD = 3800;
+
+    public static class Snapshot {
+        public final long version;
+        public final List<String> entries;
+        public final Set<String> hashes;
+        public final List<byte[]> helloPayloads;
+
+        Snapshot(long version, List<String> entries) {
+            this.version = version;
+            this.entries = Collections.unmodifiableList(entries);
+            Set<String> h = new HashSet<>();
+            for (String e : entries) h.add(e.split(":")[0]);
+            this.hashes = Collections.unmodifiableSet(h);
+            this.helloPayloads = Collections.unmodifiableList(encode(entries));
+        }
+
+        public List<String> addedSince(Snapshot older) {
+            List<String> out = new ArrayList<>(entries);
+            out.removeAll(new HashSet<>(older.entries));
+            return out;
+        }
+
+        public List<String> removedSince(Snapshot older) {
+            return older.addedSince(this);
+        }
+
+        private static List<byte[]> encode(List<String> entries) {
+            List<byte[]> payloads = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            for (String e : entries) {
+                if (sb.length() > 0 && sb.length() + 1 + e.length() > MAX_HELLO_PAYLOAD) {
+                    payloads.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    sb.setLength(0);
+                }
+                if (sb.length() > 0) sb.append(',');
+                sb.append(e);
+            }
+            if (sb.length() > 0 || payloads.isEmpty()) payloads.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return payloads;
+        }
+    }
+
+    private final Map<String, String> allFiles = new TreeMap<>();
+    private final List<String> extensions = new ArrayList<>();
+    private volatile Snapshot current = new Snapshot(0, new ArrayList<>());
+
+    public LocalCatalog(Collection<String> extensions) {
+        this.extensions.addAll(extensions);
+    }
+
+    public Snapshot current() {
+        return current;
+    }
+
+    public synchronized Snapshot reset(Map<String, File> indexedFiles) {
+        allFiles.clear();
+        for (Map.Entry<String, File> e : indexedFiles.entrySet()) {
+            allFiles.put(e.getKey(), entryFor(e.getKey(), e.getValue().getName(), e.getValue().length()));
+        }
+        return publish();
+    }
+
+    public synchronized Snapshot applyDelta(List<LibraryWatcher.Entry> added, List<LibraryWatcher.Entry> removed) {
+        for (LibraryWatcher.Entry e : removed) allFiles.remove(e.hash);
+        for (LibraryWatcher.Entry e : added) allFiles.put(e.hash, entryFor(e.hash, e.file.getName(), e.size));
+        return publish();
+    }
+
+    public synchronized Snapshot setExtensions(Collection<String> newExtensions) {
+        extensions.clear();
+        extensions.addAll(newExtensions);
+        return publish();
+    }
+
+    public synchronized boolean isAllowed(String name) {
+        String lowerName = name.toLowerCase();
+        for (String ext : extensions) {
+            if (lowerName.endsWith("." + ext)) return true;
+        }
+        return false;
+    }
+
+    private Snapshot publish() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : allFiles.values()) {
+            String name = entry.split(":")[1];
+            if (isAllowed(name)) entries.add(entry);
+        }
+        current = new Snapshot(current.version + 1, entries);
+        return current;
+    }
+
+    private static String entryFor(String hash, String name, long size) {
+        return hash + ":" + name + ":" + size + ":" + ChunkLayout.chooseChunkSize(size) / 1024;
+    }
+}
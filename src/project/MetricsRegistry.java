@@ -0,0 +1,311 @@
+package cse471;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class MetricsRegistry implements DynamicMBean {
+
+    public static final long[] LATENCY_BUCKETS_NANOS = {
+            1_000_000L, 2_000_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+            250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() { value.increment(); }
+        public void add(long n) { value.add(n); }
+        public long get() { return value.sum(); }
+    }
+
+    public static final class Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long v) { value.set(v); }
+        public void inc() { value.incrementAndGet(); }
+        public void dec() { value.decrementAndGet(); }
+        public long get() { return value.get(); }
+    }
+
+    public static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void observeNanos(long nanos) {
+            int i = 0;
+            while (i < bounds.length && nanos > bounds[i]) i++;
+            buckets[i].increment();
+            sum.add(nanos);
+            count.increment();
+        }
+
+        public long getCount() { return count.sum(); }
+
+        public long getSumNanos() { return sum.sum(); }
+
+        public long percentileUpperBoundNanos(double q) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= target) return bounds[i];
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    private static final class Metric {
+        final String name;
+        final String labels;
+        final String help;
+        final Type type;
+        final Object impl;
+
+        Metric(String name, String labels, String help, Type type, Object impl) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.impl = impl;
+        }
+
+        long value() {
+            if (impl instanceof Counter) return ((Counter) impl).get();
+            if (impl instanceof Gauge) return ((Gauge) impl).get();
+            return ((LongSupplier) impl).getAsLong();
+        }
+    }
+
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+    private ObjectName jmxName;
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) getOrCreate(name, help, Type.COUNTER, labels, new Counter()).impl;
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) getOrCreate(name, help, Type.GAUGE, labels, new Gauge()).impl;
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) getOrCreate(name, help, Type.HISTOGRAM, labels, new Histogram(LATENCY_BUCKETS_NANOS)).impl;
+    }
+
+    public void counterFn(String name, String help, LongSupplier fn, String... labels) {
+        String l = renderLabels(labels);
+        metrics.put(name + "{" + l + "}", new Metric(name, l, help, Type.COUNTER, fn));
+    }
+
+    public void gaugeFn(String name, String help, LongSupplier fn, String... labels) {
+        String l = renderLabels(labels);
+        metrics.put(name + "{" + l + "}", new Metric(name, l, help, Type.GAUGE, fn));
+    }
+
+    public void remove(String name, String... labels) {
+        metrics.remove(name + "{" + renderLabels(labels) + "}");
+    }
+
+    private Metric getOrCreate(String name, String help, Type type, String[] labels, Object impl) {
+        String l = renderLabels(labels);
+        Metric m = metrics.computeIfAbsent(name + "{" + l + "}", k -> new Metric(name, l, help, type, impl));
+        if (m.type != type) throw new IllegalArgumentException("Metric " + name + " already registered as " + m.type);
+        return m;
+    }
+
+    private static String renderLabels(String[] labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name/value pairs");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return sb.toString();
+    }
+
+    private Map<String, List<Metric>> families() {
+        Map<String, List<Metric>> byName = new TreeMap<>();
+        for (Metric m : new TreeMap<>(metrics).values()) {
+            byName.computeIfAbsent(m.name, k -> new ArrayList<>()).add(m);
+        }
+        return byName;
+    }
+
+    public void writePrometheus(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        for (Map.Entry<String, List<Metric>> family : families().entrySet()) {
+            Metric first = family.getValue().get(0);
+            out.println("# HELP " + first.name + " " + first.help);
+            out.println("# TYPE " + first.name + " " + first.type.name().toLowerCase());
+            for (Metric m : family.getValue()) {
+                if (m.type == Type.HISTOGRAM) {
+                    writeHistogram(out, m);
+                } else {
+                    out.println(m.name + (m.labels.isEmpty() ? "" : "{" + m.labels + "}") + " " + m.value());
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(PrintWriter out, Metric m) {
+        Histogram h = (Histogram) m.impl;
+        String prefix = m.labels.isEmpty() ? "" : m.labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < h.bounds.length; i++) {
+            cumulative += h.buckets[i].sum();
+            out.println(m.name + "_bucket{" + prefix + "le=\"" + seconds(h.bounds[i]) + "\"} " + cumulative);
+        }
+        cumulative += h.buckets[h.bounds.length].sum();
+        out.println(m.name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative);
+        String labels = m.labels.isEmpty() ? "" : "{" + m.labels + "}";
+        out.println(m.name + "_sum" + labels + " " + seconds(h.getSumNanos()));
+        out.println(m.name + "_count" + labels + " " + h.getCount());
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    public String toPrometheusText() {
+        StringWriter w = new StringWriter();
+        writePrometheus(w);
+        return w.toString();
+    }
+
+    public HttpServer startHttpServer(String bindAddress, int port) throws IOException {
+        InetAddress addr = bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress);
+        HttpServer server = HttpServer.create(new InetSocketAddress(addr, port), 0);
+        server.createContext("/metrics", ex -> {
+            byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.start();
+        System.out.println("[Metrics] Serving /metrics on " + addr.getHostAddress() + ":" + port);
+        return server;
+    }
+
+    public void registerJmx(String peer) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("cse471:type=Metrics,peer=" + ObjectName.quote(peer));
+            if (!mbs.isRegistered(name)) mbs.registerMBean(this, name);
+            jmxName = name;
+        } catch (Exception e) {
+            System.err.println("[Metrics] JMX registration failed: " + e.getMessage());
+        }
+    }
+
+    public void unregisterJmx() {
+        if (jmxName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+        } catch (Exception e) {
+        }
+        jmxName = null;
+    }
+
+    private Map<String, Object> attributes() {
+        Map<String, Object> attrs = new TreeMap<>();
+        for (Metric m : metrics.values()) {
+            String base = m.name + (m.labels.isEmpty() ? "" : "{" + m.labels.replace("\"", "") + "}");
+            if (m.type == Type.HISTOGRAM) {
+                Histogram h = (Histogram) m.impl;
+                attrs.put(base + ".count", h.getCount());
+                attrs.put(base + ".sumSeconds", h.getSumNanos() / 1e9);
+                attrs.put(base + ".p50Seconds", h.percentileUpperBoundNanos(0.50) / 1e9);
+                attrs.put(base + ".p99Seconds", h.percentileUpperBoundNanos(0.99) / 1e9);
+            } else {
+                attrs.put(base, m.value());
+            }
+        }
+        return attrs;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object v = attributes().get(attribute);
+        if (v == null) throw new AttributeNotFoundException(attribute);
+        return v;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attrs = attributes();
+        AttributeList list = new AttributeList();
+        for (String n : names) {
+            Object v = attrs.get(n);
+            if (v != null) list.add(new Attribute(n, v));
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, Object> e : attributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "P2P peer metrics", infos.toArray(new MBeanAttributeInfo[0]),
+                null, null, null);
+    }
+}
@@ -0,0 +1,127 @@
+package cse471;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class NetworkEmulator {
+
+    public static class LinkProfile {
+        public final long latencyMs;
+        public final long jitterMs;
+        public final double lossRate;
+        public final long bandwidthKbps;
+
+        public LinkProfile(long latencyMs, long jitterMs, double lossRate, long bandwidthKbps) {
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.lossRate = lossRate;
+            this.bandwidthKbps = bandwidthKbps;
+        }
+    }
+
+    private static final int TRANSFER_BLOCK = 16 * 1024;
+    private static final long MAX_QUEUE_NANOS = 500_000_000L;
+
+    private static class LinkQueue {
+        long busyUntilNanos;
+        long lastDeliveryNanos;
+    }
+
+    private final Map<String, LinkProfile> links = new ConcurrentHashMap<>();
+    private final Map<String, LinkQueue> queues = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> carried = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService delivery = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "NetworkEmulator-Delivery");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile LinkProfile defaultProfile = new LinkProfile(0, 0, 0, 0);
+
+    public void setDefaultProfile(LinkProfile profile) {
+        this.defaultProfile = profile;
+    }
+
+    public void setLink(String fromIP, String toIP, LinkProfile profile) {
+        links.put(fromIP + ">" + toIP, profile);
+        queues.remove(fromIP + ">" + toIP);
+    }
+
+    public LinkProfile getLink(String fromIP, String toIP) {
+        return links.getOrDefault(fromIP + ">" + toIP, defaultProfile);
+    }
+
+    public void sendDatagram(String fromIP, String toIP, int bytes, Runnable send) {
+        LinkProfile link = getLink(fromIP, toIP);
+        String key = fromIP + ">" + toIP;
+        long queued = enqueue(key, link, bytes, true);
+        if (queued < 0) return;
+        if (link.lossRate > 0 && ThreadLocalRandom.current().nextDouble() < link.lossRate) return;
+
+        long delay;
+        LinkQueue q = queues.computeIfAbsent(key, k -> new LinkQueue());
+        synchronized (q) {
+            long now = System.nanoTime();
+            long deliverAt = now + queued + oneWayDelay(link, ThreadLocalRandom.current()) * 1_000_000L;
+            deliverAt = Math.max(deliverAt, q.lastDeliveryNanos);
+            q.lastDeliveryNanos = deliverAt;
+            delay = deliverAt - now;
+        }
+        if (delay <= 0) {
+            send.run();
+        } else {
+            delivery.schedule(send, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void roundTrip(String fromIP, String toIP) throws InterruptedException {
+        long delay = oneWayDelay(getLink(fromIP, toIP), ThreadLocalRandom.current())
+                + oneWayDelay(getLink(toIP, fromIP), ThreadLocalRandom.current());
+        if (delay > 0) Thread.sleep(delay);
+    }
+
+    public void transfer(String fromIP, String toIP, int bytes) throws InterruptedException {
+        LinkProfile link = getLink(fromIP, toIP);
+        long queued = enqueue(fromIP + ">" + toIP, link, bytes, false);
+        if (queued > 0) Thread.sleep(queued / 1_000_000L, (int) (queued % 1_000_000L));
+        if (link.lossRate > 0) {
+            int segments = Math.max(1, bytes / TRANSFER_BLOCK);
+            for (int i = 0; i < segments; i++) {
+                if (ThreadLocalRandom.current().nextDouble() < link.lossRate) roundTrip(fromIP, toIP);
+            }
+        }
+    }
+
+    public long getBytesCarried(String fromIP, String toIP) {
+        LongAdder bytes = carried.get(fromIP + ">" + toIP);
+        return bytes == null ? 0 : bytes.sum();
+    }
+
+    private long enqueue(String key, LinkProfile link, int bytes, boolean dropOnOverflow) {
+        if (bytes > 0) carried.computeIfAbsent(key, k -> new LongAdder()).add(bytes);
+        if (link.bandwidthKbps <= 0 || bytes <= 0) return 0;
+        long serialization = bytes * 8_000_000L / link.bandwidthKbps;
+        LinkQueue q = queues.computeIfAbsent(key, k -> new LinkQueue());
+        synchronized (q) {
+            long now = System.nanoTime();
+            long start = Math.max(now, q.busyUntilNanos);
+            if (dropOnOverflow && start - now > MAX_QUEUE_NANOS) return -1;
+            q.busyUntilNanos = start + serialization;
+            return q.busyUntilNanos - now;
+        }
+    }
+
+    public void shutdown() {
+        delivery.shutdownNow();
+    }
+
+    private static long oneWayDelay(LinkProfile link, Random random) {
+        long jitter = link.jitterMs > 0 ? (long) (random.nextGaussian() * link.jitterMs) : 0;
+        return Math.max(0, link.latencyMs + jitter);
+    }
+}
@@ -6,10 +6,12 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class P2PNetworkManager {
 
-    private static final int UDP_PORT = 8888; 
     private static final int MAX_PACKET_SIZE = 4096;
 
     private List<InetAddress> knownPeers = new CopyOnWriteArrayList<>();
@@ -22,45 +24,171 @@ public class P2PNetworkManager {
     private static final byte TYPE_DISCOVERY  = 0x01;
     private static final byte TYPE_HELLO      = 0x02;
     private static final byte TYPE_STATUS     = 0x03;
+    private static final byte TYPE_PING       = 0x04;
+    private static final byte TYPE_PONG       = 0x05;
+    private static final byte TYPE_PEX        = 0x0A;
+    private static final byte TYPE_PEX_REQUEST = 0x0B;
+    private static final byte TYPE_CATALOG_DELTA = 0x0C;
+
+    private static final String[] TYPE_NAMES = {
+            "unknown", "discovery", "hello", "status", "ping", "pong", "gossip", "ihave",
+            "graft", "prune", "pex", "pex_request", "catalog_delta", "chunk_request", "chunk_data", "chunk_ack",
+            "live_announce", "live_subscribe", "live_have", "live_redirect"
+    };
+    private final MetricsRegistry.Counter[] packetsIn = new MetricsRegistry.Counter[TYPE_NAMES.length];
+    private final MetricsRegistry.Counter[] packetsOut = new MetricsRegistry.Counter[TYPE_NAMES.length];
+    private final MetricsRegistry.Counter[] packetsDropped = new MetricsRegistry.Counter[TYPE_NAMES.length];
+    private final MetricsRegistry.Counter[] packetsDeduped = new MetricsRegistry.Counter[TYPE_NAMES.length];
+
+    private static final long PROBE_INTERVAL_MS = 5000;
+    private static final long TREE_TICK_MS = 100;
+    private static final long LINK_TIMEOUT_MS = 3 * PROBE_INTERVAL_MS;
+    private static final int ACTIVE_VIEW_SIZE = 6;
+    private static final long PEX_INTERVAL_MS = 30000;
+    private static final int PEX_SAMPLE_SIZE = 16;
+    private static final int PEX_MAX_PROVIDERS = 100;
+    private static final long PEX_REQUEST_TIMEOUT_MS = 10000;
+    private static final int PEX_MAX_KNOWN_PEERS = 1024;
+    private static final long REANNOUNCE_INTERVAL_MS = 5 * 60 * 1000;
+    private static final long STATE_SAVE_INTERVAL_MS = 60000;
+    private static final int WARM_CONNECTIONS_PER_PEER = 2;
+    private static final int WARM_TIMEOUT_MS = 3000;
+    private static final long WARM_REPEAT_MS = 10000;
+
+    private final PeerRttTable rttTable = new PeerRttTable();
+    private final BroadcastTree broadcastTree;
+    private final UdpChunkTransport udpChunkTransport;
+    private final TcpChunkTransport tcpChunkTransport;
+    private final LiveManager liveManager;
+    private final Map<String, Long> lastHeard = new ConcurrentHashMap<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Map<String, Set<String>> hashProviders = new ConcurrentHashMap<>();
+    private final Map<String, Long> pexRequests = new ConcurrentHashMap<>();
+    private volatile LocalCatalog localCatalog;
+    private final Map<String, Set<String>> peerCatalogs = new ConcurrentHashMap<>();
+    private final PeerStore peerStore;
+    private final Map<String, Long> unverifiedPeers = new ConcurrentHashMap<>();
+    private final Map<String, PeerStore.Record> dormantPeers = new ConcurrentHashMap<>();
+    private volatile long restoredAt;
+    private final Map<String, Long> lastWarmed = new ConcurrentHashMap<>();
+    private final ExecutorService warmExecutor = Executors.newCachedThreadPool();
+    private MetricsRegistry.Counter warmups;
 
     public interface PeerDiscoveryListener {
         void onPeerDiscovered(String peerIP, List<String> filesData);
-        void onStatusReceived(String peerIP, String filename, String progress, String state);
+        void onStatusReceived(String peerIP, String fileHash, String filename, String progress, String state);
+        void onProvidersDiscovered(String fileHash, List<String> peerIPs);
+        void onFilesRemoved(String peerIP, List<String> filesData);
     }
     
     private PeerDiscoveryListener listener;
+    private final PeerConfig config;
 
     public P2PNetworkManager(PeerDiscoveryListener listener) {
+        this(listener, PeerConfig.fromEnv());
+    }
+
+    public P2PNetworkManager(PeerDiscoveryListener listener, PeerConfig config) {
         this.listener = listener;
+        this.config = config;
         this.myPeerID = UUID.randomUUID().toString();
+        this.broadcastTree = new BroadcastTree(myPeerID, ACTIVE_VIEW_SIZE, new BroadcastTree.Link() {
+            @Override
+            public void send(String peer, byte type, byte[] payload) {
+                try {
+                    sendBinaryPacket(type, 0, payload, InetAddress.getByName(peer));
+                } catch (UnknownHostException e) {
+                }
+            }
+
+            @Override
+            public void deliver(String originAddr, byte innerType, byte[] payload) {
+                dispatchToListener(innerType, originAddr, payload);
+            }
+        });
         
-        String bootstrapIp = System.getenv("BOOTSTRAP_PEER");
-        if (bootstrapIp != null && !bootstrapIp.trim().isEmpty()) {
-            String[] parts = bootstrapIp.split("[,;\\s]+");
-            for (String p : parts) {
-                String ip = p.trim();
-                if (ip.isEmpty()) continue;
+        this.udpChunkTransport = new UdpChunkTransport((peer, type, payload) -> {
+            try {
+                sendBinaryPacket(type, 0, payload, InetAddress.getByName(peer));
+            } catch (UnknownHostException e) {
+            }
+        }, config.getMetrics());
+        this.tcpChunkTransport = new TcpChunkTransport(config);
+        this.peerStore = config.getPeerStateFile() == null ? null : new PeerStore(config.getPeerStateFile());
+
+        this.liveManager = new LiveManager(myPeerID, new LiveManager.Link() {
+            @Override
+            public void send(String peer, byte type, byte[] payload) {
                 try {
-                    InetAddress addr = InetAddress.getByName(ip);
-                    knownPeers.add(addr);
-                    System.out.println("[P2P] Bootstrap Peer added: " + ip);
+                    sendBinaryPacket(type, 0, payload, InetAddress.getByName(peer));
                 } catch (UnknownHostException e) {
-                    System.err.println("[P2P] Invalid Bootstrap IP: " + ip);
                 }
-            }}
+            }
+
+            @Override
+            public void broadcast(byte innerType, byte[] payload) {
+                if (running) broadcastTree.broadcast(innerType, payload);
+            }
+
+            @Override
+            public double rttMs(String peer) {
+                return rttTable.getSmoothedRtt(peer);
+            }
+        }, config);
+        liveManager.setTransport(getChunkTransport());
+
+        registerMetrics(config.getMetrics());
+
+        for (String ip : config.getBootstrapPeers()) {
+            try {
+                InetAddress addr = InetAddress.getByName(ip);
+                knownPeers.add(addr);
+                System.out.println("[P2P] Bootstrap Peer added: " + ip);
+            } catch (UnknownHostException e) {
+                System.err.println("[P2P] Invalid Bootstrap IP: " + ip);
+            }
         }
+    }
+
 
+    private void registerMetrics(MetricsRegistry metrics) {
+        for (int t = 0; t < TYPE_NAMES.length; t++) {
+            String name = TYPE_NAMES[t];
+            packetsIn[t] = metrics.counter("p2p_udp_packets_received_total", "UDP packets received by message type", "type", name);
+            packetsOut[t] = metrics.counter("p2p_udp_packets_sent_total", "UDP packets sent by message type", "type", name);
+            packetsDropped[t] = metrics.counter("p2p_udp_packets_dropped_total", "UDP packets discarded as malformed or self-originated", "type", name);
+            packetsDeduped[t] = metrics.counter("p2p_udp_packets_deduped_total", "UDP packets discarded as duplicates", "type", name);
+        }
+        broadcastTree.setDuplicateCounter(packetsDeduped[BroadcastTree.TYPE_GOSSIP]);
+        metrics.counterFn("p2p_udp_bytes_sent_total", "UDP bytes sent", bytesSent::get);
+        metrics.gaugeFn("p2p_known_peers", "Peers currently known to the overlay", () -> knownPeers.size());
+        metrics.gaugeFn("p2p_tree_neighbors", "Active broadcast tree neighbors", () -> broadcastTree.getNeighbors().size());
+        metrics.gaugeFn("p2p_tree_eager_peers", "Broadcast tree neighbors in eager push mode", broadcastTree::getEagerCount);
+        metrics.gaugeFn("p2p_restored_peers_unverified", "Peers restored from the peer state file not yet heard from", () -> unverifiedPeers.size());
+        warmups = metrics.counter("p2p_source_warmups_total", "Connections opened ahead of a stream to warm a source");
+    }
 
     public void start() {
         if (running) return;
         try {
-            this.socket = new DatagramSocket(UDP_PORT);
+            if (config.getBindAddress() == null) {
+                this.socket = new DatagramSocket(config.getUdpPort());
+            } else {
+                this.socket = new DatagramSocket(config.getUdpPort(), InetAddress.getByName(config.getBindAddress()));
+            }
             this.socket.setBroadcast(true);
             this.running = true;
             new Thread(this::listenLoop).start();
-            System.out.println("P2P Network started on UDP Port " + UDP_PORT);
+            new Thread(this::maintenanceLoop, "P2P-Maintenance").start();
+            System.out.println("P2P Network started on UDP Port " + config.getUdpPort());
+
+            restorePeerState();
+            refillTreeNeighbors();
             
             if (!knownPeers.isEmpty()) {
+                for (InetAddress peer : knownPeers) {
+                    sendPexRequest("", peer);
+                }
                 sendDiscovery();
             }
             
@@ -70,7 +198,12 @@ public class P2PNetworkManager {
     }
 
     public void stop() {
+        if (running) savePeerState();
         running = false;
+        warmExecutor.shutdownNow();
+        tcpChunkTransport.close();
+        udpChunkTransport.stop();
+        liveManager.stopAll();
         if (socket != null && !socket.isClosed()) socket.close();
     }
 
@@ -81,30 +214,379 @@ public class P2PNetworkManager {
         floodMessage(TYPE_DISCOVERY, 5, payload, null); 
     }
 
-    public void announcePresence(List<String> myFiles) {
+    public void setLocalCatalog(LocalCatalog localCatalog) {
+        this.localCatalog = localCatalog;
+    }
+
+    public void announcePresence(LocalCatalog.Snapshot snapshot) {
         if (!running) return;
-        String fileListStr = String.join(",", myFiles);
-        byte[] payload = fileListStr.getBytes(StandardCharsets.UTF_8);
-        floodMessage(TYPE_HELLO, 5, payload, null);
+        for (byte[] payload : snapshot.helloPayloads) {
+            broadcastTree.broadcast(TYPE_HELLO, payload);
+        }
     }
     
-    public void broadcastStatus(String filename, String progress, String state) {
+    public void announceDelta(List<String> addedFiles, List<String> removedFiles) {
+        if (!running || (addedFiles.isEmpty() && removedFiles.isEmpty())) return;
+
+        List<String> items = new ArrayList<>();
+        for (String entry : addedFiles) items.add("+" + entry);
+        for (String entry : removedFiles) items.add("-" + entry);
+        byte[] payload = String.join(",", items).getBytes(StandardCharsets.UTF_8);
+        broadcastTree.broadcast(TYPE_CATALOG_DELTA, payload);
+    }
+    
+    public void broadcastStatus(String fileHash, String filename, String progress, String state) {
         if (!running) return;
-        String msg = filename + "|" + progress + "|" + state;
+        String msg = filename + "|" + progress + "|" + state + "|" + fileHash;
         byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
-        floodMessage(TYPE_STATUS, 5, payload, null);
+        broadcastTree.broadcast(TYPE_STATUS, payload);
     }
 
-    public void sendHelloTo(String targetIP, List<String> myFiles) {
+    public void sendHelloTo(String targetIP, LocalCatalog.Snapshot snapshot) {
         try {
-            String fileListStr = String.join(",", myFiles);
-            byte[] payload = fileListStr.getBytes(StandardCharsets.UTF_8);
-            sendBinaryPacket(TYPE_HELLO, 1, payload, InetAddress.getByName(targetIP));
+            InetAddress target = InetAddress.getByName(targetIP);
+            for (byte[] payload : snapshot.helloPayloads) {
+                sendBinaryPacket(TYPE_HELLO, 0, payload, target);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    public void requestProviders(String fileHash) {
+        if (!running) return;
+        for (String peer : broadcastTree.getNeighbors()) {
+            InetAddress target = parseIpLiteral(peer);
+            if (target != null) sendPexRequest(fileHash, target);
+        }
+    }
+
+    private void maintenanceLoop() {
+        long lastProbe = 0;
+        long lastPex = System.currentTimeMillis();
+        long lastAnnounce = System.currentTimeMillis();
+        long lastSave = System.currentTimeMillis();
+        while (running) {
+            long now = System.currentTimeMillis();
+            broadcastTree.tick(now);
+            liveManager.tick(now);
+
+            if (now - lastProbe >= PROBE_INTERVAL_MS) {
+                for (InetAddress peer : knownPeers) {
+                    sendPing(peer);
+                }
+                checkTreeNeighbors(now);
+                revalidateRestoredPeers(now);
+                lastProbe = now;
+            }
+            if (now - lastPex >= PEX_INTERVAL_MS) {
+                pexRequests.values().removeIf(deadline -> deadline < now);
+                requestPexSamples();
+                lastPex = now;
+            }
+            if (now - lastAnnounce >= REANNOUNCE_INTERVAL_MS) {
+                LocalCatalog catalog = localCatalog;
+                if (catalog != null && !catalog.current().entries.isEmpty()) announcePresence(catalog.current());
+                lastAnnounce = now;
+            }
+            if (peerStore != null && now - lastSave >= STATE_SAVE_INTERVAL_MS) {
+                savePeerState();
+                lastSave = now;
+            }
+            try {
+                Thread.sleep(TREE_TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void restorePeerState() {
+        if (peerStore == null) return;
+        int entries = 0;
+        List<PeerStore.Record> records = peerStore.load();
+        for (PeerStore.Record r : records) {
+            if (r.address.equals(config.getBindAddress())) continue;
+            try {
+                InetAddress addr = InetAddress.getByName(r.address);
+                if (!knownPeers.contains(addr)) knownPeers.add(addr);
+            } catch (UnknownHostException e) {
+                continue;
+            }
+            rttTable.restore(r.address, r.rttMs, r.rttVarMs, r.throughputKbps);
+            unverifiedPeers.put(r.address, r.lastSeen);
+            if (r.catalog.isEmpty()) continue;
+            peerCatalogs.computeIfAbsent(r.address, k -> ConcurrentHashMap.newKeySet()).addAll(r.catalog);
+            for (String entry : r.catalog) {
+                String hash = entry.split(":")[0];
+                if (!hash.isEmpty()) hashProviders.computeIfAbsent(hash, k -> ConcurrentHashMap.newKeySet()).add(r.address);
+            }
+            if (listener != null) listener.onPeerDiscovered(r.address, r.catalog);
+            entries += r.catalog.size();
+        }
+        restoredAt = System.currentTimeMillis();
+        if (!records.isEmpty()) {
+            System.out.println("[P2P] Restored " + unverifiedPeers.size() + " peer(s) and " + entries
+                    + " catalog entries from " + config.getPeerStateFile());
+        }
+    }
+
+    private void revalidateRestoredPeers(long now) {
+        if (unverifiedPeers.isEmpty() || now - restoredAt < LINK_TIMEOUT_MS) return;
+        for (Map.Entry<String, Long> e : unverifiedPeers.entrySet()) {
+            String ip = e.getKey();
+            if (unverifiedPeers.remove(ip) == null) continue;
+            Set<String> entries = peerCatalogs.remove(ip);
+            double[] stats = rttTable.export(ip);
+            dormantPeers.put(ip, new PeerStore.Record(ip, e.getValue(),
+                    stats == null ? -1 : stats[0], stats == null ? 0 : stats[1], stats == null ? -1 : stats[2],
+                    entries == null ? new ArrayList<>() : new ArrayList<>(entries)));
+
+            knownPeers.removeIf(a -> a.getHostAddress().equals(ip));
+            lastHeard.remove(ip);
+            rttTable.remove(ip);
+            if (broadcastTree.isNeighbor(ip)) broadcastTree.neighborDown(ip);
+            for (Set<String> providers : hashProviders.values()) providers.remove(ip);
+            if (listener != null && entries != null && !entries.isEmpty()) listener.onFilesRemoved(ip, new ArrayList<>(entries));
+            System.out.println("[P2P] Restored peer " + ip + " did not answer; dropped");
+        }
+    }
+
+    private void savePeerState() {
+        if (peerStore == null) return;
+        Map<String, PeerStore.Record> records = new HashMap<>(dormantPeers);
+        for (InetAddress peer : knownPeers) {
+            String ip = peer.getHostAddress();
+            Long seen = unverifiedPeers.containsKey(ip) ? unverifiedPeers.get(ip) : lastHeard.get(ip);
+            if (seen == null || ip.equals(config.getBindAddress())) continue;
+            double[] stats = rttTable.export(ip);
+            Set<String> entries = peerCatalogs.get(ip);
+            records.put(ip, new PeerStore.Record(ip, seen,
+                    stats == null ? -1 : stats[0], stats == null ? 0 : stats[1], stats == null ? -1 : stats[2],
+                    entries == null ? new ArrayList<>() : new ArrayList<>(entries)));
+        }
+        peerStore.save(records.values());
+    }
+
+    public List<String> warmSources(String requestKey, Collection<String> providers) {
+        ChunkTransport transport = getChunkTransport();
+        if (!running || providers.isEmpty() || !transport.canWarm()) return Collections.emptyList();
+        long now = System.currentTimeMillis();
+        Long last = lastWarmed.put(requestKey, now);
+        if (last != null && now - last < WARM_REPEAT_MS) return Collections.emptyList();
+
+        List<String> best = rttTable.bestSources(providers, Math.max(1, config.getStripeSources()));
+        for (String peer : best) {
+            for (int i = 0; i < WARM_CONNECTIONS_PER_PEER; i++) {
+                warmExecutor.submit(() -> {
+                    try {
+                        transport.warm(peer, requestKey, 0, WARM_TIMEOUT_MS);
+                        warmups.inc();
+                    } catch (IOException e) {
+                    }
+                });
+            }
+        }
+        System.out.println("[P2P] Warming " + best.size() + " source(s) for " + requestKey + ": " + best);
+        return best;
+    }
+
+    private void checkTreeNeighbors(long now) {
+        for (String peer : broadcastTree.getNeighbors()) {
+            Long heard = lastHeard.get(peer);
+            if (heard != null && now - heard > LINK_TIMEOUT_MS) {
+                broadcastTree.neighborDown(peer);
+                System.out.println("[P2P] Tree link down: " + peer);
+            }
+        }
+        refillTreeNeighbors();
+    }
+
+    private void requestPexSamples() {
+        for (String neighbor : broadcastTree.getNeighbors()) {
+            InetAddress target = parseIpLiteral(neighbor);
+            if (target != null) sendPexRequest("", target);
+        }
+    }
+
+    private void sendPexRequest(String fileHash, InetAddress target) {
+        pexRequests.put(target.getHostAddress() + "|" + fileHash, System.currentTimeMillis() + PEX_REQUEST_TIMEOUT_MS);
+        sendBinaryPacket(TYPE_PEX_REQUEST, 0, fileHash.getBytes(StandardCharsets.UTF_8), target);
+    }
+
+    private List<String> sampleLivePeers(String exclude) {
+        List<String> live = getLivePeers();
+        live.remove(exclude);
+        Collections.shuffle(live);
+        return live.subList(0, Math.min(PEX_SAMPLE_SIZE, live.size()));
+    }
+
+    private void sendPex(String fileHash, List<String> peers, boolean selfHolds, InetAddress target) {
+        String msg = fileHash + "|" + (selfHolds ? "1" : "0") + "|" + String.join(",", peers);
+        sendBinaryPacket(TYPE_PEX, 0, msg.getBytes(StandardCharsets.UTF_8), target);
+    }
+
+    private void handlePexRequest(byte[] payload, InetAddress sender) {
+        String fileHash = new String(payload, StandardCharsets.UTF_8);
+        String requester = sender.getHostAddress();
+        if (fileHash.isEmpty()) {
+            sendPex("", sampleLivePeers(requester), false, sender);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> providers = new ArrayList<>();
+        for (String ip : hashProviders.getOrDefault(fileHash, Collections.emptySet())) {
+            Long heard = lastHeard.get(ip);
+            if (ip.equals(requester) || (heard != null && now - heard > LINK_TIMEOUT_MS)) continue;
+            providers.add(ip);
+            if (providers.size() >= PEX_MAX_PROVIDERS) break;
+        }
+        LocalCatalog catalog = localCatalog;
+        boolean selfHolds = catalog != null && catalog.current().hashes.contains(fileHash);
+        sendPex(fileHash, providers, selfHolds, sender);
+    }
+
+    // A PEX reply is only accepted as the answer to a request we sent that peer, and only
+    // IP literals are taken from it, so a reply never triggers a DNS lookup.
+    private void handlePex(byte[] payload, InetAddress sender) {
+        String[] parts = new String(payload, StandardCharsets.UTF_8).split("\\|", -1);
+        if (parts.length < 3) return;
+        String fileHash = parts[0];
+        Long deadline = pexRequests.remove(sender.getHostAddress() + "|" + fileHash);
+        if (deadline == null || deadline < System.currentTimeMillis()) {
+            packetsDropped[TYPE_PEX].inc();
+            return;
+        }
+
+        List<String> peers = new ArrayList<>();
+        if ("1".equals(parts[1])) peers.add(sender.getHostAddress());
+        String[] entries = parts[2].split(",");
+        for (int i = 0; i < entries.length && i < PEX_MAX_PROVIDERS; i++) {
+            InetAddress addr = parseIpLiteral(entries[i]);
+            if (addr == null) continue;
+            if (!knownPeers.contains(addr)) {
+                if (knownPeers.size() >= PEX_MAX_KNOWN_PEERS) continue;
+                addKnownPeer(addr);
+            }
+            peers.add(addr.getHostAddress());
+        }
+
+        if (!fileHash.isEmpty() && !peers.isEmpty()) {
+            Set<String> providers = hashProviders.computeIfAbsent(fileHash, k -> ConcurrentHashMap.newKeySet());
+            List<String> added = new ArrayList<>();
+            for (String ip : peers) {
+                if (providers.size() >= PEX_MAX_PROVIDERS && !providers.contains(ip)) break;
+                providers.add(ip);
+                added.add(ip);
+            }
+            if (listener != null && !added.isEmpty()) listener.onProvidersDiscovered(fileHash, added);
+        }
+    }
+
+    static InetAddress parseIpLiteral(String text) {
+        String[] octets = text.split("\\.", -1);
+        if (octets.length != 4) return null;
+        byte[] addr = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            String o = octets[i];
+            if (o.isEmpty() || o.length() > 3) return null;
+            int v = 0;
+            for (int j = 0; j < o.length(); j++) {
+                char c = o.charAt(j);
+                if (c < '0' || c > '9') return null;
+                v = v * 10 + (c - '0');
+            }
+            if (v > 255) return null;
+            addr[i] = (byte) v;
+        }
+        try {
+            return InetAddress.getByAddress(addr);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private void refillTreeNeighbors() {
+        int free = ACTIVE_VIEW_SIZE - broadcastTree.getNeighbors().size();
+        if (free <= 0) return;
+
+        long now = System.currentTimeMillis();
+        List<String> candidates = new ArrayList<>();
+        for (InetAddress peer : knownPeers) {
+            String ip = peer.getHostAddress();
+            Long heard = lastHeard.get(ip);
+            if (broadcastTree.isNeighbor(ip)) continue;
+            if (heard != null && now - heard > LINK_TIMEOUT_MS) continue;
+            candidates.add(ip);
+        }
+
+        List<String> byProximity = rttTable.sortByProximity(candidates);
+        int nearSlots = (free + 1) / 2;
+        List<String> chosen = new ArrayList<>();
+        for (String ip : byProximity) {
+            if (chosen.size() >= nearSlots || rttTable.getSmoothedRtt(ip) < 0) break;
+            chosen.add(ip);
+        }
+        byProximity.removeAll(chosen);
+        Collections.shuffle(byProximity);
+        for (String ip : byProximity) {
+            if (chosen.size() >= free) break;
+            chosen.add(ip);
+        }
+
+        for (String ip : chosen) {
+            lastHeard.putIfAbsent(ip, now);
+            broadcastTree.neighborUp(ip);
+        }
+    }
+
+    private void sendPing(InetAddress target) {
+        byte[] payload = new byte[8];
+        writeLong(payload, 0, System.nanoTime());
+        sendBinaryPacket(TYPE_PING, 0, payload, target);
+    }
+
+    public PeerRttTable getRttTable() { return rttTable; }
+
+    public List<String> getKnownPeers() {
+        List<String> ips = new ArrayList<>();
+        for (InetAddress peer : knownPeers) ips.add(peer.getHostAddress());
+        return ips;
+    }
+
+    public List<String> getLivePeers() {
+        long now = System.currentTimeMillis();
+        List<String> live = new ArrayList<>();
+        for (InetAddress peer : knownPeers) {
+            String ip = peer.getHostAddress();
+            Long heard = lastHeard.get(ip);
+            if (heard != null && now - heard <= LINK_TIMEOUT_MS) live.add(ip);
+        }
+        return live;
+    }
+
+    public UdpChunkTransport getUdpChunkTransport() {
+        return udpChunkTransport;
+    }
+
+    public LiveManager getLiveManager() {
+        return liveManager;
+    }
+
+    public ChunkTransport getChunkTransport() {
+        if ("udp".equalsIgnoreCase(config.getChunkTransport())) return udpChunkTransport;
+        return tcpChunkTransport;
+    }
+
+    public List<String> getTreeNeighbors() {
+        return broadcastTree.getNeighbors();
+    }
+
+    public List<String> getProvidersByProximity(Collection<String> providerIPs) {
+        return rttTable.sortByProximity(providerIPs);
+    }
+
     private void listenLoop() {
         byte[] buffer = new byte[MAX_PACKET_SIZE];
         while (running) {
@@ -118,54 +600,170 @@ public class P2PNetworkManager {
         }
     }
 
-    private void processPacket(DatagramPacket packet) {
+    void processPacket(DatagramPacket packet) {
         InetAddress senderAddress = packet.getAddress();
         
+        lastHeard.put(senderAddress.getHostAddress(), System.currentTimeMillis());
+        if (!unverifiedPeers.isEmpty() && unverifiedPeers.remove(senderAddress.getHostAddress()) != null) {
+            System.out.println("[P2P] Restored peer " + senderAddress.getHostAddress() + " is alive");
+        }
         addKnownPeer(senderAddress);
 
         byte[] data = packet.getData();
         int length = packet.getLength();
-        if (length < 4) return; 
+        if (length < 4) {
+            packetsDropped[0].inc();
+            return;
+        }
 
         int ttl = data[1] & 0xFF; 
         byte type = data[2];
         int idLen = data[3] & 0xFF;
+        int typeIndex = (type & 0xFF) < TYPE_NAMES.length ? type : 0;
+        packetsIn[typeIndex].inc();
 
-        if (length < 4 + idLen) return;
+        if (length < 4 + idLen) {
+            packetsDropped[typeIndex].inc();
+            return;
+        }
 
         String senderID = new String(data, 4, idLen, StandardCharsets.UTF_8);
-        if (senderID.equals(myPeerID)) return;
+        if (senderID.equals(myPeerID)) {
+            packetsDropped[typeIndex].inc();
+            return;
+        }
+
+        if (type >= UdpChunkTransport.TYPE_CHUNK_REQUEST && type <= UdpChunkTransport.TYPE_CHUNK_ACK) {
+            udpChunkTransport.onPacket(senderAddress.getHostAddress(), type, data, 4 + idLen, length);
+            return;
+        }
+
+        if (type >= LiveManager.TYPE_LIVE_SUBSCRIBE && type <= LiveManager.TYPE_LIVE_REDIRECT) {
+            liveManager.onMessage(senderAddress.getHostAddress(), type, Arrays.copyOfRange(data, 4 + idLen, length));
+            return;
+        }
+
+        if (type == TYPE_PING || type == TYPE_PONG) {
+            handleProbe(type, data, 4 + idLen, length, senderAddress);
+            return;
+        }
+
+        if (type == TYPE_PEX || type == TYPE_PEX_REQUEST) {
+            byte[] payload = Arrays.copyOfRange(data, 4 + idLen, length);
+            if (type == TYPE_PEX) handlePex(payload, senderAddress);
+            else handlePexRequest(payload, senderAddress);
+            return;
+        }
+
+        if (type >= BroadcastTree.TYPE_GOSSIP && type <= BroadcastTree.TYPE_PRUNE) {
+            byte[] payload = Arrays.copyOfRange(data, 4 + idLen, length);
+            broadcastTree.onMessage(senderAddress.getHostAddress(), type, payload, System.currentTimeMillis());
+            return;
+        }
 
         String packetSignature = senderID + "_" + type + "_" + Arrays.hashCode(Arrays.copyOfRange(data, 4 + idLen, length));
-        if (seenPackets.contains(packetSignature)) return; 
+        if (seenPackets.contains(packetSignature)) {
+            packetsDeduped[typeIndex].inc();
+            return;
+        }
         seenPackets.add(packetSignature);
 
         byte[] payload = Arrays.copyOfRange(data, 4 + idLen, length);
 
-        if (type == TYPE_DISCOVERY) {
-            if (listener != null) listener.onPeerDiscovered(senderAddress.getHostAddress(), null);
-        } 
-        else if (type == TYPE_HELLO) {
+        dispatchToListener(type, senderAddress.getHostAddress(), payload);
+
+        if (ttl > 0) {
+            floodMessage(type, ttl - 1, payload, senderAddress);
+        }
+    }
+
+    private void dispatchToListener(byte type, String peerIP, byte[] payload) {
+        if (type == LiveManager.TYPE_LIVE_ANNOUNCE) {
+            liveManager.onMessage(peerIP, type, payload);
+            return;
+        }
+        if (type == TYPE_HELLO) {
             String content = new String(payload, StandardCharsets.UTF_8);
             List<String> files = new ArrayList<>();
             if (!content.isEmpty()) {
                 files = Arrays.asList(content.split(","));
             }
-            if (listener != null) listener.onPeerDiscovered(senderAddress.getHostAddress(), files);
+            for (String entry : files) {
+                String hash = entry.split(":")[0];
+                if (hash.isEmpty()) continue;
+                hashProviders.computeIfAbsent(hash, k -> ConcurrentHashMap.newKeySet()).add(peerIP);
+                Set<String> known = peerCatalogs.computeIfAbsent(peerIP, k -> ConcurrentHashMap.newKeySet());
+                known.removeIf(e -> e.startsWith(hash + ":"));
+                known.add(entry);
+            }
+            if (listener != null) listener.onPeerDiscovered(peerIP, files);
+            return;
+        }
+        if (type == TYPE_CATALOG_DELTA) {
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (String item : new String(payload, StandardCharsets.UTF_8).split(",")) {
+                if (item.length() < 2) continue;
+                String entry = item.substring(1);
+                String hash = entry.split(":")[0];
+                Set<String> known = peerCatalogs.computeIfAbsent(peerIP, k -> ConcurrentHashMap.newKeySet());
+                known.removeIf(e -> e.startsWith(hash + ":"));
+                if (item.charAt(0) == '+') {
+                    added.add(entry);
+                    known.add(entry);
+                    hashProviders.computeIfAbsent(hash, k -> ConcurrentHashMap.newKeySet()).add(peerIP);
+                } else if (item.charAt(0) == '-') {
+                    removed.add(entry);
+                    Set<String> providers = hashProviders.get(hash);
+                    if (providers != null) providers.remove(peerIP);
+                }
+            }
+            if (listener != null) {
+                if (!removed.isEmpty()) listener.onFilesRemoved(peerIP, removed);
+                if (!added.isEmpty()) listener.onPeerDiscovered(peerIP, added);
+            }
+            return;
+        }
+        if (listener == null) return;
+
+        if (type == TYPE_DISCOVERY) {
+            listener.onPeerDiscovered(peerIP, null);
         }
         else if (type == TYPE_STATUS) {
             String content = new String(payload, StandardCharsets.UTF_8);
             String[] parts = content.split("\\|");
             if (parts.length >= 3) {
-                if (listener != null) listener.onStatusReceived(senderAddress.getHostAddress(), parts[0], parts[1], parts[2]);
+                listener.onStatusReceived(peerIP, parts.length >= 4 ? parts[3] : null, parts[0], parts[1], parts[2]);
             }
         }
+    }
+    
+    private void handleProbe(byte type, byte[] data, int offset, int length, InetAddress sender) {
+        if (length - offset < 8) return;
+        if (type == TYPE_PING) {
+            sendBinaryPacket(TYPE_PONG, 0, Arrays.copyOfRange(data, offset, offset + 8), sender);
+        } else {
+            long sentAt = readLong(data, offset);
+            double rttMs = (System.nanoTime() - sentAt) / 1_000_000.0;
+            rttTable.recordSample(sender.getHostAddress(), rttMs);
+        }
+    }
 
-        if (ttl > 0) {
-            floodMessage(type, ttl - 1, payload, senderAddress);
+    private static void writeLong(byte[] buf, int offset, long v) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) v;
+            v >>>= 8;
         }
     }
-    
+
+    private static long readLong(byte[] buf, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
     private void addKnownPeer(InetAddress address) {
         boolean exists = false;
         for (InetAddress peer : knownPeers) {
@@ -177,6 +775,10 @@ public class P2PNetworkManager {
         if (!exists) {
             knownPeers.add(address);
             System.out.println("[P2P] New Peer Discovered via packet: " + address.getHostAddress());
+            if (running) {
+                sendPing(address);
+                refillTreeNeighbors();
+            }
         }
     }
 
@@ -207,11 +809,22 @@ public class P2PNetworkManager {
             System.arraycopy(idBytes, 0, buffer, 4, idLen);
             System.arraycopy(payload, 0, buffer, 4 + idLen, payload.length);
             
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, target, UDP_PORT);
-            socket.send(packet);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, target, config.getUdpPort());
+            NetworkEmulator emulator = config.getNetworkEmulator();
+            if (emulator == null) {
+                socket.send(packet);
+            } else {
+                emulator.sendDatagram(config.getBindAddress(), target.getHostAddress(), buffer.length, () -> {
+                    try { socket.send(packet); } catch (IOException e) {}
+                });
+            }
+            bytesSent.addAndGet(buffer.length);
+            packetsOut[(type & 0xFF) < TYPE_NAMES.length ? type : 0].inc();
         } catch (IOException e) {
         }
     }
+
+    public long getBytesSent() { return bytesSent.get(); }
     
     public String getMyPeerID() { return myPeerID; }
 }
\ No newline at end of file
@@ -1,13 +1,11 @@
 package cse471;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
 import java.util.Timer;
-import java.util.concurrent.ConcurrentHashMap;
 import uk.co.caprica.vlcj.player.component.EmbeddedMediaPlayerComponent;
 import uk.co.caprica.vlcj.factory.discovery.NativeDiscovery;
 
@@ -26,14 +24,16 @@ public class P2PStreamingGUI extends JFrame {
     private JSplitPane rightSplit;
     private JMenuBar mainMenuBar;
 
-    private Map<String, Set<String>> validHashNames = new HashMap<>();
-    private Map<String, Set<String>> hashToPeersMap = new HashMap<>();
-    private Map<String, Long> hashToSizeMap = new HashMap<>();
-    private Map<String, RemoteStreamInfo> remoteStreamStatus = new ConcurrentHashMap<>();
-    
-    private DefaultListModel<String> listModel;
-    private ArrayList<String> listModelHashes = new ArrayList<>();
-    private DefaultTableModel tableModel;
+    private static final long CATALOG_TTL_MS = 15 * 60 * 1000;
+
+    private final PeerConfig config = PeerConfig.fromEnv();
+
+    private final RemoteCatalog remoteCatalog = new RemoteCatalog(CATALOG_TTL_MS);
+    private static final long REMOTE_STREAM_TTL_MS = 10000;
+    private static final String LOCAL_STREAM_KEY = "local";
+
+    private CatalogListModel listModel;
+    private final ActiveStreamsTableModel streamsModel = new ActiveStreamsTableModel();
 
     private P2PNetworkManager networkManager;
     private FileChunkServer fileServer;
@@ -41,6 +41,7 @@ public class P2PStreamingGUI extends JFrame {
     
     private File rootFolder;
     private File bufferFolder;
+    private BufferCache bufferCache;
     private Timer uiUpdateTimer;
 
     private JPanel videoPanel, videoContainer;
@@ -48,20 +49,7 @@ public class P2PStreamingGUI extends JFrame {
     private boolean isFullscreen = false;
     
     private List<String> allowedExtensions = new ArrayList<>(Arrays.asList("mp4", "avi", "mkv"));
-
-    class RemoteStreamInfo {
-        String filename;
-        String progress;
-        String status;
-        long lastUpdate;
-
-        public RemoteStreamInfo(String filename, String progress, String status) {
-            this.filename = filename;
-            this.progress = progress;
-            this.status = status;
-            this.lastUpdate = System.currentTimeMillis();
-        }
-    }
+    private final LocalCatalog localCatalog = new LocalCatalog(allowedExtensions);
 
     public P2PStreamingGUI() {
         setTitle("P2P Video Streaming");
@@ -74,39 +62,50 @@ public class P2PStreamingGUI extends JFrame {
             @Override
             public void onPeerDiscovered(String peerIP, List<String> filesData) {
                 if (filesData == null) {
-                    if (rootFolder != null && networkManager != null) {
-                        List<String> myFileList = scanLocalFilesWithHash();
-                        networkManager.sendHelloTo(peerIP, myFileList);
+                    if (fileServer != null && networkManager != null) {
+                        networkManager.sendHelloTo(peerIP, localCatalog.current());
                     }
                     return; 
                 }
 
-                SwingUtilities.invokeLater(() -> {
-                    boolean changed = false;
-                    for (String entry : filesData) {
-                        String[] parts = entry.split(":");
-                        if (parts.length >= 3) {
-                            String hash = parts[0];
-                            String name = parts[1];
-                            long size = Long.parseLong(parts[2]);
-
-                            validHashNames.computeIfAbsent(hash, k -> new HashSet<>()).add(name);
-                            hashToSizeMap.put(hash, size);
-                            hashToPeersMap.computeIfAbsent(hash, k -> new HashSet<>()).add(peerIP);
-                            changed = true;
-                        }
-                    }
-                    if (changed) refreshVideoList(null);
-                });
+                remoteCatalog.addEntries(peerIP, filesData);
+            }
+
+            @Override
+            public void onStatusReceived(String peerIP, String fileHash, String filename, String progress, String state) {
+                if (ReplicationAgent.IDLE_STATE.equals(state)) return;
+                long now = System.currentTimeMillis();
+                SwingUtilities.invokeLater(() -> streamsModel.upsert(peerIP, filename, peerIP, progress, state, now));
             }
 
             @Override
-            public void onStatusReceived(String peerIP, String filename, String progress, String state) {
-                remoteStreamStatus.put(peerIP, new RemoteStreamInfo(filename, progress, state));
+            public void onFilesRemoved(String peerIP, List<String> filesData) {
+                remoteCatalog.removeEntries(peerIP, filesData);
+            }
+
+            @Override
+            public void onProvidersDiscovered(String fileHash, List<String> peerIPs) {
+                remoteCatalog.addProviders(fileHash, peerIPs);
+                StreamManager sm = currentStreamManager;
+                if (sm != null && sm.getFileHash().equals(fileHash)) {
+                    for (String ip : peerIPs) sm.addSourcePeer(ip);
+                }
             }
         };
 
-        networkManager = new P2PNetworkManager(discoveryListener);
+        if (config.getPeerStateFile() == null) {
+            config.setPeerStateFile(new File(System.getProperty("user.home"), ".p2pvideo-peers"));
+        }
+        networkManager = new P2PNetworkManager(discoveryListener, config);
+        networkManager.setLocalCatalog(localCatalog);
+        config.getMetrics().registerJmx(networkManager.getMyPeerID());
+        if (config.getMetricsPort() > 0) {
+            try {
+                config.getMetrics().startHttpServer(config.getMetricsBindAddress(), config.getMetricsPort());
+            } catch (IOException e) {
+                System.err.println("[Metrics] Could not start metrics endpoint: " + e.getMessage());
+            }
+        }
 
         createUI();
         startUiTimer();
@@ -136,16 +135,20 @@ public class P2PStreamingGUI extends JFrame {
         searchPanel.add(searchField, BorderLayout.CENTER);
         searchPanel.add(searchButton, BorderLayout.EAST);
 
-        listModel = new DefaultListModel<>();
+        listModel = new CatalogListModel(remoteCatalog, this::isAllowedExtension);
         JList<String> videoList = new JList<>(listModel);
+        videoList.addListSelectionListener(e -> {
+            int selectedIndex = videoList.getSelectedIndex();
+            if (e.getValueIsAdjusting() || selectedIndex < 0) return;
+            warmSources(listModel.getRow(selectedIndex).hash);
+        });
         
         JButton streamButton = new JButton("Stream Selected");
         streamButton.addActionListener(e -> {
             int selectedIndex = videoList.getSelectedIndex();
             if (selectedIndex < 0) return;
-            String selectedName = videoList.getSelectedValue();
-            String hash = listModelHashes.get(selectedIndex);
-            startStreaming(hash, selectedName);
+            RemoteCatalog.Row row = listModel.getRow(selectedIndex);
+            startStreaming(row.hash, row.name);
         });
 
         JPanel listContainer = new JPanel(new BorderLayout());
@@ -156,9 +159,7 @@ public class P2PStreamingGUI extends JFrame {
         leftPanel.add(searchPanel, BorderLayout.NORTH);
         leftPanel.add(listContainer, BorderLayout.CENTER);
 
-        String[] columns = {"Video", "Source Peer", "Progress %", "Status"};
-        tableModel = new DefaultTableModel(null, columns);
-        JTable table = new JTable(tableModel);
+        JTable table = new JTable(streamsModel);
         tableScroll = new JScrollPane(table);
         tableScroll.setBorder(BorderFactory.createTitledBorder("Active Streams"));
         tableScroll.setPreferredSize(new Dimension(500, 200));
@@ -204,7 +205,7 @@ public class P2PStreamingGUI extends JFrame {
             if (networkManager != null && networkManager.isRunning()) {
                 networkManager.sendDiscovery();
             }
-            refreshVideoList(searchField.getText());
+            listModel.setQuery(searchField.getText());
         });
   }
     
@@ -282,16 +283,24 @@ public class P2PStreamingGUI extends JFrame {
         });
     }
     
+    private void warmSources(String hash) {
+        Set<String> peers = remoteCatalog.getProviders(hash);
+        long size = remoteCatalog.getSize(hash);
+        if (peers.isEmpty() || size < 0) return;
+        String requestKey = ChunkLayout.announced(size, remoteCatalog.getChunkSize(hash)).requestKey(hash);
+        networkManager.warmSources(requestKey, peers);
+    }
+
     private void startStreaming(String hash, String fileName) {
         if (bufferFolder == null) {
             JOptionPane.showMessageDialog(this, "Please set Buffer Folder first.");
             return;
         }
 
-        Set<String> peers = hashToPeersMap.get(hash);
-        Long size = hashToSizeMap.get(hash);
+        Set<String> peers = remoteCatalog.getProviders(hash);
+        long size = remoteCatalog.getSize(hash);
 
-        if (peers == null || peers.isEmpty()) {
+        if (peers.isEmpty() || size < 0) {
             JOptionPane.showMessageDialog(this, "No sources available.");
             return;
         }
@@ -301,11 +310,16 @@ public class P2PStreamingGUI extends JFrame {
         }
 
         try {
-            List<String> peerList = new ArrayList<>(peers);
-            currentStreamManager = new StreamManager(fileName, hash, size, bufferFolder.getAbsolutePath(), peerList);
+            List<String> peerList = networkManager.getProvidersByProximity(peers);
+            currentStreamManager = new StreamManager(fileName, hash, size, bufferCache, peerList, config);
+            currentStreamManager.setChunkLayout(ChunkLayout.announced(size, remoteCatalog.getChunkSize(hash)));
+            currentStreamManager.setRttTable(networkManager.getRttTable());
+            currentStreamManager.setTransport(networkManager.getChunkTransport());
+            currentStreamManager.setLocalSource(fileServer);
             
             log(">> Starting stream: " + fileName);
             currentStreamManager.startDownload();
+            networkManager.requestProviders(hash);
             
             new Thread(() -> {
                 StreamManager sm = currentStreamManager;
@@ -328,97 +342,62 @@ public class P2PStreamingGUI extends JFrame {
         }
     }
 
-    private List<String> scanLocalFilesWithHash() {
-        List<String> list = new ArrayList<>();
-        if (rootFolder == null) return list;
-
-        File[] files = rootFolder.listFiles((d, name) -> {
-            String lowerName = name.toLowerCase();
-            for (String ext : allowedExtensions) {
-                if (lowerName.endsWith("." + ext)) return true;
-            }
-            return false;
-        });
+    private void onLocalLibraryChanged(List<LibraryWatcher.Entry> added, List<LibraryWatcher.Entry> removed) {
+        LocalCatalog.Snapshot before = localCatalog.current();
+        LocalCatalog.Snapshot after = localCatalog.applyDelta(added, removed);
+        List<String> addedList = after.addedSince(before);
+        List<String> removedList = after.removedSince(before);
+        if (addedList.isEmpty() && removedList.isEmpty()) return;
 
-        if (files != null) {
-            for (File f : files) {
-                try {
-                    String hash = FileChecksum.getFileHash(f);
-                    list.add(hash + ":" + f.getName() + ":" + f.length());
-                    log("Indexed: " + f.getName());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        return list;
+        networkManager.announceDelta(addedList, removedList);
+        SwingUtilities.invokeLater(() -> log("Library changed: +" + addedList.size() + " / -" + removedList.size() + " file(s) announced."));
     }
 
-    private void refreshVideoList(String query) {
-        listModel.clear();
-        listModelHashes.clear();
-        String q = (query == null) ? "" : query.toLowerCase();
-        
-        for (Map.Entry<String, Set<String>> entry : validHashNames.entrySet()) {
-            String hash = entry.getKey();
-            Set<String> names = entry.getValue();
-            for (String name : names) {
-                String lowerName = name.toLowerCase();
-                
-                boolean isExtensionAllowed = false;
-                for (String ext : allowedExtensions) {
-                    if (lowerName.endsWith("." + ext)) {
-                        isExtensionAllowed = true;
-                        break;
-                    }
-                }
-                if (!isExtensionAllowed) continue;
-
-                if (lowerName.contains(q)) {
-                    listModel.addElement(name);
-                    listModelHashes.add(hash);
-                }
-            }
+    private boolean isAllowedExtension(String name) {
+        String lowerName = name.toLowerCase();
+        for (String ext : allowedExtensions) {
+            if (lowerName.endsWith("." + ext)) return true;
         }
+        return false;
     }
 
     private void updateActiveStreamsTable() {
-        tableModel.setRowCount(0); 
         long now = System.currentTimeMillis();
-
-        if (currentStreamManager != null) {
-            String myFileName = currentStreamManager.getFile().getName();
-            int prog = currentStreamManager.getProgress();
-            
-            Map<String, String> activePeersMap = currentStreamManager.getActivePeerStatus();
-            String sourcePeersStr;
-            
-            if (activePeersMap.isEmpty()) {
-                sourcePeersStr = "Connecting...";
-            } else {
-                sourcePeersStr = String.join(", ", activePeersMap.keySet());
-            }
-            
-            tableModel.addRow(new Object[]{myFileName, sourcePeersStr, prog + "%", "Downloading"});
-            
-            if (prog >= 100) {
-                 tableModel.setValueAt("Completed", tableModel.getRowCount()-1, 3);
-            }
+        StreamManager sm = currentStreamManager;
+
+        if (sm != null) {
+            int prog = sm.getProgress();
+            String sourcePeersStr = sm.describeActivePeers();
+            if (sourcePeersStr.isEmpty()) sourcePeersStr = "Connecting...";
+            streamsModel.upsert(LOCAL_STREAM_KEY, sm.getFile().getName(), sourcePeersStr, prog + "%",
+                    prog >= 100 ? "Completed" : "Downloading", now);
+        } else {
+            streamsModel.remove(LOCAL_STREAM_KEY);
         }
 
-        remoteStreamStatus.entrySet().removeIf(entry -> (now - entry.getValue().lastUpdate) > 10000);
+        streamsModel.removeOlderThan(now - REMOTE_STREAM_TTL_MS, LOCAL_STREAM_KEY);
+    }
 
-        for (Map.Entry<String, RemoteStreamInfo> entry : remoteStreamStatus.entrySet()) {
-            String remoteIP = entry.getKey();
-            RemoteStreamInfo info = entry.getValue();
-            tableModel.addRow(new Object[]{info.filename, remoteIP, info.progress, info.status});
-        }
+    private void startFileServer() {
+        if (fileServer != null) fileServer.stop();
+        FileChunkServer server = new FileChunkServer(rootFolder, config);
+        fileServer = server;
+        if (bufferCache != null) server.setBufferCache(bufferCache);
+        networkManager.getUdpChunkTransport().setChunkSource(server);
+        server.setLibraryListener(this::onLocalLibraryChanged);
+        new Thread(() -> {
+            server.start();
+            LocalCatalog.Snapshot snapshot = localCatalog.reset(server.getIndexedFiles());
+            networkManager.announcePresence(snapshot);
+            SwingUtilities.invokeLater(() -> log("Indexed " + snapshot.entries.size() + " local video(s)."));
+        }, "LibraryIndexer").start();
     }
 
     private void cleanupAndExit() {
         if (networkManager != null) networkManager.stop();
         if (fileServer != null) fileServer.stop();
         if (currentStreamManager != null) try { currentStreamManager.close(); } catch(Exception e){}
+        if (bufferCache != null) bufferCache.flush();
         if (vlcPlayer != null) vlcPlayer.release();
         System.exit(0);
     }
@@ -428,6 +407,7 @@ public class P2PStreamingGUI extends JFrame {
         uiUpdateTimer.scheduleAtFixedRate(new java.util.TimerTask() {
             @Override
             public void run() {
+                remoteCatalog.expire(System.currentTimeMillis());
                 SwingUtilities.invokeLater(() -> {
                     if (currentStreamManager != null) {
                         int p = currentStreamManager.getProgress();
@@ -436,7 +416,7 @@ public class P2PStreamingGUI extends JFrame {
                         
                         if (networkManager != null) {
                             String status = (p >= 100) ? "Completed" : "Streaming";
-                            networkManager.broadcastStatus(currentStreamManager.getFile().getName(), p + "%", status);
+                            networkManager.broadcastStatus(currentStreamManager.getFileHash(), currentStreamManager.getFile().getName(), p + "%", status);
                         }
                     }
                     updateActiveStreamsTable();
@@ -453,8 +433,8 @@ public class P2PStreamingGUI extends JFrame {
         mConnect.addActionListener(e -> {
             networkManager.start();
 
-            if (rootFolder != null) {
-                networkManager.announcePresence(scanLocalFilesWithHash());
+            if (fileServer != null) {
+                networkManager.announcePresence(localCatalog.current());
                 log("Announced my local files after connect.");
             } else {
                 log("Root folder not set yet (no files to announce).");
@@ -479,10 +459,7 @@ public class P2PStreamingGUI extends JFrame {
                 rootFolder = fc.getSelectedFile();
                 rootFolderLabel.setText("Root: " + rootFolder.getName());
                 log("Root set: " + rootFolder.getAbsolutePath());
-                if (fileServer != null) fileServer.stop();
-                fileServer = new FileChunkServer(rootFolder);
-                fileServer.start();
-                networkManager.announcePresence(scanLocalFilesWithHash());
+                startFileServer();
             }
         });
         
@@ -494,6 +471,12 @@ public class P2PStreamingGUI extends JFrame {
                  bufferFolder = fc.getSelectedFile();
                  bufferFolderLabel.setText("Buffer: " + bufferFolder.getName());
                  log("Buffer set: " + bufferFolder.getAbsolutePath());
+                 config.setBufferFolder(bufferFolder);
+                 if (bufferCache == null || !bufferCache.getFolder().equals(bufferFolder)) {
+                     if (bufferCache != null) bufferCache.flush();
+                     bufferCache = BufferCache.fromConfig(config);
+                 }
+                 startFileServer();
              }
         });
 
@@ -512,15 +495,13 @@ public class P2PStreamingGUI extends JFrame {
                 }
                 log("File filter updated: " + allowedExtensions);
                 
-                if (rootFolder != null) {
-                    List<String> newFileList = scanLocalFilesWithHash();
-                    if (networkManager != null && networkManager.isRunning()) {
-                        networkManager.announcePresence(newFileList);
-                        log("Re-announced files with new filter.");
-                    }
+                LocalCatalog.Snapshot snapshot = localCatalog.setExtensions(allowedExtensions);
+                if (rootFolder != null && networkManager != null && networkManager.isRunning()) {
+                    networkManager.announcePresence(snapshot);
+                    log("Re-announced files with new filter.");
                 }
                 
-                refreshVideoList(null); 
+                listModel.reload(); 
             }
         });
 
@@ -0,0 +1,223 @@
+package cse471;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class PeerConfig {
+
+    private int udpPort = 8888;
+    private int tcpPort = 8889;
+    private int controlPort = 8890;
+    private String bindAddress = null;
+    private File rootFolder = null;
+    private File bufferFolder = null;
+    private File traceFolder = null;
+    private File peerStateFile = null;
+    private List<String> bootstrapPeers = new ArrayList<>();
+    private int uploadSlots = 4;
+    private long uploadRateKbps = 0;
+    private long uploadPeerRateKbps = 0;
+    private long chunkCacheMb = 64;
+    private long bufferQuotaMb = 0;
+    private String bufferEviction = "lru";
+    private int metricsPort = 0;
+    private String metricsBindAddress = null;
+    private String chunkTransport = "tcp";
+    private String chunking = "fixed";
+    private long liveMaxLatencyMs = 5000;
+    private int liveWindowChunks = 32;
+    private int liveMaxSubscribers = 4;
+    private int fecDataPieces = 0;
+    private int fecParityPieces = 2;
+    private int stripeSources = 4;
+    private long replicationQuotaMb = 0;
+    private long replicationRateKbps = 1024;
+    private NetworkEmulator networkEmulator = null;
+    private MetricsRegistry metrics = new MetricsRegistry();
+
+    public static PeerConfig fromEnv() {
+        PeerConfig config = new PeerConfig();
+        String file = System.getenv("PEER_CONFIG");
+        if (file != null && !file.trim().isEmpty()) {
+            config.loadFile(new File(file.trim()));
+        }
+        config.apply(new Properties(), true);
+        return config;
+    }
+
+    public static PeerConfig load(File propertiesFile) {
+        PeerConfig config = new PeerConfig();
+        config.loadFile(propertiesFile);
+        config.apply(new Properties(), true);
+        return config;
+    }
+
+    private void loadFile(File f) {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(f)) {
+            props.load(in);
+        } catch (IOException e) {
+            System.err.println("[Config] Could not read " + f + ": " + e.getMessage());
+            return;
+        }
+        apply(props, false);
+    }
+
+    private void apply(Properties props, boolean fromEnv) {
+        udpPort = (int) readLong(props, fromEnv, "UDP_PORT", udpPort);
+        tcpPort = (int) readLong(props, fromEnv, "TCP_PORT", tcpPort);
+        controlPort = (int) readLong(props, fromEnv, "CONTROL_PORT", controlPort);
+        uploadSlots = (int) readLong(props, fromEnv, "UPLOAD_SLOTS", uploadSlots);
+        uploadRateKbps = readLong(props, fromEnv, "UPLOAD_RATE_KBPS", uploadRateKbps);
+        uploadPeerRateKbps = readLong(props, fromEnv, "UPLOAD_PEER_RATE_KBPS", uploadPeerRateKbps);
+        chunkCacheMb = readLong(props, fromEnv, "CHUNK_CACHE_MB", chunkCacheMb);
+        bufferQuotaMb = readLong(props, fromEnv, "BUFFER_QUOTA_MB", bufferQuotaMb);
+        metricsPort = (int) readLong(props, fromEnv, "METRICS_PORT", metricsPort);
+        liveMaxLatencyMs = readLong(props, fromEnv, "LIVE_MAX_LATENCY_MS", liveMaxLatencyMs);
+        liveWindowChunks = (int) readLong(props, fromEnv, "LIVE_WINDOW_CHUNKS", liveWindowChunks);
+        liveMaxSubscribers = (int) readLong(props, fromEnv, "LIVE_MAX_SUBSCRIBERS", liveMaxSubscribers);
+        fecDataPieces = (int) readLong(props, fromEnv, "FEC_DATA_PIECES", fecDataPieces);
+        fecParityPieces = (int) readLong(props, fromEnv, "FEC_PARITY_PIECES", fecParityPieces);
+        stripeSources = (int) readLong(props, fromEnv, "STRIPE_SOURCES", stripeSources);
+        replicationQuotaMb = readLong(props, fromEnv, "REPLICATION_QUOTA_MB", replicationQuotaMb);
+        replicationRateKbps = readLong(props, fromEnv, "REPLICATION_RATE_KBPS", replicationRateKbps);
+
+        String bind = read(props, fromEnv, "BIND_ADDRESS");
+        if (bind != null) bindAddress = bind;
+        String metricsBind = read(props, fromEnv, "METRICS_BIND_ADDRESS");
+        if (metricsBind != null) metricsBindAddress = metricsBind;
+        String root = read(props, fromEnv, "ROOT_FOLDER");
+        if (root != null) rootFolder = new File(root);
+        String buffer = read(props, fromEnv, "BUFFER_FOLDER");
+        if (buffer != null) bufferFolder = new File(buffer);
+        String trace = read(props, fromEnv, "TRACE_FOLDER");
+        if (trace != null) traceFolder = new File(trace);
+        String peerState = read(props, fromEnv, "PEER_STATE_FILE");
+        if (peerState != null) peerStateFile = new File(peerState);
+
+        String transport = read(props, fromEnv, "CHUNK_TRANSPORT");
+        if (transport != null) chunkTransport = transport.toLowerCase();
+        String chunkingMode = read(props, fromEnv, "CHUNKING");
+        if (chunkingMode != null) chunking = chunkingMode.toLowerCase();
+        String eviction = read(props, fromEnv, "BUFFER_EVICTION");
+        if (eviction != null) bufferEviction = eviction.toLowerCase();
+
+        String bootstrap = read(props, fromEnv, "BOOTSTRAP_PEER");
+        if (bootstrap != null) {
+            bootstrapPeers = new ArrayList<>();
+            for (String p : bootstrap.split("[,;\\s]+")) {
+                if (!p.trim().isEmpty()) bootstrapPeers.add(p.trim());
+            }
+        }
+    }
+
+    private static String read(Properties props, boolean fromEnv, String key) {
+        String v = fromEnv ? System.getenv(key) : props.getProperty(key);
+        if (v == null || v.trim().isEmpty()) return null;
+        return v.trim();
+    }
+
+    private static long readLong(Properties props, boolean fromEnv, String key, long def) {
+        String v = read(props, fromEnv, key);
+        if (v == null) return def;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid " + key + ": " + v);
+            return def;
+        }
+    }
+
+    public int getUdpPort() { return udpPort; }
+    public void setUdpPort(int udpPort) { this.udpPort = udpPort; }
+
+    public int getTcpPort() { return tcpPort; }
+    public void setTcpPort(int tcpPort) { this.tcpPort = tcpPort; }
+
+    public int getControlPort() { return controlPort; }
+    public void setControlPort(int controlPort) { this.controlPort = controlPort; }
+
+    public String getBindAddress() { return bindAddress; }
+    public void setBindAddress(String bindAddress) { this.bindAddress = bindAddress; }
+
+    public File getRootFolder() { return rootFolder; }
+    public void setRootFolder(File rootFolder) { this.rootFolder = rootFolder; }
+
+    public File getBufferFolder() { return bufferFolder; }
+    public void setBufferFolder(File bufferFolder) { this.bufferFolder = bufferFolder; }
+
+    public File getTraceFolder() { return traceFolder; }
+    public void setTraceFolder(File traceFolder) { this.traceFolder = traceFolder; }
+
+    public File getPeerStateFile() { return peerStateFile; }
+    public void setPeerStateFile(File peerStateFile) { this.peerStateFile = peerStateFile; }
+
+    public List<String> getBootstrapPeers() { return bootstrapPeers; }
+    public void setBootstrapPeers(List<String> bootstrapPeers) { this.bootstrapPeers = new ArrayList<>(bootstrapPeers); }
+
+    public int getUploadSlots() { return uploadSlots; }
+    public void setUploadSlots(int uploadSlots) { this.uploadSlots = uploadSlots; }
+
+    public long getUploadRateKbps() { return uploadRateKbps; }
+    public void setUploadRateKbps(long uploadRateKbps) { this.uploadRateKbps = uploadRateKbps; }
+
+    public long getUploadPeerRateKbps() { return uploadPeerRateKbps; }
+    public void setUploadPeerRateKbps(long uploadPeerRateKbps) { this.uploadPeerRateKbps = uploadPeerRateKbps; }
+
+    public long getChunkCacheMb() { return chunkCacheMb; }
+    public void setChunkCacheMb(long chunkCacheMb) { this.chunkCacheMb = chunkCacheMb; }
+
+    public long getBufferQuotaMb() { return bufferQuotaMb; }
+    public void setBufferQuotaMb(long bufferQuotaMb) { this.bufferQuotaMb = bufferQuotaMb; }
+
+    public String getChunking() { return chunking; }
+    public void setChunking(String chunking) { this.chunking = chunking.toLowerCase(); }
+    public boolean isContentDefinedChunking() { return "cdc".equals(chunking); }
+
+    public long getLiveMaxLatencyMs() { return liveMaxLatencyMs; }
+    public void setLiveMaxLatencyMs(long liveMaxLatencyMs) { this.liveMaxLatencyMs = liveMaxLatencyMs; }
+
+    public int getLiveWindowChunks() { return liveWindowChunks; }
+    public void setLiveWindowChunks(int liveWindowChunks) { this.liveWindowChunks = liveWindowChunks; }
+
+    public int getLiveMaxSubscribers() { return liveMaxSubscribers; }
+    public void setLiveMaxSubscribers(int liveMaxSubscribers) { this.liveMaxSubscribers = liveMaxSubscribers; }
+
+    public String getBufferEviction() { return bufferEviction; }
+    public void setBufferEviction(String bufferEviction) { this.bufferEviction = bufferEviction.toLowerCase(); }
+
+    public int getMetricsPort() { return metricsPort; }
+    public void setMetricsPort(int metricsPort) { this.metricsPort = metricsPort; }
+
+    public String getMetricsBindAddress() { return metricsBindAddress != null ? metricsBindAddress : bindAddress; }
+    public void setMetricsBindAddress(String metricsBindAddress) { this.metricsBindAddress = metricsBindAddress; }
+
+    public String getChunkTransport() { return chunkTransport; }
+    public void setChunkTransport(String chunkTransport) { this.chunkTransport = chunkTransport; }
+
+    public int getFecDataPieces() { return fecDataPieces; }
+    public void setFecDataPieces(int fecDataPieces) { this.fecDataPieces = fecDataPieces; }
+
+    public int getFecParityPieces() { return fecParityPieces; }
+    public void setFecParityPieces(int fecParityPieces) { this.fecParityPieces = fecParityPieces; }
+
+    public int getStripeSources() { return stripeSources; }
+    public void setStripeSources(int stripeSources) { this.stripeSources = stripeSources; }
+
+    public long getReplicationQuotaMb() { return replicationQuotaMb; }
+    public void setReplicationQuotaMb(long replicationQuotaMb) { this.replicationQuotaMb = replicationQuotaMb; }
+
+    public long getReplicationRateKbps() { return replicationRateKbps; }
+    public void setReplicationRateKbps(long replicationRateKbps) { this.replicationRateKbps = replicationRateKbps; }
+
+    public MetricsRegistry getMetrics() { return metrics; }
+    public void setMetrics(MetricsRegistry metrics) { this.metrics = metrics; }
+
+    public NetworkEmulator getNetworkEmulator() { return networkEmulator; }
+    public void setNetworkEmulator(NetworkEmulator networkEmulator) { this.networkEmulator = networkEmulator; }
+}
@@ -0,0 +1,485 @@
+package cse471;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class PeerDaemon {
+
+    private static final long CATALOG_TTL_MS = 15 * 60 * 1000;
+
+    private final PeerConfig config;
+    private final LocalCatalog localCatalog = new LocalCatalog(Arrays.asList("mp4", "avi", "mkv"));
+    private final RemoteCatalog remoteCatalog = new RemoteCatalog(CATALOG_TTL_MS);
+    private final Map<String, StreamManager> streams = new ConcurrentHashMap<>();
+    private final P2PNetworkManager networkManager;
+
+    private volatile FileChunkServer fileServer;
+    private BufferCache bufferCache;
+    private volatile ReplicationAgent replicationAgent;
+    private HttpServer controlServer;
+    private HttpServer metricsServer;
+    private ScheduledExecutorService timer;
+
+    public PeerDaemon(PeerConfig config) {
+        this.config = config;
+        if (config.getPeerStateFile() == null && config.getBufferFolder() != null) {
+            config.setPeerStateFile(new File(config.getBufferFolder(), ".peers"));
+        }
+        this.networkManager = new P2PNetworkManager(new P2PNetworkManager.PeerDiscoveryListener() {
+            @Override
+            public void onPeerDiscovered(String peerIP, List<String> filesData) {
+                if (filesData == null) {
+                    if (fileServer != null) networkManager.sendHelloTo(peerIP, localCatalog.current());
+                    return;
+                }
+                remoteCatalog.addEntries(peerIP, filesData);
+            }
+
+            @Override
+            public void onStatusReceived(String peerIP, String fileHash, String filename, String progress, String state) {
+                ReplicationAgent agent = replicationAgent;
+                if (agent == null) return;
+                if (ReplicationAgent.IDLE_STATE.equals(state)) agent.onIdleAgent(peerIP);
+                else agent.onViewer(peerIP, fileHash);
+            }
+
+            @Override
+            public void onProvidersDiscovered(String fileHash, List<String> peerIPs) {
+                remoteCatalog.addProviders(fileHash, peerIPs);
+                StreamManager sm = streams.get(fileHash);
+                if (sm != null) {
+                    for (String ip : peerIPs) sm.addSourcePeer(ip);
+                }
+            }
+
+            @Override
+            public void onFilesRemoved(String peerIP, List<String> filesData) {
+                remoteCatalog.removeEntries(peerIP, filesData);
+            }
+        }, config);
+        networkManager.setLocalCatalog(localCatalog);
+    }
+
+    public void start() throws IOException {
+        networkManager.start();
+        bufferCache = BufferCache.fromConfig(config);
+        if (config.getReplicationQuotaMb() > 0 && bufferCache != null) replicationAgent = new ReplicationAgent(this, config);
+        if (config.getRootFolder() != null || bufferCache != null) startSeeding(config.getRootFolder());
+        networkManager.sendDiscovery();
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        timer.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+        if (replicationAgent != null) {
+            timer.scheduleAtFixedRate(replicationAgent::tick, ReplicationAgent.EVAL_INTERVAL_MS,
+                    ReplicationAgent.EVAL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        if (config.getControlPort() > 0) startControlServer();
+        config.getMetrics().registerJmx(networkManager.getMyPeerID());
+        if (config.getMetricsPort() > 0) metricsServer = config.getMetrics().startHttpServer(config.getMetricsBindAddress(), config.getMetricsPort());
+    }
+
+    public void stop() {
+        if (controlServer != null) controlServer.stop(0);
+        if (metricsServer != null) metricsServer.stop(0);
+        config.getMetrics().unregisterJmx();
+        if (timer != null) timer.shutdownNow();
+        if (replicationAgent != null) replicationAgent.stop();
+        for (StreamManager sm : streams.values()) {
+            try { sm.close(); } catch (IOException e) {}
+        }
+        streams.clear();
+        if (fileServer != null) fileServer.stop();
+        if (bufferCache != null) bufferCache.flush();
+        networkManager.stop();
+    }
+
+    public synchronized void startSeeding(File folder) {
+        if (fileServer != null) fileServer.stop();
+        FileChunkServer server = new FileChunkServer(folder, config);
+        if (bufferCache != null) server.setBufferCache(bufferCache);
+        server.setLiveManager(networkManager.getLiveManager());
+        ReplicationAgent agent = replicationAgent;
+        if (agent != null) server.setRequestListener(agent::onViewer);
+        server.setLibraryListener((added, removed) -> {
+            LocalCatalog.Snapshot before = localCatalog.current();
+            LocalCatalog.Snapshot after = localCatalog.applyDelta(added, removed);
+            networkManager.announceDelta(after.addedSince(before), after.removedSince(before));
+        });
+        server.start();
+        networkManager.getUdpChunkTransport().setChunkSource(server);
+        fileServer = server;
+        networkManager.announcePresence(localCatalog.reset(server.getIndexedFiles()));
+        System.out.println("[Daemon] Seeding " + localCatalog.current().entries.size() + " file(s) from "
+                + (folder != null ? folder : "buffer cache"));
+    }
+
+    public StreamManager startStream(String hash) throws IOException {
+        StreamManager existing = streams.get(hash);
+        if (existing != null) return existing;
+        ReplicationAgent agent = replicationAgent;
+        StreamManager sm = agent == null ? null : agent.handOver(hash);
+        if (sm != null) {
+            streams.put(hash, sm);
+        } else {
+            sm = createStream(hash);
+            streams.put(hash, sm);
+            sm.startDownload();
+        }
+        networkManager.requestProviders(hash);
+        System.out.println("[Daemon] Starting stream: " + sm.getFileName());
+        return sm;
+    }
+
+    StreamManager createStream(String hash) throws IOException {
+        if (bufferCache == null) throw new IllegalStateException("BUFFER_FOLDER is not set");
+
+        Set<String> peers = remoteCatalog.getProviders(hash);
+        long size = remoteCatalog.getSize(hash);
+        List<RemoteCatalog.Row> rows = remoteCatalog.search("", null);
+        String name = null;
+        for (RemoteCatalog.Row row : rows) {
+            if (row.hash.equals(hash)) {
+                name = row.name;
+                break;
+            }
+        }
+        if (peers.isEmpty() || size < 0 || name == null) throw new IllegalStateException("No sources available for " + hash);
+
+        StreamManager sm = new StreamManager(name, hash, size, bufferCache,
+                networkManager.getProvidersByProximity(peers), config);
+        sm.setChunkLayout(ChunkLayout.announced(size, remoteCatalog.getChunkSize(hash)));
+        sm.setRttTable(networkManager.getRttTable());
+        sm.setTransport(networkManager.getChunkTransport());
+        sm.setLocalSource(fileServer);
+        return sm;
+    }
+
+    public List<String> warmStream(String hash) {
+        Set<String> peers = remoteCatalog.getProviders(hash);
+        long size = remoteCatalog.getSize(hash);
+        if (peers.isEmpty() || size < 0 || streams.containsKey(hash)) return Collections.emptyList();
+        String requestKey = ChunkLayout.announced(size, remoteCatalog.getChunkSize(hash)).requestKey(hash);
+        return networkManager.warmSources(requestKey, peers);
+    }
+
+    public String publishLive(File file, String name) throws IOException {
+        if (fileServer == null) startSeeding(config.getRootFolder());
+        return networkManager.getLiveManager().publish(file, name);
+    }
+
+    public LiveStream watchLive(String streamId) throws IOException {
+        if (fileServer == null) startSeeding(config.getRootFolder());
+        return networkManager.getLiveManager().watch(streamId);
+    }
+
+    public boolean stopLive(String streamId) {
+        return networkManager.getLiveManager().stop(streamId);
+    }
+
+    public boolean stopStream(String hash) throws IOException {
+        StreamManager sm = streams.remove(hash);
+        if (sm == null) return false;
+        sm.close();
+        return true;
+    }
+
+    public Map<String, StreamManager> getStreams() {
+        return streams;
+    }
+
+    public RemoteCatalog getRemoteCatalog() {
+        return remoteCatalog;
+    }
+
+    public P2PNetworkManager getNetworkManager() {
+        return networkManager;
+    }
+
+    public FileChunkServer getFileServer() {
+        return fileServer;
+    }
+
+    public BufferCache getBufferCache() {
+        return bufferCache;
+    }
+
+    public LocalCatalog getLocalCatalog() {
+        return localCatalog;
+    }
+
+    public ReplicationAgent getReplicationAgent() {
+        return replicationAgent;
+    }
+
+    private void tick() {
+        try {
+            remoteCatalog.expire(System.currentTimeMillis());
+            for (StreamManager sm : streams.values()) {
+                int p = sm.getProgress();
+                networkManager.broadcastStatus(sm.getFileHash(), sm.getFileName(), p + "%", p >= 100 ? "Completed" : "Streaming");
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startControlServer() throws IOException {
+        controlServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getControlPort()), 0);
+        controlServer.createContext("/status", ex -> respond(ex, 200, statusJson()));
+        controlServer.createContext("/peers", ex -> respond(ex, 200, peersJson()));
+        controlServer.createContext("/catalog", ex -> respond(ex, 200, catalogJson(query(ex).get("q"))));
+        controlServer.createContext("/streams", this::handleStreams);
+        controlServer.createContext("/seed", this::handleSeed);
+        controlServer.createContext("/trace", this::handleTrace);
+        controlServer.createContext("/live", this::handleLive);
+        controlServer.createContext("/metrics", ex -> {
+            byte[] body = config.getMetrics().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        controlServer.setExecutor(Executors.newCachedThreadPool());
+        controlServer.start();
+        System.out.println("[Daemon] Control API on http://127.0.0.1:" + config.getControlPort());
+    }
+
+    private void handleStreams(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod();
+        String hash = query(ex).get("hash");
+        try {
+            if (ex.getRequestURI().getPath().equals("/streams/warm") && hash != null) {
+                List<String> warmed = warmStream(hash);
+                respond(ex, 200, "{\"warming\":" + quote(hash) + ",\"sources\":" + warmed.size() + "}");
+            } else if ("GET".equals(method)) {
+                respond(ex, 200, streamsJson());
+            } else if ("POST".equals(method) && hash != null) {
+                startStream(hash);
+                respond(ex, 200, "{\"started\":" + quote(hash) + "}");
+            } else if ("DELETE".equals(method) && hash != null) {
+                respond(ex, stopStream(hash) ? 200 : 404, "{\"stopped\":" + quote(hash) + "}");
+            } else {
+                respond(ex, 400, "{\"error\":\"use GET, POST ?hash= or DELETE ?hash=\"}");
+            }
+        } catch (IllegalStateException | IOException e) {
+            respond(ex, 409, "{\"error\":" + quote(e.getMessage()) + "}");
+        }
+    }
+
+    private void handleSeed(HttpExchange ex) throws IOException {
+        String folder = query(ex).get("folder");
+        if (!"POST".equals(ex.getRequestMethod()) || folder == null || !new File(folder).isDirectory()) {
+            respond(ex, 400, "{\"error\":\"POST ?folder=<existing directory>\"}");
+            return;
+        }
+        startSeeding(new File(folder));
+        respond(ex, 200, "{\"seeding\":" + localCatalog.current().entries.size() + "}");
+    }
+
+    private void handleLive(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod();
+        Map<String, String> q = query(ex);
+        String stream = q.get("stream");
+        try {
+            if (ex.getRequestURI().getPath().equals("/live/play") && stream != null) {
+                playLive(ex, stream);
+            } else if ("GET".equals(method)) {
+                respond(ex, 200, liveJson());
+            } else if ("POST".equals(method) && q.get("file") != null) {
+                File file = resolveInRoot(q.get("file"));
+                String id = publishLive(file, q.getOrDefault("name", file.getName()));
+                respond(ex, 200, "{\"publishing\":" + quote(id) + "}");
+            } else if ("POST".equals(method) && stream != null) {
+                watchLive(stream);
+                respond(ex, 200, "{\"watching\":" + quote(stream) + "}");
+            } else if ("DELETE".equals(method) && stream != null) {
+                respond(ex, stopLive(stream) ? 200 : 404, "{\"stopped\":" + quote(stream) + "}");
+            } else {
+                respond(ex, 400, "{\"error\":\"use GET, POST ?file=[&name=], POST ?stream=, DELETE ?stream= or GET /live/play?stream=\"}");
+            }
+        } catch (IllegalStateException | IOException e) {
+            respond(ex, 409, "{\"error\":" + quote(e.getMessage()) + "}");
+        }
+    }
+
+    private File resolveInRoot(String path) throws IOException {
+        File root = config.getRootFolder();
+        if (root == null) throw new IllegalStateException("ROOT_FOLDER is not set");
+        File file = new File(path);
+        if (!file.isAbsolute()) file = new File(root, path);
+        String rootPath = root.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(rootPath)) throw new IllegalStateException(path + " is outside ROOT_FOLDER");
+        return file;
+    }
+
+    private void playLive(HttpExchange ex, String streamId) throws IOException {
+        LiveStream stream = watchLive(streamId);
+        ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        ex.sendResponseHeaders(200, 0);
+        byte[] buffer = new byte[256 * 1024];
+        try (OutputStream out = ex.getResponseBody()) {
+            long index = -1;
+            while (!stream.isPastEnd(index)) {
+                if (index < 0) {
+                    if (stream.getHead() >= 0) index = stream.getFirstRetained();
+                    else if (stream.isEnded()) break;
+                    else Thread.sleep(100);
+                    continue;
+                }
+                if (index < stream.getOldest()) index = stream.getOldest();
+                int n = stream.await(index, buffer, 1000);
+                if (n > 0) {
+                    out.write(buffer, 0, n);
+                    out.flush();
+                    index++;
+                } else if (n == LiveStream.SKIPPED) {
+                    index++;
+                } else if (stream != networkManager.getLiveManager().getStream(streamId)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String liveJson() {
+        LiveManager live = networkManager.getLiveManager();
+        List<String> items = new ArrayList<>();
+        for (LiveManager.Announcement a : live.getAnnouncements().values()) {
+            items.add("{\"stream\":" + quote(a.streamId) + ",\"name\":" + quote(a.name) + ",\"source\":" + quote(a.source) +
+                    ",\"head\":" + a.getHead() + ",\"ended\":" + a.isEnded() +
+                    ",\"watching\":" + (live.getStream(a.streamId) != null) + "}");
+        }
+        return "[" + String.join(",", items) + "]";
+    }
+
+    private void handleTrace(HttpExchange ex) throws IOException {
+        StreamManager sm = streams.get(String.valueOf(query(ex).get("hash")));
+        if (sm == null) {
+            respond(ex, 404, "{\"error\":\"no active stream for hash\"}");
+            return;
+        }
+        StringWriter body = new StringWriter();
+        sm.getTrace().writeJsonLines(body);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        ex.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String statusJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"peerId\":").append(quote(networkManager.getMyPeerID()));
+        sb.append(",\"running\":").append(networkManager.isRunning());
+        sb.append(",\"knownPeers\":").append(networkManager.getKnownPeers().size());
+        sb.append(",\"treeNeighbors\":").append(networkManager.getTreeNeighbors().size());
+        sb.append(",\"localFiles\":").append(localCatalog.current().entries.size());
+        sb.append(",\"remoteTitles\":").append(remoteCatalog.getRowCount());
+        sb.append(",\"activeStreams\":").append(streams.size());
+        FileChunkServer server = fileServer;
+        if (server != null) {
+            ChunkCache cache = server.getChunkCache();
+            sb.append(",\"chunkCache\":{\"hits\":").append(cache.getHits())
+                    .append(",\"misses\":").append(cache.getMisses())
+                    .append(",\"evictions\":").append(cache.getEvictions())
+                    .append(",\"chunks\":").append(cache.getCachedChunks()).append("}");
+        }
+        return sb.append("}").toString();
+    }
+
+    private String peersJson() {
+        PeerRttTable rtt = networkManager.getRttTable();
+        List<String> items = new ArrayList<>();
+        for (String ip : networkManager.getKnownPeers()) {
+            items.add("{\"ip\":" + quote(ip) + ",\"rttMs\":" + String.format(Locale.ROOT, "%.2f", rtt.getSmoothedRtt(ip)) +
+                    ",\"jitterMs\":" + String.format(Locale.ROOT, "%.2f", rtt.getJitter(ip)) + "}");
+        }
+        return "[" + String.join(",", items) + "]";
+    }
+
+    private String catalogJson(String q) {
+        List<String> items = new ArrayList<>();
+        for (RemoteCatalog.Row row : remoteCatalog.search(q, null)) {
+            items.add("{\"hash\":" + quote(row.hash) + ",\"name\":" + quote(row.name) +
+                    ",\"size\":" + remoteCatalog.getSize(row.hash) +
+                    ",\"providers\":" + remoteCatalog.getProviders(row.hash).size() + "}");
+        }
+        return "[" + String.join(",", items) + "]";
+    }
+
+    private String streamsJson() {
+        List<String> items = new ArrayList<>();
+        for (StreamManager sm : streams.values()) {
+            items.add("{\"hash\":" + quote(sm.getFileHash()) + ",\"name\":" + quote(sm.getFileName()) +
+                    ",\"progress\":" + sm.getProgress() + ",\"ready\":" + sm.isReadyToPlay() +
+                    ",\"activePeers\":" + sm.getActivePeerStatus().size() + "}");
+        }
+        return "[" + String.join(",", items) + "]";
+    }
+
+    private static Map<String, String> query(HttpExchange ex) {
+        Map<String, String> params = new HashMap<>();
+        String raw = ex.getRequestURI().getRawQuery();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        PeerConfig config = args.length > 0 ? PeerConfig.load(new File(args[0])) : PeerConfig.fromEnv();
+        PeerDaemon daemon = new PeerDaemon(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+        daemon.start();
+    }
+}
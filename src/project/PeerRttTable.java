@@ -0,0 +1,147 @@
+package cse471;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PeerRttTable {
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final long STALE_AFTER_MS = 30000;
+    private static final double NEAR_RTT_FACTOR = 2.0;
+    private static final double NEAR_RTT_SLACK_MS = 5.0;
+    private static final double THROUGHPUT_ALPHA = 0.25;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        double srttMs;
+        double rttVarMs;
+        long lastSampleTime;
+        int samples;
+        double throughputKbps = -1;
+    }
+
+    public void recordSample(String peerIP, double rttMs) {
+        if (rttMs < 0) return;
+        Entry e = entries.computeIfAbsent(peerIP, k -> new Entry());
+        synchronized (e) {
+            if (e.samples == 0) {
+                e.srttMs = rttMs;
+                e.rttVarMs = rttMs / 2;
+            } else {
+                e.rttVarMs = (1 - BETA) * e.rttVarMs + BETA * Math.abs(e.srttMs - rttMs);
+                e.srttMs = (1 - ALPHA) * e.srttMs + ALPHA * rttMs;
+            }
+            e.samples++;
+            e.lastSampleTime = System.currentTimeMillis();
+        }
+    }
+
+    public double getSmoothedRtt(String peerIP) {
+        Entry e = entries.get(peerIP);
+        if (e == null) return -1;
+        synchronized (e) {
+            if (System.currentTimeMillis() - e.lastSampleTime > STALE_AFTER_MS) return -1;
+            return e.srttMs;
+        }
+    }
+
+    public double getJitter(String peerIP) {
+        Entry e = entries.get(peerIP);
+        if (e == null) return -1;
+        synchronized (e) {
+            if (System.currentTimeMillis() - e.lastSampleTime > STALE_AFTER_MS) return -1;
+            return e.rttVarMs;
+        }
+    }
+
+    public void recordThroughput(String peerIP, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+        double kbps = bytes * 8_000_000.0 / nanos;
+        Entry e = entries.computeIfAbsent(peerIP, k -> new Entry());
+        synchronized (e) {
+            e.throughputKbps = e.throughputKbps < 0 ? kbps
+                    : (1 - THROUGHPUT_ALPHA) * e.throughputKbps + THROUGHPUT_ALPHA * kbps;
+        }
+    }
+
+    public double getThroughputKbps(String peerIP) {
+        Entry e = entries.get(peerIP);
+        if (e == null) return -1;
+        synchronized (e) {
+            return e.throughputKbps;
+        }
+    }
+
+    public double[] export(String peerIP) {
+        Entry e = entries.get(peerIP);
+        if (e == null) return null;
+        synchronized (e) {
+            if (e.samples == 0 && e.lastSampleTime == 0 && e.throughputKbps < 0) return null;
+            return new double[]{e.lastSampleTime == 0 ? -1 : e.srttMs, e.rttVarMs, e.throughputKbps};
+        }
+    }
+
+    public void restore(String peerIP, double srttMs, double rttVarMs, double throughputKbps) {
+        Entry e = entries.computeIfAbsent(peerIP, k -> new Entry());
+        synchronized (e) {
+            if (e.samples > 0) return;
+            if (srttMs >= 0) {
+                e.srttMs = srttMs;
+                e.rttVarMs = rttVarMs;
+                e.lastSampleTime = System.currentTimeMillis();
+            }
+            e.throughputKbps = throughputKbps;
+        }
+    }
+
+    public void remove(String peerIP) {
+        entries.remove(peerIP);
+    }
+
+    public List<String> sortByProximity(Collection<String> peers) {
+        List<String> sorted = new ArrayList<>(peers);
+        Collections.shuffle(sorted);
+        sorted.sort(Comparator.comparingDouble(this::sortKey));
+        return sorted;
+    }
+
+    public List<String> nearestTier(List<String> peers) {
+        double best = Double.MAX_VALUE;
+        for (String p : peers) {
+            double rtt = getSmoothedRtt(p);
+            if (rtt >= 0 && rtt < best) best = rtt;
+        }
+        if (best == Double.MAX_VALUE) return peers;
+
+        double limit = best * NEAR_RTT_FACTOR + NEAR_RTT_SLACK_MS;
+        List<String> near = new ArrayList<>();
+        for (String p : peers) {
+            double rtt = getSmoothedRtt(p);
+            if (rtt >= 0 && rtt <= limit) near.add(p);
+        }
+        return near;
+    }
+
+    public List<String> bestSources(Collection<String> peers, int limit) {
+        List<String> byProximity = sortByProximity(peers);
+        List<String> best = new ArrayList<>(nearestTier(byProximity));
+        best.sort(Comparator.comparingDouble(p -> -getThroughputKbps(p)));
+        for (String p : byProximity) {
+            if (!best.contains(p)) best.add(p);
+        }
+        return best.subList(0, Math.min(limit, best.size()));
+    }
+
+    private double sortKey(String peerIP) {
+        double rtt = getSmoothedRtt(peerIP);
+        if (rtt < 0) return Double.MAX_VALUE;
+        return rtt + getJitter(peerIP);
+    }
+}
@@ -0,0 +1,113 @@
+package cse471;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+public class PeerStore {
+
+    static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    static final int MAX_PEERS = 256;
+
+    private final File file;
+
+    public static class Record {
+        public final String address;
+        public final long lastSeen;
+        public final double rttMs;
+        public final double rttVarMs;
+        public final double throughputKbps;
+        public final List<String> catalog;
+
+        public Record(String address, long lastSeen, double rttMs, double rttVarMs, double throughputKbps,
+                      List<String> catalog) {
+            this.address = address;
+            this.lastSeen = lastSeen;
+            this.rttMs = rttMs;
+            this.rttVarMs = rttVarMs;
+            this.throughputKbps = throughputKbps;
+            this.catalog = catalog;
+        }
+    }
+
+    public PeerStore(File file) {
+        this.file = file;
+    }
+
+    public List<Record> load() {
+        List<Record> records = new ArrayList<>();
+        if (!file.isFile()) return records;
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        } catch (IOException e) {
+            System.err.println("[P2P] Could not read peer state " + file + ": " + e.getMessage());
+            return records;
+        }
+
+        Set<String> addresses = new LinkedHashSet<>();
+        for (String key : p.stringPropertyNames()) {
+            if (key.endsWith(".seen")) addresses.add(key.substring(0, key.length() - ".seen".length()));
+        }
+        long now = System.currentTimeMillis();
+        for (String address : addresses) {
+            try {
+                long lastSeen = Long.parseLong(p.getProperty(address + ".seen"));
+                if (now - lastSeen > MAX_AGE_MS) continue;
+                String catalog = p.getProperty(address + ".catalog", "");
+                records.add(new Record(address, lastSeen,
+                        Double.parseDouble(p.getProperty(address + ".rtt", "-1")),
+                        Double.parseDouble(p.getProperty(address + ".rttvar", "0")),
+                        Double.parseDouble(p.getProperty(address + ".kbps", "-1")),
+                        catalog.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(catalog.split(",")))));
+            } catch (NumberFormatException e) {
+                System.err.println("[P2P] Ignoring bad peer state for " + address);
+            }
+        }
+        records.sort(Comparator.comparingLong((Record r) -> r.lastSeen).reversed());
+        return records.subList(0, Math.min(MAX_PEERS, records.size()));
+    }
+
+    public void save(Collection<Record> records) {
+        List<Record> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparingLong((Record r) -> r.lastSeen).reversed());
+        long now = System.currentTimeMillis();
+        Properties p = new Properties();
+        int kept = 0;
+        for (Record r : sorted) {
+            if (kept >= MAX_PEERS || now - r.lastSeen > MAX_AGE_MS) break;
+            p.setProperty(r.address + ".seen", String.valueOf(r.lastSeen));
+            p.setProperty(r.address + ".rtt", String.format(Locale.ROOT, "%.2f", r.rttMs));
+            p.setProperty(r.address + ".rttvar", String.format(Locale.ROOT, "%.2f", r.rttVarMs));
+            p.setProperty(r.address + ".kbps", String.format(Locale.ROOT, "%.0f", r.throughputKbps));
+            p.setProperty(r.address + ".catalog", String.join(",", r.catalog));
+            kept++;
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "P2P peer table");
+        } catch (IOException e) {
+            System.err.println("[P2P] Could not write peer state " + file + ": " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) System.err.println("[P2P] Could not replace peer state " + file);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package cse471;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ReedSolomon {
+
+    public static final int MAX_PIECES = 255;
+
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+    private static final Map<Integer, ReedSolomon> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) x ^= 0x11D;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) MUL[a][b] = EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    private final int dataPieces;
+    private final int parityPieces;
+    private final byte[][] matrix;
+
+    public static boolean isValid(int dataPieces, int parityPieces) {
+        return dataPieces >= 1 && parityPieces >= 0 && dataPieces + parityPieces <= MAX_PIECES;
+    }
+
+    public static ReedSolomon get(int dataPieces, int parityPieces) {
+        return CODECS.computeIfAbsent(dataPieces << 8 | parityPieces, key -> new ReedSolomon(dataPieces, parityPieces));
+    }
+
+    public ReedSolomon(int dataPieces, int parityPieces) {
+        if (!isValid(dataPieces, parityPieces)) {
+            throw new IllegalArgumentException("Invalid piece counts: " + dataPieces + "+" + parityPieces);
+        }
+        this.dataPieces = dataPieces;
+        this.parityPieces = parityPieces;
+
+        int total = dataPieces + parityPieces;
+        byte[][] vandermonde = new byte[total][dataPieces];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataPieces; c++) vandermonde[r][c] = power(r, c);
+        }
+        byte[][] top = new byte[dataPieces][];
+        System.arraycopy(vandermonde, 0, top, 0, dataPieces);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataPieces() {
+        return dataPieces;
+    }
+
+    public int getParityPieces() {
+        return parityPieces;
+    }
+
+    public int getTotalPieces() {
+        return dataPieces + parityPieces;
+    }
+
+    public int pieceSize(int chunkLength) {
+        return (chunkLength + dataPieces - 1) / dataPieces;
+    }
+
+    public int encodePiece(byte[] chunk, int chunkLength, int piece, byte[] out) {
+        if (piece < 0 || piece >= getTotalPieces()) throw new IllegalArgumentException("No piece " + piece);
+        int size = pieceSize(chunkLength);
+        if (piece < dataPieces) {
+            int start = piece * size;
+            int n = Math.max(0, Math.min(size, chunkLength - start));
+            System.arraycopy(chunk, start, out, 0, n);
+            for (int i = n; i < size; i++) out[i] = 0;
+            return size;
+        }
+
+        byte[] row = matrix[piece];
+        for (int i = 0; i < size; i++) out[i] = 0;
+        for (int d = 0; d < dataPieces; d++) {
+            byte[] mul = MUL[row[d] & 0xFF];
+            int start = d * size;
+            int n = Math.max(0, Math.min(size, chunkLength - start));
+            for (int i = 0; i < n; i++) out[i] ^= mul[chunk[start + i] & 0xFF];
+        }
+        return size;
+    }
+
+    public byte[] decode(byte[][] pieces, int chunkLength) {
+        int size = pieceSize(chunkLength);
+        int[] rows = new int[dataPieces];
+        int found = 0;
+        for (int i = 0; i < pieces.length && found < dataPieces; i++) {
+            if (pieces[i] != null) rows[found++] = i;
+        }
+        if (found < dataPieces) throw new IllegalArgumentException("Need " + dataPieces + " pieces, have " + found);
+
+        byte[] chunk = new byte[chunkLength];
+        boolean systematic = rows[dataPieces - 1] == dataPieces - 1;
+        if (systematic) {
+            for (int d = 0; d < dataPieces; d++) copyData(pieces[d], d, size, chunk);
+            return chunk;
+        }
+
+        byte[][] sub = new byte[dataPieces][];
+        for (int i = 0; i < dataPieces; i++) sub[i] = matrix[rows[i]];
+        byte[][] inverse = invert(sub);
+
+        byte[] piece = new byte[size];
+        for (int d = 0; d < dataPieces; d++) {
+            if (pieces[d] != null) {
+                copyData(pieces[d], d, size, chunk);
+                continue;
+            }
+            for (int i = 0; i < size; i++) piece[i] = 0;
+            for (int j = 0; j < dataPieces; j++) {
+                byte[] mul = MUL[inverse[d][j] & 0xFF];
+                byte[] src = pieces[rows[j]];
+                for (int i = 0; i < size; i++) piece[i] ^= mul[src[i] & 0xFF];
+            }
+            copyData(piece, d, size, chunk);
+        }
+        return chunk;
+    }
+
+    private static void copyData(byte[] piece, int index, int size, byte[] chunk) {
+        int start = index * size;
+        int n = Math.max(0, Math.min(size, chunk.length - start));
+        System.arraycopy(piece, 0, chunk, start, n);
+    }
+
+    private static byte power(int base, int exp) {
+        if (exp == 0) return 1;
+        if (base == 0) return 0;
+        return EXP[(LOG[base] * exp) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        int rows = a.length, inner = b.length, cols = b[0].length;
+        byte[][] out = new byte[rows][cols];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int v = 0;
+                for (int i = 0; i < inner; i++) v ^= MUL[a[r][i] & 0xFF][b[i][c] & 0xFF];
+                out[r][c] = (byte) v;
+            }
+        }
+        return out;
+    }
+
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && work[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("Matrix is singular");
+            byte[] tmp = work[col];
+            work[col] = work[pivot];
+            work[pivot] = tmp;
+
+            byte[] scale = MUL[EXP[255 - LOG[work[col][col] & 0xFF]] & 0xFF];
+            for (int c = 0; c < 2 * n; c++) work[col][c] = scale[work[col][c] & 0xFF];
+            for (int r = 0; r < n; r++) {
+                if (r == col || work[r][col] == 0) continue;
+                byte[] factor = MUL[work[r][col] & 0xFF];
+                for (int c = 0; c < 2 * n; c++) work[r][c] ^= factor[work[col][c] & 0xFF];
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0; r < n; r++) System.arraycopy(work[r], n, inverse[r], 0, n);
+        return inverse;
+    }
+}
@@ -0,0 +1,242 @@
+package cse471;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+public class RemoteCatalog {
+
+    private static final int GRAM = 3;
+    private static final long SWEEP_INTERVAL_MS = 10000;
+
+    public static final Comparator<Row> ROW_ORDER = Comparator
+            .comparing((Row r) -> r.lowerName)
+            .thenComparing(r -> r.hash);
+
+    public static final class Row {
+        public final String hash;
+        public final String name;
+        final String lowerName;
+
+        Row(String hash, String name) {
+            this.hash = hash;
+            this.name = name;
+            this.lowerName = name.toLowerCase();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row)) return false;
+            Row r = (Row) o;
+            return hash.equals(r.hash) && name.equals(r.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode() * 31 + name.hashCode();
+        }
+    }
+
+    public interface Listener {
+        void onRowsChanged(List<Row> added, List<Row> removed);
+    }
+
+    private static class Title {
+        final Map<String, Row> rowsByName = new HashMap<>();
+        final Map<String, Long> providerExpiry = new HashMap<>();
+        final Set<String> legacyProviders = new HashSet<>();
+        long size = -1;
+        int chunkSize;
+    }
+
+    private final long ttlMs;
+    private final Map<String, Title> titles = new HashMap<>();
+    private final Map<String, Set<Row>> gramIndex = new HashMap<>();
+    private final Set<Row> allRows = new HashSet<>();
+    private volatile Listener listener;
+    private long lastSweep = 0;
+
+    public RemoteCatalog(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void addEntries(String peerIP, List<String> entries) {
+        List<Row> added = new ArrayList<>();
+        long expiry = System.currentTimeMillis() + ttlMs;
+        synchronized (this) {
+            for (String entry : entries) {
+                String[] parts = entry.split(":");
+                if (parts.length < 3) continue;
+                long size;
+                int chunkSize = 0;
+                try {
+                    size = Long.parseLong(parts[2]);
+                    if (parts.length > 3) chunkSize = Integer.parseInt(parts[3]) * 1024;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Title t = titles.computeIfAbsent(parts[0], k -> new Title());
+                t.size = size;
+                if (chunkSize > 0) {
+                    t.chunkSize = chunkSize;
+                    t.legacyProviders.remove(peerIP);
+                } else {
+                    t.legacyProviders.add(peerIP);
+                }
+                t.providerExpiry.put(peerIP, expiry);
+                if (!t.rowsByName.containsKey(parts[1])) {
+                    Row row = new Row(parts[0], parts[1]);
+                    t.rowsByName.put(parts[1], row);
+                    indexRow(row);
+                    added.add(row);
+                }
+            }
+        }
+        notifyListener(added, Collections.emptyList());
+    }
+
+    public void addProviders(String hash, Collection<String> peerIPs) {
+        long expiry = System.currentTimeMillis() + ttlMs;
+        synchronized (this) {
+            Title t = titles.get(hash);
+            if (t == null) return;
+            for (String ip : peerIPs) t.providerExpiry.put(ip, expiry);
+        }
+    }
+
+    public void removeEntries(String peerIP, List<String> entries) {
+        List<Row> removed = new ArrayList<>();
+        synchronized (this) {
+            for (String entry : entries) {
+                String hash = entry.split(":")[0];
+                Title t = titles.get(hash);
+                if (t == null) continue;
+                t.providerExpiry.remove(peerIP);
+                t.legacyProviders.remove(peerIP);
+                if (t.providerExpiry.isEmpty()) removeTitle(hash, t, removed);
+            }
+        }
+        notifyListener(Collections.emptyList(), removed);
+    }
+
+    public void expire(long now) {
+        List<Row> removed = new ArrayList<>();
+        synchronized (this) {
+            if (now - lastSweep < SWEEP_INTERVAL_MS) return;
+            lastSweep = now;
+
+            Iterator<Map.Entry<String, Title>> it = titles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Title> e = it.next();
+                Title t = e.getValue();
+                t.providerExpiry.values().removeIf(expiry -> expiry < now);
+                t.legacyProviders.retainAll(t.providerExpiry.keySet());
+                if (t.providerExpiry.isEmpty()) {
+                    for (Row row : t.rowsByName.values()) {
+                        unindexRow(row);
+                        removed.add(row);
+                    }
+                    it.remove();
+                }
+            }
+        }
+        notifyListener(Collections.emptyList(), removed);
+    }
+
+    public synchronized Set<String> getProviders(String hash) {
+        Title t = titles.get(hash);
+        if (t == null) return Collections.emptySet();
+        return new HashSet<>(t.providerExpiry.keySet());
+    }
+
+    public synchronized long getSize(String hash) {
+        Title t = titles.get(hash);
+        return t == null ? -1 : t.size;
+    }
+
+    public synchronized int getChunkSize(String hash) {
+        Title t = titles.get(hash);
+        return t == null || !t.legacyProviders.isEmpty() ? 0 : t.chunkSize;
+    }
+
+    public synchronized int getRowCount() {
+        return allRows.size();
+    }
+
+    public List<Row> search(String query, Predicate<String> nameFilter) {
+        String q = query == null ? "" : query.toLowerCase();
+        List<Row> result = new ArrayList<>();
+        synchronized (this) {
+            Collection<Row> candidates = allRows;
+            if (q.length() >= GRAM) {
+                Set<Row> smallest = null;
+                for (String gram : grams(q)) {
+                    Set<Row> posting = gramIndex.get(gram);
+                    if (posting == null) return result;
+                    if (smallest == null || posting.size() < smallest.size()) smallest = posting;
+                }
+                candidates = smallest;
+            }
+            for (Row row : candidates) {
+                if (matches(row, q, nameFilter)) result.add(row);
+            }
+        }
+        result.sort(ROW_ORDER);
+        return result;
+    }
+
+    public static boolean matches(Row row, String lowerQuery, Predicate<String> nameFilter) {
+        return row.lowerName.contains(lowerQuery) && (nameFilter == null || nameFilter.test(row.name));
+    }
+
+    private void removeTitle(String hash, Title t, List<Row> removed) {
+        for (Row row : t.rowsByName.values()) {
+            unindexRow(row);
+            removed.add(row);
+        }
+        titles.remove(hash);
+    }
+
+    private void indexRow(Row row) {
+        allRows.add(row);
+        for (String gram : grams(row.lowerName)) {
+            gramIndex.computeIfAbsent(gram, k -> new HashSet<>()).add(row);
+        }
+    }
+
+    private void unindexRow(Row row) {
+        allRows.remove(row);
+        for (String gram : grams(row.lowerName)) {
+            Set<Row> posting = gramIndex.get(gram);
+            if (posting == null) continue;
+            posting.remove(row);
+            if (posting.isEmpty()) gramIndex.remove(gram);
+        }
+    }
+
+    private static Set<String> grams(String s) {
+        Set<String> out = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM <= s.length(); i++) {
+            out.add(s.substring(i, i + GRAM));
+        }
+        return out;
+    }
+
+    private void notifyListener(List<Row> added, List<Row> removed) {
+        Listener l = listener;
+        if (l != null && (!added.isEmpty() || !removed.isEmpty())) l.onRowsChanged(added, removed);
+    }
+}
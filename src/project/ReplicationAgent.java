@@ -0,0 +1,277 @@
+package cse471;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ReplicationAgent {
+
+    static final long EVAL_INTERVAL_MS = 10000;
+    static final String IDLE_STATE = "Replica idle";
+    private static final long IDLE_TTL_MS = 3 * EVAL_INTERVAL_MS;
+    private static final long HALF_LIFE_MS = 10 * 60 * 1000;
+    private static final long VIEWER_WINDOW_MS = 5 * 60 * 1000;
+    private static final double MIN_SCORE = 1.5;
+    private static final long STALL_TIMEOUT_MS = 2 * 60 * 1000;
+
+    private final PeerDaemon daemon;
+    private final PeerConfig config;
+    private final long quotaBytes;
+    private final String subnet;
+    private final Map<String, Popularity> titles = new ConcurrentHashMap<>();
+    private final Map<String, Long> underservedSince = new HashMap<>();
+    private final Map<String, Long> replicas = new ConcurrentHashMap<>();
+    private final Map<String, Long> idleAgents = new ConcurrentHashMap<>();
+    private final MetricsRegistry.Counter started;
+    private final MetricsRegistry.Counter completed;
+    private final MetricsRegistry.Counter aborted;
+
+    private StreamManager active;
+    private long activeSize;
+    private double activeScore;
+    private int lastProgress;
+    private long lastProgressAt;
+
+    private static class Popularity {
+        double score;
+        long updated;
+        final Map<String, Long> viewers = new HashMap<>();
+
+        synchronized void view(String peer, long now) {
+            Long last = viewers.put(peer, now);
+            if (last != null && now - last <= VIEWER_WINDOW_MS) return;
+            score = decayed(now) + 1;
+            updated = now;
+        }
+
+        synchronized double decayed(long now) {
+            return score * Math.pow(0.5, (double) (now - updated) / HALF_LIFE_MS);
+        }
+
+        synchronized boolean prune(long now) {
+            viewers.values().removeIf(t -> now - t > VIEWER_WINDOW_MS);
+            return viewers.isEmpty() && decayed(now) < 0.01;
+        }
+    }
+
+    public ReplicationAgent(PeerDaemon daemon, PeerConfig config) {
+        this.daemon = daemon;
+        this.config = config;
+        this.quotaBytes = config.getReplicationQuotaMb() * 1024 * 1024;
+        this.subnet = subnetOf(localAddress(config));
+        MetricsRegistry metrics = config.getMetrics();
+        this.started = metrics.counter("p2p_replication_started_total", "Popular titles this peer started replicating");
+        this.completed = metrics.counter("p2p_replication_completed_total", "Popular titles replicated into the buffer cache");
+        this.aborted = metrics.counter("p2p_replication_aborted_total", "Replications abandoned before completion");
+        metrics.gaugeFn("p2p_replication_bytes", "Bytes held as proactive replicas", this::getReplicaBytes);
+        System.out.println("[Replica] Agent enabled for subnet " + subnet + ".0/24 with "
+                + config.getReplicationQuotaMb() + " MB at " + config.getReplicationRateKbps() + " KB/s");
+    }
+
+    public void onViewer(String peerIP, String fileHash) {
+        if (fileHash == null || fileHash.isEmpty()) return;
+        titles.computeIfAbsent(fileHash, k -> new Popularity()).view(peerIP, System.currentTimeMillis());
+    }
+
+    public void onIdleAgent(String peerIP) {
+        idleAgents.put(peerIP, System.currentTimeMillis());
+    }
+
+    public double getScore(String fileHash) {
+        Popularity p = titles.get(fileHash);
+        return p == null ? 0 : p.decayed(System.currentTimeMillis());
+    }
+
+    public synchronized long getReplicaBytes() {
+        BufferCache cache = daemon.getBufferCache();
+        long bytes = active == null ? 0 : activeSize;
+        for (Iterator<Map.Entry<String, Long>> it = replicas.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> e = it.next();
+            if (cache == null || !cache.isComplete(e.getKey())) it.remove();
+            else bytes += e.getValue();
+        }
+        return bytes;
+    }
+
+    public Set<String> getReplicas() {
+        return Collections.unmodifiableSet(replicas.keySet());
+    }
+
+    public synchronized void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            titles.values().removeIf(p -> p.prune(now));
+            idleAgents.values().removeIf(t -> now - t > IDLE_TTL_MS);
+            if (active != null) {
+                checkActive(now);
+                return;
+            }
+            if (subnet == null || daemon.getBufferCache() == null || !isIdle()) return;
+            daemon.getNetworkManager().broadcastStatus("", "", "", IDLE_STATE);
+
+            String best = null;
+            double bestScore = MIN_SCORE;
+            RemoteCatalog catalog = daemon.getRemoteCatalog();
+            long free = quotaBytes - getReplicaBytes();
+            for (Map.Entry<String, Popularity> e : titles.entrySet()) {
+                String hash = e.getKey();
+                if (isHeldLocally(hash)) continue;
+                long size = catalog.getSize(hash);
+                Set<String> providers = catalog.getProviders(hash);
+                if (size < 0 || providers.isEmpty() || hasSubnetReplica(providers)) {
+                    underservedSince.remove(hash);
+                    continue;
+                }
+                long since = underservedSince.computeIfAbsent(hash, k -> now);
+                double score = e.getValue().decayed(now);
+                if (size > free || score < bestScore) continue;
+                if (now - since < EVAL_INTERVAL_MS + rank(hash) * turnMs(size)) continue;
+                best = hash;
+                bestScore = score;
+            }
+            if (best != null) startReplica(best, bestScore, now);
+        } catch (RuntimeException | IOException e) {
+            System.err.println("[Replica] " + e);
+        }
+    }
+
+    private boolean isIdle() {
+        FileChunkServer server = daemon.getFileServer();
+        return daemon.getStreams().isEmpty() && (server == null || server.getUnchokedCount() == 0);
+    }
+
+    private boolean isHeldLocally(String hash) {
+        BufferCache cache = daemon.getBufferCache();
+        return daemon.getLocalCatalog().current().hashes.contains(hash) || (cache != null && cache.isComplete(hash));
+    }
+
+    private boolean hasSubnetReplica(Set<String> providers) {
+        for (String ip : providers) {
+            if (subnet.equals(subnetOf(ip))) return true;
+        }
+        return false;
+    }
+
+    private long turnMs(long size) {
+        return EVAL_INTERVAL_MS + size * 1000 / (Math.max(1, config.getReplicationRateKbps()) * 1024);
+    }
+
+    private int rank(String hash) {
+        List<String> candidates = new ArrayList<>();
+        for (String ip : idleAgents.keySet()) {
+            if (subnet.equals(subnetOf(ip))) candidates.add(ip);
+        }
+        String self = localAddress(config);
+        candidates.remove(self);
+        candidates.add(self);
+        candidates.sort(Comparator.comparingInt((String ip) -> mix(hash, ip)).thenComparing(ip -> ip));
+        return candidates.indexOf(self);
+    }
+
+    private static int mix(String hash, String ip) {
+        int h = (hash + "|" + ip).hashCode();
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    private void startReplica(String hash, double score, long now) throws IOException {
+        StreamManager sm = daemon.createStream(hash);
+        sm.setRateLimitKbps(config.getReplicationRateKbps());
+        sm.startDownload();
+        active = sm;
+        activeSize = sm.getFileSize();
+        activeScore = score;
+        lastProgress = 0;
+        lastProgressAt = now;
+        underservedSince.remove(hash);
+        started.inc();
+        System.out.println(String.format("[Replica] Replicating %s (score %.1f) for subnet %s.0/24",
+                sm.getFileName(), score, subnet));
+    }
+
+    private void checkActive(long now) {
+        StreamManager sm = active;
+        String hash = sm.getFileHash();
+        int progress = sm.getProgress();
+        if (progress > lastProgress) {
+            lastProgress = progress;
+            lastProgressAt = now;
+        }
+
+        BufferCache cache = daemon.getBufferCache();
+        if (progress >= 100 && cache != null && cache.isComplete(hash)) {
+            replicas.put(hash, activeSize);
+            completed.inc();
+            System.out.println(String.format("[Replica] Replicated %s (score %.1f)", sm.getFileName(), activeScore));
+            finishActive();
+            return;
+        }
+        if (progress >= 100 && cache != null && cache.isVerifying(hash)) return;
+
+        String reason = null;
+        if (progress >= 100) reason = "the file failed verification";
+        else if (!daemon.getStreams().isEmpty()) reason = "a local stream started";
+        else if (hasSubnetReplica(daemon.getRemoteCatalog().getProviders(hash))) reason = "another peer in the subnet has it";
+        else if (now - lastProgressAt > STALL_TIMEOUT_MS) reason = "no progress";
+        if (reason == null) return;
+        aborted.inc();
+        System.out.println("[Replica] Abandoning " + sm.getFileName() + ": " + reason);
+        finishActive();
+    }
+
+    private void finishActive() {
+        try {
+            active.close();
+        } catch (IOException e) {
+        }
+        active = null;
+        activeSize = 0;
+    }
+
+    public synchronized StreamManager handOver(String hash) {
+        StreamManager sm = active;
+        if (sm == null || !sm.getFileHash().equals(hash)) return null;
+        sm.setRateLimitKbps(0);
+        active = null;
+        activeSize = 0;
+        System.out.println("[Replica] Handing " + sm.getFileName() + " over to a local stream");
+        return sm;
+    }
+
+    public synchronized void stop() {
+        if (active != null) finishActive();
+    }
+
+    static String subnetOf(String ip) {
+        if (ip == null) return null;
+        int last = ip.lastIndexOf('.');
+        if (last < 0 || ip.indexOf(':') >= 0) return null;
+        return ip.substring(0, last);
+    }
+
+    static String localAddress(PeerConfig config) {
+        if (config.getBindAddress() != null) return config.getBindAddress();
+        try {
+            for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!nif.isUp() || nif.isLoopback()) continue;
+                for (InetAddress addr : Collections.list(nif.getInetAddresses())) {
+                    if (addr instanceof Inet4Address) return addr.getHostAddress();
+                }
+            }
+        } catch (SocketException e) {
+        }
+        return null;
+    }
+}
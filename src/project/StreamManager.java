@@ -1,31 +1,41 @@
 package cse471;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class StreamManager {
 
     private static final int CHUNK_SIZE = 256 * 1024;
-    private static final int TCP_PORT = 8889;
     private static final int PRIORITY_CHUNKS = 5;
+    private static final int MIN_STRIPE_BYTES = 32 * 1024;
+    private static final int URGENT_WINDOW = 2;
 
     private static final boolean VERIFY_WITH_SECOND_PEER = true;
     private static final int VERIFY_FIRST_N_CHUNKS = 3;
@@ -33,9 +43,16 @@ public class StreamManager {
     private String fileName;
     private final String fileHash;
     private long fileSize;
-    private final int totalChunks;
+    private volatile int totalChunks;
+    private volatile ChunkManifest manifest;
+    private volatile ChunkLayout layout;
+    private final AtomicBoolean containerProbed = new AtomicBoolean();
+    private volatile int[] criticalChunks = new int[0];
+    private final boolean fromCache;
+    private volatile FileChunkServer localSource;
 
     private final BitSet receivedChunks;
+    private final AtomicInteger receivedCount = new AtomicInteger();
     private final BitSet inFlightChunks;  
     private final Object chunkStateLock = new Object();
 
@@ -44,11 +61,14 @@ public class StreamManager {
 
     private final List<String> sourcePeers;
     private int peerRoundRobinIndex = 0;
+    private int nearRoundRobinIndex = 0;
+    private volatile PeerRttTable rttTable;
 
     private volatile boolean playing = false;
     private volatile boolean downloading = false;
 
     private ExecutorService downloadExecutor;
+    private ExecutorService pieceExecutor;
 
     private final Map<String, Long> peerLastActivity = new ConcurrentHashMap<>();
     private final Map<String, String> peerLastAction = new ConcurrentHashMap<>();
@@ -63,45 +83,202 @@ public class StreamManager {
     private final AtomicLong lastAdjustmentTime = new AtomicLong(System.currentTimeMillis());
 
     private final ConcurrentMap<Integer, String> chunkHashMap = new ConcurrentHashMap<>();
+    private final ChunkTrace trace;
+
+    private static final long STALL_THRESHOLD_NANOS = 2_000_000_000L;
+    private static final long POLL_INTERVAL_MS = 150;
+    private static final long MAX_IDLE_BACKOFF_MS = 5_000;
+    private static final int MANIFEST_TIMEOUT_MS = 5000;
+    private static final long HEDGE_DEFAULT_MS = 500;
+    private static final long HEDGE_MARGIN_MS = 50;
+
+    private static final String PEER_BYTES = "p2p_download_bytes_total";
+    private static final String PEER_FAILURES = "p2p_download_failures_total";
+    private static final String PEER_BUSY = "p2p_download_busy_total";
+    private static final String PEER_LATENCY = "p2p_download_chunk_seconds";
+
+    private static class PeerMetrics {
+        final MetricsRegistry.Counter bytes;
+        final MetricsRegistry.Counter failures;
+        final MetricsRegistry.Counter busy;
+        final MetricsRegistry.Histogram latency;
+
+        PeerMetrics(MetricsRegistry metrics, String fileHash, String peer) {
+            bytes = metrics.counter(PEER_BYTES, "Chunk bytes downloaded per peer", "file", fileHash, "peer", peer);
+            failures = metrics.counter(PEER_FAILURES, "Failed chunk fetches per peer", "file", fileHash, "peer", peer);
+            busy = metrics.counter(PEER_BUSY, "Chunk fetches answered BUSY per peer", "file", fileHash, "peer", peer);
+            latency = metrics.histogram(PEER_LATENCY, "Chunk fetch latency per peer", "file", fileHash, "peer", peer);
+        }
+
+        // The series carry the stream's file label, so each stream removes only its own.
+        static void remove(MetricsRegistry metrics, String fileHash, String peer) {
+            for (String name : new String[] {PEER_BYTES, PEER_FAILURES, PEER_BUSY, PEER_LATENCY}) {
+                metrics.remove(name, "file", fileHash, "peer", peer);
+            }
+        }
+    }
+
+    private final Map<String, PeerMetrics> peerMetrics = new ConcurrentHashMap<>();
+    private final MetricsRegistry.Counter bufferRaised;
+    private final MetricsRegistry.Counter bufferLowered;
+    private final MetricsRegistry.Counter stalls;
+    private final MetricsRegistry.Histogram stallTime;
+    private volatile long lastProgressNanos = System.nanoTime();
+    private volatile long stallStartNanos = -1;
+
+    private static class PieceResult {
+        final int piece;
+        final String peer;
+        final byte[] data;
+        final boolean busy;
+
+        PieceResult(int piece, String peer, byte[] data, boolean busy) {
+            this.piece = piece;
+            this.peer = peer;
+            this.data = data;
+            this.busy = busy;
+        }
+    }
+
+    private final int fecDataPieces;
+    private final int fecParityPieces;
+    private final MetricsRegistry.Counter fecPieces;
+    private final MetricsRegistry.Counter fecPieceFailures;
+    private final MetricsRegistry.Counter fecParityDecodes;
+    private final MetricsRegistry.Counter fecHedges;
+    private final MetricsRegistry.Counter localChunkBytes;
+    private final MetricsRegistry.Counter containerIndexChunks;
+    private final int stripeSources;
+    private final MetricsRegistry.Counter stripedChunks;
+    private final MetricsRegistry.Counter stripeFailures;
+
+    static class PeerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PeerBusyException(String peerIP) {
+            super("Peer busy: " + peerIP);
+        }
+    }
+
+    private final PeerConfig config;
+    private final BufferCache bufferCache;
+    private volatile ChunkTransport transport;
+    private volatile UploadScheduler.TokenBucket rateLimit;
 
     public StreamManager(String fileName, String fileHash, long fileSize, String bufferFolderPath, List<String> sourcePeers) throws IOException {
+        this(fileName, fileHash, fileSize, bufferFolderPath, sourcePeers, PeerConfig.fromEnv());
+    }
+
+    public StreamManager(String fileName, String fileHash, long fileSize, String bufferFolderPath, List<String> sourcePeers, PeerConfig config) throws IOException {
+        this(fileName, fileHash, fileSize, new File(bufferFolderPath, fileName), null, sourcePeers, config);
+    }
+
+    public StreamManager(String fileName, String fileHash, long fileSize, BufferCache bufferCache, List<String> sourcePeers, PeerConfig config) throws IOException {
+        this(fileName, fileHash, fileSize, bufferCache.allocate(fileHash, fileName, fileSize), bufferCache, sourcePeers, config);
+    }
+
+    private StreamManager(String fileName, String fileHash, long fileSize, File outputFile, BufferCache bufferCache, List<String> sourcePeers, PeerConfig config) throws IOException {
+        this.config = config;
+        this.bufferCache = bufferCache;
+        this.transport = new TcpChunkTransport(config);
         this.fileName = fileName;
         this.fileHash = fileHash;
         this.fileSize = fileSize;
-
-        this.sourcePeers = new ArrayList<>(sourcePeers);
-        Collections.shuffle(this.sourcePeers);
-
-        this.totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
+        this.trace = new ChunkTrace(fileHash);
+
+        MetricsRegistry metrics = config.getMetrics();
+        String changes = "p2p_stream_buffer_target_changes_total";
+        this.bufferRaised = metrics.counter(changes, "Dynamic buffer target adjustments", "direction", "up");
+        this.bufferLowered = metrics.counter(changes, "Dynamic buffer target adjustments", "direction", "down");
+        this.stalls = metrics.counter("p2p_stream_stalls_total", "Periods with no chunk persisted for over 2s");
+        this.stallTime = metrics.histogram("p2p_stream_stall_seconds", "Duration of download stalls");
+        this.fecPieces = metrics.counter("p2p_fec_pieces_total", "Coded pieces downloaded");
+        this.fecPieceFailures = metrics.counter("p2p_fec_piece_failures_total", "Coded piece fetches that failed or were refused");
+        this.fecParityDecodes = metrics.counter("p2p_fec_parity_decodes_total", "Chunks rebuilt using at least one parity piece");
+        this.fecHedges = metrics.counter("p2p_fec_hedged_pieces_total", "Extra coded pieces requested because a piece request ran past its hedge deadline");
+        this.stripeSources = config.getStripeSources();
+        this.stripedChunks = metrics.counter("p2p_stripe_chunks_total", "Urgent chunks fetched as byte-range stripes from several peers");
+        this.stripeFailures = metrics.counter("p2p_stripe_failures_total", "Stripe fetches that failed or were refused");
+        this.containerIndexChunks = metrics.counter("p2p_stream_container_index_chunks_total", "Chunks fetched early because they hold a container index");
+        this.localChunkBytes = metrics.counter("p2p_dedup_local_bytes_total", "Content-defined chunk bytes copied from local files instead of downloaded");
+        boolean fec = config.getFecDataPieces() > 0 && ReedSolomon.isValid(config.getFecDataPieces(), config.getFecParityPieces());
+        this.fecDataPieces = fec ? config.getFecDataPieces() : 0;
+        this.fecParityPieces = fec ? config.getFecParityPieces() : 0;
+        metrics.gaugeFn("p2p_stream_buffer_target_chunks", "Current dynamic buffer target", () -> minBufferChunks, "file", fileHash);
+
+        this.sourcePeers = new CopyOnWriteArrayList<>(sourcePeers);
+
+        this.layout = ChunkLayout.fixed(fileSize);
+        this.totalChunks = layout.size();
         this.receivedChunks = new BitSet(totalChunks);
         this.inFlightChunks = new BitSet(totalChunks);
 
-        this.outputFile = new File(bufferFolderPath, fileName);
+        this.outputFile = outputFile;
         this.fileAccess = new RandomAccessFile(outputFile, "rw");
-        this.fileAccess.setLength(fileSize);
+        this.fromCache = bufferCache != null && bufferCache.isComplete(fileHash);
+        if (fromCache) {
+            receivedChunks.set(0, totalChunks);
+            receivedCount.set(totalChunks);
+            System.out.println(">> Playing " + fileName + " from buffer cache");
+        } else {
+            this.fileAccess.setLength(fileSize);
+        }
     }
 
     public void startDownload() {
         if (downloading) return;
         downloading = true;
+        lastProgressNanos = System.nanoTime();
 
         if (downloadExecutor == null || downloadExecutor.isShutdown()) {
             downloadExecutor = Executors.newFixedThreadPool(4);
         }
+        if ((fecDataPieces > 0 || stripeSources > 1) && (pieceExecutor == null || pieceExecutor.isShutdown())) {
+            pieceExecutor = Executors.newCachedThreadPool();
+        }
 
         new Thread(this::downloadLoop, "StreamManager-DownloadLoop").start();
     }
 
     private void downloadLoop() {
         try {
+            // The manifest is fetched while the first chunks download with the fixed layout.
+            Future<ChunkManifest> pendingManifest = null;
+            if (config.isContentDefinedChunking() && manifest == null && receivedCount.get() < totalChunks) {
+                pendingManifest = downloadExecutor.submit(this::loadManifest);
+            }
+
             for (int i = 0; i < Math.min(PRIORITY_CHUNKS, totalChunks); i++) {
                 if (!downloading) return;
+                if (pendingManifest != null && pendingManifest.isDone()) {
+                    boolean installed = applyManifest(pendingManifest);
+                    pendingManifest = null;
+                    if (installed) {
+                        // Chunk indices changed with the layout, so the priority pass starts over.
+                        i = -1;
+                        continue;
+                    }
+                }
+                trace.record(ChunkTrace.Stage.SCHEDULED, i, null, 0);
                 downloadChunkWithRetry(i);
+                if (i == 0 && pendingManifest == null) probeContainer();
+            }
+            if (pendingManifest != null) {
+                applyManifest(pendingManifest);
+                probeContainer();
             }
 
-            while (downloading && receivedChunks.cardinality() < totalChunks) {
+            long idleMs = POLL_INTERVAL_MS;
+            while (downloading && receivedCount.get() < totalChunks) {
 
-                boolean anySubmitted = false;
+                // With no provider every submitted chunk would return at once; wait for one instead.
+                if (sourcePeers.isEmpty()) {
+                    checkStall(System.nanoTime());
+                    awaitSourcePeer(idleMs);
+                    idleMs = Math.min(idleMs * 2, MAX_IDLE_BACKOFF_MS);
+                    continue;
+                }
+                idleMs = POLL_INTERVAL_MS;
 
                 for (int i = 0; i < totalChunks; i++) {
                     if (!downloading) break;
@@ -115,13 +292,12 @@ public class StreamManager {
                                 clearInFlight(chunkIndex);
                             }
                         });
-                        anySubmitted = true;
                     }
                 }
 
-                if (!anySubmitted) break;
-
-                Thread.sleep(150);
+                if (!containerProbed.get()) probeContainer();
+                checkStall(System.nanoTime());
+                Thread.sleep(POLL_INTERVAL_MS);
             }
 
         } catch (Exception e) {
@@ -131,12 +307,192 @@ public class StreamManager {
         }
     }
 
+    private void probeContainer() {
+        if (!receivedChunks.get(0) || !containerProbed.compareAndSet(false, true)) return;
+        byte[] head = new byte[chunkLength(0)];
+        try {
+            synchronized (this) {
+                fileAccess.seek(0);
+                fileAccess.readFully(head);
+            }
+        } catch (IOException e) {
+            return;
+        }
+        Set<Integer> critical = new TreeSet<>();
+        for (ContainerProbe.Range r : ContainerProbe.probe(head, head.length, fileSize)) {
+            int first = chunkIndexAt(r.start);
+            int last = chunkIndexAt(r.end - 1);
+            for (int i = first; i <= last; i++) critical.add(i);
+            System.out.println(">> Container index: " + r.what + " at bytes " + r.start + "-" + r.end +
+                    " (chunks " + first + "-" + last + ")");
+        }
+        criticalChunks = critical.stream().mapToInt(Integer::intValue).toArray();
+        for (int chunkIndex : criticalChunks) {
+            if (!tryMarkInFlight(chunkIndex)) continue;
+            containerIndexChunks.inc();
+            downloadExecutor.submit(() -> {
+                try {
+                    downloadChunkWithRetry(chunkIndex);
+                } finally {
+                    clearInFlight(chunkIndex);
+                }
+            });
+        }
+    }
+
+    // Every provider is asked for the manifest's digest. The manifest is accepted only if
+    // its digest is the one most providers announced. A lone provider cannot be
+    // cross-checked, but every chunk comes from it anyway.
+    private ChunkManifest loadManifest() {
+        ChunkTrace scratch = new ChunkTrace(fileHash + FileChunkServer.MANIFEST_SUFFIX, 64);
+        Map<String, Future<byte[]>> requests = new LinkedHashMap<>();
+        for (String peer : sourcePeers) {
+            requests.put(peer, downloadExecutor.submit(() ->
+                    transport.fetch(peer, fileHash + FileChunkServer.MANIFEST_DIGEST_SUFFIX, 0, MANIFEST_TIMEOUT_MS, scratch)));
+        }
+        Map<String, List<String>> byDigest = new LinkedHashMap<>();
+        int answered = 0;
+        for (Map.Entry<String, Future<byte[]>> e : requests.entrySet()) {
+            try {
+                byte[] data = e.getValue().get();
+                String digest = data == null ? "" : new String(data, StandardCharsets.US_ASCII);
+                if (!BufferCache.isValidHash(digest)) continue;
+                byDigest.computeIfAbsent(digest, k -> new ArrayList<>()).add(e.getKey());
+                answered++;
+            } catch (ExecutionException ignored) {
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        String agreed = null;
+        for (Map.Entry<String, List<String>> e : byDigest.entrySet()) {
+            if (agreed == null || e.getValue().size() > byDigest.get(agreed).size()) agreed = e.getKey();
+        }
+        if (agreed == null) {
+            System.out.println(">> No chunk manifest available, using fixed-size chunks");
+            return null;
+        }
+        int votes = byDigest.get(agreed).size();
+        if (votes * 2 <= answered) {
+            System.out.println(">> Providers disagree on the chunk manifest, using fixed-size chunks");
+            return null;
+        }
+
+        for (String peer : byDigest.get(agreed)) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (int page = 0; ; page++) {
+                    byte[] data = transport.fetch(peer, fileHash + FileChunkServer.MANIFEST_SUFFIX, page, MANIFEST_TIMEOUT_MS, scratch);
+                    if (data == null) break;
+                    bytes.write(data);
+                    if (bytes.size() > ChunkManifest.maxEncodedLength(fileSize)) throw new IOException("Manifest too large");
+                    if (data.length < CHUNK_SIZE) break;
+                }
+                ChunkManifest m = ChunkManifest.fromBytes(bytes.toByteArray(), fileSize);
+                if (!m.digest().equals(agreed)) continue;
+                System.out.println(">> Chunk manifest from " + peer + ": " + m.size() + " content-defined chunks, "
+                        + votes + "/" + answered + " providers agree");
+                return m;
+            } catch (IOException ignored) {
+            }
+        }
+        System.out.println(">> No chunk manifest available, using fixed-size chunks");
+        return null;
+    }
+
+    private boolean applyManifest(Future<ChunkManifest> pending) throws IOException, InterruptedException {
+        try {
+            ChunkManifest m = pending.get();
+            if (m == null) return false;
+            installManifest(m);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    // Switches from the fixed layout to the manifest once it arrives. Chunks already
+    // written under the fixed layout are kept for every content chunk they fully cover
+    // and whose hash matches.
+    private void installManifest(ChunkManifest m) throws IOException {
+        ChunkLayout fixed = layout;
+        int carried = 0;
+        synchronized (this) {
+            synchronized (chunkStateLock) {
+                BitSet received = new BitSet(m.size());
+                chunkHashMap.clear();
+                for (int i = 0; i < m.size(); i++) {
+                    long start = m.getOffset(i);
+                    long end = start + m.getLength(i);
+                    int first = fixed.indexOf(start);
+                    int last = fixed.indexOf(end - 1);
+                    if (receivedChunks.nextClearBit(first) <= last) continue;
+                    byte[] data = new byte[m.getLength(i)];
+                    fileAccess.seek(start);
+                    fileAccess.readFully(data);
+                    String hash = sha256Hex(data);
+                    if (!hash.equals(m.getHash(i))) continue;
+                    received.set(i);
+                    chunkHashMap.put(i, hash);
+                    carried++;
+                }
+                receivedChunks.clear();
+                receivedChunks.or(received);
+                inFlightChunks.clear();
+                manifest = m;
+                totalChunks = m.size();
+                receivedCount.set(carried);
+            }
+        }
+        if (carried == m.size() && bufferCache != null) bufferCache.complete(fileHash);
+        if (carried > 0) System.out.println(">> Kept " + carried + " content-defined chunk(s) already downloaded");
+    }
+
+    private boolean copyLocalChunk(int chunkIndex) {
+        FileChunkServer local = localSource;
+        ChunkManifest m = manifest;
+        if (local == null || m == null) return false;
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int n = local.readContent(m.getHash(chunkIndex), buffer);
+            if (n != m.getLength(chunkIndex)) return false;
+            saveChunk(chunkIndex, Arrays.copyOf(buffer, n), "local");
+            localChunkBytes.add(n);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private long chunkOffset(int chunkIndex) {
+        ChunkManifest m = manifest;
+        return m != null ? m.getOffset(chunkIndex) : layout.getOffset(chunkIndex);
+    }
+
+    private int chunkLength(int chunkIndex) {
+        ChunkManifest m = manifest;
+        return m != null ? m.getLength(chunkIndex) : layout.getLength(chunkIndex);
+    }
+
+    private int chunkIndexAt(long offset) {
+        ChunkManifest m = manifest;
+        return m != null ? m.indexOf(offset) : layout.indexOf(offset);
+    }
+
+    private String chunkKey(int chunkIndex) {
+        ChunkManifest m = manifest;
+        return m != null ? m.getHash(chunkIndex) : layout.requestKey(fileHash);
+    }
+
     private boolean tryMarkInFlight(int chunkIndex) {
         synchronized (chunkStateLock) {
             if (receivedChunks.get(chunkIndex) || inFlightChunks.get(chunkIndex)) return false;
             inFlightChunks.set(chunkIndex);
-            return true;
         }
+        trace.record(ChunkTrace.Stage.SCHEDULED, chunkIndex, null, 0);
+        return true;
     }
 
     private void clearInFlight(int chunkIndex) {
@@ -147,7 +503,22 @@ public class StreamManager {
 
     private void downloadChunkWithRetry(int chunkIndex) {
         if (receivedChunks.get(chunkIndex)) return;
+        if (copyLocalChunk(chunkIndex)) return;
         if (sourcePeers.isEmpty()) return;
+        UploadScheduler.TokenBucket limit = rateLimit;
+        if (limit != null) {
+            try {
+                limit.take(chunkLength(chunkIndex));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (fecDataPieces > 0) {
+            downloadChunkCoded(chunkIndex);
+            return;
+        }
+        if (isUrgent(chunkIndex) && downloadChunkStriped(chunkIndex)) return;
 
         int attempts = 0;
         boolean success = false;
@@ -155,19 +526,37 @@ public class StreamManager {
         while (!success && attempts < sourcePeers.size() * 2 && downloading) {
             if (receivedChunks.get(chunkIndex)) return;
 
-            String targetIP = getNextPeer();
+            String targetIP = getNextPeer(attempts);
             if (targetIP != null) {
                 peerLastActivity.put(targetIP, System.currentTimeMillis());
                 peerLastAction.put(targetIP, "Downloading Chunk #" + chunkIndex);
 
                 long startTime = System.currentTimeMillis();
-                success = downloadSingleChunk(chunkIndex, targetIP);
+                long startNanos = System.nanoTime();
+                boolean busy = false;
+                try {
+                    success = downloadSingleChunk(chunkIndex, targetIP);
+                } catch (PeerBusyException e) {
+                    busy = true;
+                }
                 long duration = System.currentTimeMillis() - startTime;
 
-                updateNetworkMetrics(duration, success);
+                PeerMetrics pm = peerMetrics(targetIP);
+                if (success) {
+                    long elapsed = System.nanoTime() - startNanos;
+                    pm.latency.observeNanos(elapsed);
+                    PeerRttTable table = rttTable;
+                    if (table != null) table.recordThroughput(targetIP, chunkLength(chunkIndex), elapsed);
+                }
+                else if (busy) pm.busy.inc();
+                else pm.failures.inc();
+
+                if (!busy) updateNetworkMetrics(duration, success);
 
                 if (success) {
                     peerLastAction.put(targetIP, "Completed Chunk #" + chunkIndex);
+                } else if (busy) {
+                    peerLastAction.put(targetIP, "Busy, retrying elsewhere #" + chunkIndex);
                 } else {
                     peerLastAction.put(targetIP, "Failed Chunk #" + chunkIndex);
                 }
@@ -177,6 +566,258 @@ public class StreamManager {
         }
     }
 
+    private void downloadChunkCoded(int chunkIndex) {
+        ReedSolomon codec = ReedSolomon.get(fecDataPieces, fecParityPieces);
+        int chunkLength = chunkLength(chunkIndex);
+        int pieceSize = codec.pieceSize(chunkLength);
+        int timeout = (minBufferChunks > 5) ? 10000 : 5000;
+        byte[][] pieces = new byte[codec.getTotalPieces()][];
+        Set<String> excluded = new HashSet<>();
+        ExecutorCompletionService<PieceResult> results = new ExecutorCompletionService<>(pieceExecutor);
+        // Requests still running, with the time after which each one is hedged by an
+        // extra piece from another peer. A request leaves hedgeAt once it has been hedged.
+        Map<Future<PieceResult>, String> inFlight = new HashMap<>();
+        Map<Future<PieceResult>, Long> hedgeAt = new HashMap<>();
+
+        long hedgeMs = hedgeDelay(pieceSize, timeout);
+
+        long startTime = System.currentTimeMillis();
+        int have = 0, next = 0;
+        try {
+            while (have < fecDataPieces && downloading && !receivedChunks.get(chunkIndex)) {
+                while (have + inFlight.size() < fecDataPieces && next < pieces.length) {
+                    String peer = piecePeer(chunkIndex, next, excluded);
+                    if (peer == null) break;
+                    submitPiece(results, inFlight, hedgeAt, chunkIndex, next++, peer, hedgeMs, timeout);
+                }
+                if (inFlight.isEmpty()) break;
+
+                Future<PieceResult> done;
+                if (hedgeAt.isEmpty()) {
+                    done = results.take();
+                } else {
+                    long wait = Collections.min(hedgeAt.values()) - System.currentTimeMillis();
+                    done = results.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                }
+                if (done == null) {
+                    next = hedge(results, inFlight, hedgeAt, chunkIndex, next, pieces.length, excluded, hedgeMs, timeout);
+                    continue;
+                }
+                inFlight.remove(done);
+                hedgeAt.remove(done);
+                PieceResult r = done.get();
+                PeerMetrics pm = peerMetrics(r.peer);
+                if (r.data != null && r.data.length == pieceSize) {
+                    pieces[r.piece] = r.data;
+                    have++;
+                    fecPieces.inc();
+                    pm.bytes.add(r.data.length);
+                } else {
+                    excluded.add(r.peer);
+                    fecPieceFailures.inc();
+                    if (r.busy) pm.busy.inc();
+                    else pm.failures.inc();
+                    peerLastAction.put(r.peer, (r.busy ? "Busy" : "Failed") + " piece " + r.piece + " of chunk #" + chunkIndex);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            return;
+        } finally {
+            for (Future<PieceResult> f : inFlight.keySet()) f.cancel(true);
+        }
+
+        boolean success = have >= fecDataPieces;
+        if (success) {
+            for (int i = fecDataPieces; i < pieces.length; i++) {
+                if (pieces[i] != null) {
+                    fecParityDecodes.inc();
+                    break;
+                }
+            }
+            try {
+                saveChunk(chunkIndex, codec.decode(pieces, chunkLength), "fec");
+            } catch (IOException e) {
+                success = false;
+            }
+        }
+        updateNetworkMetrics(System.currentTimeMillis() - startTime, success);
+    }
+
+    private void submitPiece(ExecutorCompletionService<PieceResult> results, Map<Future<PieceResult>, String> inFlight,
+                             Map<Future<PieceResult>, Long> hedgeAt, int chunkIndex, int piece, String peer,
+                             long hedgeMs, int timeout) {
+        long now = System.currentTimeMillis();
+        peerLastActivity.put(peer, now);
+        peerLastAction.put(peer, "Downloading piece " + piece + " of chunk #" + chunkIndex);
+        Future<PieceResult> f = results.submit(() -> fetchPiece(chunkIndex, piece, peer, timeout));
+        inFlight.put(f, peer);
+        hedgeAt.put(f, now + hedgeMs);
+    }
+
+    // Adds one more piece for each request past its hedge deadline, preferring a peer
+    // that is not already serving this chunk. Returns the next unrequested piece.
+    private int hedge(ExecutorCompletionService<PieceResult> results, Map<Future<PieceResult>, String> inFlight,
+                      Map<Future<PieceResult>, Long> hedgeAt, int chunkIndex, int next, int totalPieces,
+                      Set<String> excluded, long hedgeMs, int timeout) {
+        long now = System.currentTimeMillis();
+        List<Future<PieceResult>> late = new ArrayList<>();
+        for (Map.Entry<Future<PieceResult>, Long> e : hedgeAt.entrySet()) {
+            if (e.getValue() <= now) late.add(e.getKey());
+        }
+        for (Future<PieceResult> f : late) {
+            hedgeAt.remove(f);
+            if (next >= totalPieces) continue;
+            Set<String> avoid = new HashSet<>(excluded);
+            avoid.addAll(inFlight.values());
+            String peer = piecePeer(chunkIndex, next, avoid);
+            if (peer == null) {
+                avoid = new HashSet<>(excluded);
+                avoid.add(inFlight.get(f));
+                peer = piecePeer(chunkIndex, next, avoid);
+            }
+            if (peer == null) continue;
+            fecHedges.inc();
+            submitPiece(results, inFlight, hedgeAt, chunkIndex, next++, peer, hedgeMs, timeout);
+        }
+        return next;
+    }
+
+    // How long a piece request may run before a spare piece is requested elsewhere:
+    // what the best measured source would need, i.e. the lowest smoothed RTT plus four
+    // deviations, the piece's transfer time at the highest throughput, and a fixed
+    // margin. Without any measurements the deadline is HEDGE_DEFAULT_MS.
+    private long hedgeDelay(int pieceSize, int timeout) {
+        PeerRttTable table = rttTable;
+        if (table == null) return HEDGE_DEFAULT_MS;
+        double rtt = -1, kbps = 0;
+        for (String p : sourcePeers) {
+            double srtt = table.getSmoothedRtt(p);
+            if (srtt >= 0) {
+                double bound = srtt + 4 * Math.max(0, table.getJitter(p));
+                if (rtt < 0 || bound < rtt) rtt = bound;
+            }
+            kbps = Math.max(kbps, table.getThroughputKbps(p));
+        }
+        if (rtt < 0) return HEDGE_DEFAULT_MS;
+        long transfer = kbps > 0 ? (long) (pieceSize * 8.0 / kbps) : 0;
+        return Math.min((long) rtt + transfer + HEDGE_MARGIN_MS, timeout / 2);
+    }
+
+    private boolean isUrgent(int chunkIndex) {
+        if (chunkIndex < minBufferChunks) return true;
+        for (int i : criticalChunks) {
+            if (i == chunkIndex) return true;
+        }
+        int next;
+        synchronized (chunkStateLock) {
+            next = receivedChunks.nextClearBit(0);
+        }
+        return chunkIndex - next < URGENT_WINDOW;
+    }
+
+    private boolean downloadChunkStriped(int chunkIndex) {
+        int length = chunkLength(chunkIndex);
+        int stripes = Math.min(Math.min(stripeSources, sourcePeers.size()), length / MIN_STRIPE_BYTES);
+        if (stripes < 2) return false;
+        int stripeSize = (length + stripes - 1) / stripes;
+        int timeout = (minBufferChunks > 5) ? 10000 : 5000;
+        byte[] chunk = new byte[length];
+        Set<String> excluded = new HashSet<>();
+        ExecutorCompletionService<PieceResult> results = new ExecutorCompletionService<>(pieceExecutor);
+
+        long startTime = System.currentTimeMillis();
+        int have = 0, outstanding = 0;
+        try {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                submitStripe(results, chunkIndex, stripe, piecePeer(chunkIndex, stripe, excluded), stripeSize, length, timeout);
+                outstanding++;
+            }
+            while (outstanding > 0 && downloading) {
+                PieceResult r = results.take().get();
+                outstanding--;
+                int offset = r.piece * stripeSize;
+                int n = Math.min(stripeSize, length - offset);
+                PeerMetrics pm = peerMetrics(r.peer);
+                if (r.data != null && r.data.length == n) {
+                    System.arraycopy(r.data, 0, chunk, offset, n);
+                    have++;
+                    pm.bytes.add(n);
+                    continue;
+                }
+                excluded.add(r.peer);
+                stripeFailures.inc();
+                if (r.busy) pm.busy.inc();
+                else pm.failures.inc();
+                peerLastAction.put(r.peer, (r.busy ? "Busy" : "Failed") + " stripe " + r.piece + " of chunk #" + chunkIndex);
+                String retry = piecePeer(chunkIndex, r.piece, excluded);
+                if (retry == null) break;
+                submitStripe(results, chunkIndex, r.piece, retry, stripeSize, length, timeout);
+                outstanding++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+
+        boolean success = have == stripes;
+        if (success) {
+            try {
+                saveChunk(chunkIndex, chunk, "stripes");
+                stripedChunks.inc();
+            } catch (IOException e) {
+                success = false;
+            }
+        }
+        updateNetworkMetrics(System.currentTimeMillis() - startTime, success);
+        return success;
+    }
+
+    private void submitStripe(ExecutorCompletionService<PieceResult> results, int chunkIndex, int stripe, String peer,
+                              int stripeSize, int length, int timeout) {
+        int offset = stripe * stripeSize;
+        int n = Math.min(stripeSize, length - offset);
+        peerLastActivity.put(peer, System.currentTimeMillis());
+        peerLastAction.put(peer, "Downloading stripe " + stripe + " of chunk #" + chunkIndex);
+        results.submit(() -> {
+            try {
+                byte[] data = transport.fetchRange(peer, chunkKey(chunkIndex), chunkIndex, offset, n, timeout, trace);
+                return new PieceResult(stripe, peer, data, false);
+            } catch (PeerBusyException e) {
+                return new PieceResult(stripe, peer, null, true);
+            } catch (IOException e) {
+                return new PieceResult(stripe, peer, null, false);
+            }
+        });
+    }
+
+    private PieceResult fetchPiece(int chunkIndex, int piece, String peer, int timeout) {
+        try {
+            long startNanos = System.nanoTime();
+            byte[] data = transport.fetchPiece(peer, chunkKey(chunkIndex), chunkIndex, fecDataPieces, fecParityPieces, piece, timeout, trace);
+            PeerRttTable table = rttTable;
+            if (data != null && table != null) table.recordThroughput(peer, data.length, System.nanoTime() - startNanos);
+            return new PieceResult(piece, peer, data, false);
+        } catch (PeerBusyException e) {
+            return new PieceResult(piece, peer, null, true);
+        } catch (IOException e) {
+            return new PieceResult(piece, peer, null, false);
+        }
+    }
+
+    private String piecePeer(int chunkIndex, int piece, Set<String> excluded) {
+        List<String> candidates = new ArrayList<>();
+        for (String p : sourcePeers) {
+            if (!excluded.contains(p)) candidates.add(p);
+        }
+        if (candidates.isEmpty()) return null;
+        return candidates.get((chunkIndex + piece) % candidates.size());
+    }
+
     private synchronized void updateNetworkMetrics(long latencyMs, boolean success) {
         if (success) {
             totalLatency.addAndGet(latencyMs);
@@ -213,6 +854,9 @@ public class StreamManager {
         successfulDownloads.set(0);
         failedDownloads.set(0);
 
+        if (minBufferChunks > oldBuffer) bufferRaised.inc();
+        else if (minBufferChunks < oldBuffer) bufferLowered.inc();
+
         if (oldBuffer != minBufferChunks) {
             System.out.println(">> Dynamic Buffer Adjusted: Latency=" + (int) avgLatency +
                     "ms, Loss=" + String.format("%.2f", lossRate) +
@@ -220,64 +864,99 @@ public class StreamManager {
         }
     }
 
-    private synchronized String getNextPeer() {
+    private PeerMetrics peerMetrics(String peer) {
+        PeerMetrics pm = peerMetrics.get(peer);
+        if (pm == null) pm = peerMetrics.computeIfAbsent(peer, p -> new PeerMetrics(config.getMetrics(), fileHash, p));
+        return pm;
+    }
+
+    private void checkStall(long now) {
+        if (stallStartNanos < 0 && now - lastProgressNanos > STALL_THRESHOLD_NANOS) {
+            stallStartNanos = lastProgressNanos;
+            stalls.inc();
+        }
+    }
+
+    private void markProgress(long now) {
+        long stallStart = stallStartNanos;
+        if (stallStart >= 0) {
+            stallTime.observeNanos(now - stallStart);
+            stallStartNanos = -1;
+        }
+        lastProgressNanos = now;
+    }
+
+    private synchronized String getNextPeer(int attempt) {
         if (sourcePeers.isEmpty()) return null;
+        PeerRttTable table = rttTable;
+        if (attempt == 0 && table != null) {
+            List<String> near = table.nearestTier(sourcePeers);
+            if (!near.isEmpty()) {
+                nearRoundRobinIndex = (nearRoundRobinIndex + 1) % near.size();
+                return near.get(nearRoundRobinIndex);
+            }
+        }
         String peer = sourcePeers.get(peerRoundRobinIndex);
         peerRoundRobinIndex = (peerRoundRobinIndex + 1) % sourcePeers.size();
         return peer;
     }
 
-    private boolean downloadSingleChunk(int chunkIndex, String targetIP) {
+    private boolean downloadSingleChunk(int chunkIndex, String targetIP) throws PeerBusyException {
         try {
             byte[] data = fetchChunk(chunkIndex, targetIP);
             if (data != null && data.length > 0) {
+                peerMetrics(targetIP).bytes.add(data.length);
                 saveChunk(chunkIndex, data, targetIP);
                 return true;
             }
+        } catch (PeerBusyException e) {
+            throw e;
         } catch (IOException ignored) {
         }
         return false;
     }
 
     private byte[] fetchChunk(int chunkIndex, String targetIP) throws IOException {
-        try (Socket socket = new Socket(targetIP, TCP_PORT)) {
-            int currentTimeout = (minBufferChunks > 5) ? 10000 : 5000;
-            socket.setSoTimeout(currentTimeout);
-
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-
-            out.writeUTF(fileHash);
-            out.writeInt(chunkIndex);
-            out.flush();
-
-            int len = in.readInt();
-            if (len <= 0) return null;
-
-            byte[] data = new byte[len];
-            in.readFully(data);
-            return data;
-        }
+        int currentTimeout = (minBufferChunks > 5) ? 10000 : 5000;
+        return transport.fetch(targetIP, chunkKey(chunkIndex), chunkIndex, currentTimeout, trace);
     }
 
-    private synchronized void saveChunk(int chunkIndex, byte[] data, String fromPeer) throws IOException {
+    synchronized void saveChunk(int chunkIndex, byte[] data, String fromPeer) throws IOException {
+        if (data.length != chunkLength(chunkIndex)) {
+            trace.failed(chunkIndex, fromPeer, "length " + data.length + " != " + chunkLength(chunkIndex));
+            throw new IOException("Chunk " + chunkIndex + " from " + fromPeer + " has the wrong length");
+        }
+        long hashStart = System.nanoTime();
         String incomingHash = sha256Hex(data);
+        ChunkManifest m = manifest;
+        if (m != null && !incomingHash.equals(m.getHash(chunkIndex))) {
+            trace.failed(chunkIndex, fromPeer, "content hash mismatch");
+            throw new IOException("Content hash mismatch for chunk " + chunkIndex + " from " + fromPeer);
+        }
+        trace.record(ChunkTrace.Stage.VERIFIED, chunkIndex, fromPeer, System.nanoTime() - hashStart);
 
         if (receivedChunks.get(chunkIndex)) {
             String old = chunkHashMap.get(chunkIndex);
             if (old != null && !old.equals(incomingHash)) {
                 System.out.println("!! CHUNK MISMATCH chunk=" + chunkIndex +
                         " from=" + fromPeer + " old=" + old + " new=" + incomingHash);
+                trace.failed(chunkIndex, fromPeer, "hash mismatch with earlier copy");
+            } else {
+                trace.failed(chunkIndex, fromPeer, "duplicate");
             }
             return;
         }
 
-        long offset = (long) chunkIndex * CHUNK_SIZE;
+        long writeStart = System.nanoTime();
+        long offset = chunkOffset(chunkIndex);
         fileAccess.seek(offset);
         fileAccess.write(data);
+        trace.record(ChunkTrace.Stage.PERSISTED, chunkIndex, fromPeer, System.nanoTime() - writeStart);
+        markProgress(System.nanoTime());
 
         receivedChunks.set(chunkIndex);
         chunkHashMap.put(chunkIndex, incomingHash);
+        if (receivedCount.incrementAndGet() == totalChunks && bufferCache != null) bufferCache.complete(fileHash);
 
         if (VERIFY_WITH_SECOND_PEER && chunkIndex < VERIFY_FIRST_N_CHUNKS && sourcePeers.size() > 1) {
             verifyChunkAgainstAnotherPeer(chunkIndex, incomingHash, fromPeer);
@@ -304,6 +983,7 @@ public class StreamManager {
                 System.out.println("!! VERIFY FAILED chunk=" + chunkIndex +
                         " from=" + fromPeer + " vs " + otherPeer +
                         " " + originalHash + " != " + otherHash);
+                trace.failed(chunkIndex, fromPeer, "verify mismatch with " + otherPeer);
             } else {
                 System.out.println(">> VERIFY OK chunk=" + chunkIndex +
                         " from=" + fromPeer + " matches " + otherPeer);
@@ -312,7 +992,7 @@ public class StreamManager {
         }
     }
 
-    private static String sha256Hex(byte[] data) {
+    static String sha256Hex(byte[] data) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             byte[] dig = md.digest(data);
@@ -326,7 +1006,27 @@ public class StreamManager {
 
     public int getProgress() {
         if (totalChunks == 0) return 0;
-        return (int) ((double) receivedChunks.cardinality() / totalChunks * 100);
+        return (int) ((double) receivedCount.get() / totalChunks * 100);
+    }
+
+    public int getReceivedChunkCount() {
+        return receivedCount.get();
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public String describeActivePeers() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : peerLastActivity.entrySet()) {
+            if (now - e.getValue() < 5000) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(e.getKey());
+            }
+        }
+        return sb.toString();
     }
 
     public Map<String, String> getActivePeerStatus() {
@@ -341,6 +1041,59 @@ public class StreamManager {
         return activeParams;
     }
 
+    public synchronized void addSourcePeer(String peerIP) {
+        if (!sourcePeers.contains(peerIP)) sourcePeers.add(peerIP);
+        notifyAll();
+    }
+
+    private synchronized void awaitSourcePeer(long timeoutMs) throws InterruptedException {
+        if (downloading && sourcePeers.isEmpty()) wait(timeoutMs);
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public void setRttTable(PeerRttTable rttTable) {
+        this.rttTable = rttTable;
+    }
+
+    public void setRateLimitKbps(long kbps) {
+        this.rateLimit = kbps > 0 ? new UploadScheduler.TokenBucket(kbps * 1024) : null;
+    }
+
+    public void setLocalSource(FileChunkServer localSource) {
+        this.localSource = localSource;
+    }
+
+    public void setChunkLayout(ChunkLayout layout) {
+        synchronized (chunkStateLock) {
+            if (downloading || layout.getFileSize() != fileSize) return;
+            this.layout = layout;
+            totalChunks = layout.size();
+            if (fromCache) {
+                receivedChunks.set(0, totalChunks);
+                receivedCount.set(totalChunks);
+            }
+        }
+        if (!layout.isFixed()) {
+            System.out.println(">> Chunk layout: " + layout.size() + " chunks, " + (layout.getLength(0) / 1024) +
+                    " KB ramping to " + (layout.getChunkSize() / 1024) + " KB");
+        }
+    }
+
+    public ChunkLayout getChunkLayout() {
+        return layout;
+    }
+
+    public ChunkManifest getManifest() {
+        return manifest;
+    }
+
+    public void setTransport(ChunkTransport transport) {
+        this.transport = transport;
+    }
+
     public boolean isPlaying() {
         return playing;
     }
@@ -353,16 +1106,26 @@ public class StreamManager {
         return outputFile;
     }
 
+    public ChunkTrace getTrace() {
+        return trace;
+    }
+
     public boolean isReadyToPlay() {
         int chunksCheck = Math.min(totalChunks, minBufferChunks);
         for (int i = 0; i < chunksCheck; i++) {
             if (!receivedChunks.get(i)) return false;
         }
+        for (int i : criticalChunks) {
+            if (!receivedChunks.get(i)) return false;
+        }
         return true;
     }
 
     public void close() throws IOException {
         downloading = false;
+        synchronized (this) {
+            notifyAll();
+        }
 
         if (downloadExecutor != null) {
             downloadExecutor.shutdownNow();
@@ -371,8 +1134,23 @@ public class StreamManager {
             } catch (InterruptedException ignored) {
             }
         }
+        if (pieceExecutor != null) pieceExecutor.shutdownNow();
 
         if (fileAccess != null) fileAccess.close();
+        if (bufferCache != null) bufferCache.release(fileHash);
+        config.getMetrics().remove("p2p_stream_buffer_target_chunks", "file", fileHash);
+        for (String peer : peerMetrics.keySet()) PeerMetrics.remove(config.getMetrics(), fileHash, peer);
+        peerMetrics.clear();
+
+        trace.dumpToJfr();
+        if (config.getTraceFolder() != null) {
+            try {
+                String prefix = config.getBindAddress() == null ? "" : config.getBindAddress() + "-";
+                trace.dump(new File(config.getTraceFolder(), prefix + fileHash + ".trace.jsonl"));
+            } catch (IOException e) {
+                System.err.println("Could not write chunk trace: " + e.getMessage());
+            }
+        }
     }
 
     public String getFileName() {
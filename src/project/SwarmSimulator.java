@@ -0,0 +1,454 @@
+package cse471;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SwarmSimulator {
+
+    private static final String FILE_NAME = "swarm.mp4";
+    private static final long POLL_MS = 20;
+    private static final int LIVE_CHUNK_SIZE = 256 * 1024;
+
+    private static class SimPeer {
+        final String ip;
+        final boolean seed;
+        final boolean replicator;
+        final int subnet;
+        final PeerDaemon daemon;
+        volatile long joinedAt;
+        volatile long streamStartedAt = -1;
+        volatile long firstFrameAt = -1;
+        volatile long completedAt = -1;
+        volatile long liveReceived;
+        volatile long liveSkipped;
+        volatile List<Long> liveLatencies = List.of();
+
+        SimPeer(String ip, boolean seed, boolean replicator, int subnet, PeerDaemon daemon) {
+            this.ip = ip;
+            this.seed = seed;
+            this.replicator = replicator;
+            this.subnet = subnet;
+            this.daemon = daemon;
+        }
+    }
+
+    private final Map<String, String> opts;
+    private final NetworkEmulator emulator = new NetworkEmulator();
+    private final List<SimPeer> peers = new ArrayList<>();
+    private File workDir;
+    private String fileHash;
+    private volatile String liveStreamId;
+
+    public SwarmSimulator(Map<String, String> opts) {
+        this.opts = opts;
+    }
+
+    public void run() throws Exception {
+        int seeds = intOpt("seeds", 1);
+        int leechers = intOpt("leechers", 50);
+        long timeoutMs = intOpt("timeoutSec", 300) * 1000L;
+        int joinSpreadMs = intOpt("joinSpreadMs", 0);
+        int subnets = Math.max(1, intOpt("subnets", 1));
+        int replicators = intOpt("replicators", 0);
+        int remoteJoinDelayMs = intOpt("remoteJoinDelayMs", 0);
+        int[] hosts = new int[subnets];
+
+        emulator.setDefaultProfile(new NetworkEmulator.LinkProfile(intOpt("latencyMs", 20), intOpt("jitterMs", 5),
+                Double.parseDouble(opts.getOrDefault("loss", "0")), intOpt("bandwidthKbps", 20000)));
+
+        workDir = Files.createTempDirectory("swarm").toFile();
+        File source = new File(workDir, FILE_NAME);
+        writeRandomFile(source, intOpt("fileMb", 16) * 1024L * 1024L);
+        if (opts.containsKey("container")) writeContainerIndex(source, opts.get("container"));
+        fileHash = FileChecksum.getFileHash(source);
+
+        List<String> seedIPs = new ArrayList<>();
+        for (int i = 0; i < seeds; i++) seedIPs.add(subnets > 1 ? address(0, hosts[0]++) : address(i));
+
+        for (int i = 0; i < seeds; i++) {
+            File root = new File(workDir, "seed" + i);
+            root.mkdirs();
+            Files.copy(source.toPath(), new File(root, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            PeerConfig config = peerConfig(seedIPs.get(i), seedIPs);
+            config.setRootFolder(root);
+            peers.add(new SimPeer(seedIPs.get(i), true, false, 0, new PeerDaemon(config)));
+        }
+        for (int i = 0; i < leechers; i++) {
+            int subnet = i % subnets;
+            String ip = subnets > 1 ? address(subnet, hosts[subnet]++) : address(seeds + i);
+            File buffer = new File(workDir, "leecher" + i);
+            buffer.mkdirs();
+            PeerConfig config = peerConfig(ip, seedIPs);
+            config.setBufferFolder(buffer);
+            config.setChunkCacheMb(0);
+            peers.add(new SimPeer(ip, false, false, subnet, new PeerDaemon(config)));
+        }
+        for (int i = 0; i < replicators * subnets; i++) {
+            int subnet = i % subnets;
+            String ip = subnets > 1 ? address(subnet, hosts[subnet]++) : address(seeds + leechers + i);
+            File buffer = new File(workDir, "replica" + i);
+            buffer.mkdirs();
+            PeerConfig config = peerConfig(ip, seedIPs);
+            config.setBufferFolder(buffer);
+            config.setReplicationQuotaMb(intOpt("replicationQuotaMb", 1024));
+            config.setReplicationRateKbps(intOpt("replicationKbps", 8192));
+            peers.add(new SimPeer(ip, false, true, subnet, new PeerDaemon(config)));
+        }
+        if (subnets > 1) {
+            NetworkEmulator.LinkProfile router = new NetworkEmulator.LinkProfile(
+                    intOpt("latencyMs", 20) + intOpt("routerLatencyMs", 20), intOpt("jitterMs", 5),
+                    Double.parseDouble(opts.getOrDefault("loss", "0")), intOpt("routerKbps", intOpt("bandwidthKbps", 20000)));
+            for (SimPeer a : peers) {
+                for (SimPeer b : peers) {
+                    if (a.subnet != b.subnet) emulator.setLink(a.ip, b.ip, router);
+                }
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        for (SimPeer p : peers) {
+            if (p.seed || p.replicator) {
+                p.daemon.start();
+                p.joinedAt = System.currentTimeMillis();
+            }
+        }
+
+        boolean live = "true".equals(opts.get("live"));
+        if (live) startLiveSource(peers.get(0));
+
+        CountDownLatch done = new CountDownLatch(leechers);
+        Random random = new Random(intOpt("randomSeed", 1));
+        for (SimPeer p : peers) {
+            if (p.seed || p.replicator) continue;
+            long delay = (joinSpreadMs > 0 ? random.nextInt(joinSpreadMs) : 0) + (p.subnet > 0 ? remoteJoinDelayMs : 0);
+            new Thread(() -> {
+                try {
+                    Thread.sleep(delay);
+                    if (live) runViewer(p, start + timeoutMs);
+                    else runLeecher(p, start + timeoutMs);
+                } catch (Exception e) {
+                    System.err.println("[Swarm] " + p.ip + " failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }, "Swarm-" + p.ip).start();
+        }
+
+        done.await(timeoutMs + 1000, TimeUnit.MILLISECONDS);
+        for (SimPeer p : peers) p.daemon.stop();
+        emulator.shutdown();
+    }
+
+    private void startLiveSource(SimPeer p) throws IOException {
+        int bytesPerSec = intOpt("liveKbps", 4000) * 1024 / 8;
+        long durationMs = intOpt("liveSec", 20) * 1000L;
+        File file = new File(workDir, "live.ts");
+        file.createNewFile();
+        liveStreamId = p.daemon.publishLive(file, "live.ts");
+        new Thread(() -> {
+            Random random = new Random(7);
+            byte[] block = new byte[bytesPerSec / 10];
+            long end = System.currentTimeMillis() + durationMs;
+            try (OutputStream out = new FileOutputStream(file)) {
+                while (System.currentTimeMillis() < end) {
+                    random.nextBytes(block);
+                    out.write(block);
+                    out.flush();
+                    Thread.sleep(100);
+                }
+            } catch (Exception e) {
+                System.err.println("[Swarm] Live writer failed: " + e);
+            }
+            p.daemon.stopLive(liveStreamId);
+        }, "Swarm-LiveWriter").start();
+    }
+
+    private void runViewer(SimPeer p, long deadline) throws Exception {
+        p.daemon.start();
+        p.joinedAt = System.currentTimeMillis();
+
+        LiveManager live = p.daemon.getNetworkManager().getLiveManager();
+        while (!live.getAnnouncements().containsKey(liveStreamId)) {
+            if (System.currentTimeMillis() > deadline) return;
+            Thread.sleep(POLL_MS);
+        }
+
+        p.streamStartedAt = System.currentTimeMillis();
+        LiveStream stream = p.daemon.watchLive(liveStreamId);
+        byte[] buffer = new byte[LIVE_CHUNK_SIZE];
+        long index = -1;
+        while (System.currentTimeMillis() < deadline) {
+            if (index < 0) {
+                if (stream.getHead() < 0) {
+                    Thread.sleep(POLL_MS);
+                    continue;
+                }
+                index = stream.getFirstRetained();
+            }
+            if (stream.isPastEnd(index)) break;
+            int n = stream.await(index, buffer, 1000);
+            if (n > 0) {
+                if (p.firstFrameAt < 0) p.firstFrameAt = System.currentTimeMillis();
+                p.liveReceived++;
+                index++;
+            } else if (n == LiveStream.SKIPPED) {
+                p.liveSkipped++;
+                index++;
+            } else if (index <= stream.getHead() - stream.getWindow()) {
+                p.liveSkipped++;
+                index++;
+            }
+        }
+        if (stream.isPastEnd(index)) p.completedAt = System.currentTimeMillis();
+        p.liveLatencies = stream.getLatencies();
+    }
+
+    public void cleanup() {
+        deleteRecursively(workDir);
+    }
+
+    private void runLeecher(SimPeer p, long deadline) throws Exception {
+        p.daemon.start();
+        p.joinedAt = System.currentTimeMillis();
+
+        while (p.daemon.getRemoteCatalog().getProviders(fileHash).isEmpty()) {
+            if (System.currentTimeMillis() > deadline) return;
+            Thread.sleep(POLL_MS);
+        }
+
+        int warmMs = intOpt("warmMs", 0);
+        if (warmMs > 0) {
+            p.daemon.warmStream(fileHash);
+            Thread.sleep(warmMs);
+        }
+
+        p.streamStartedAt = System.currentTimeMillis();
+        StreamManager sm = p.daemon.startStream(fileHash);
+        while (System.currentTimeMillis() < deadline) {
+            if (p.firstFrameAt < 0 && sm.isReadyToPlay()) p.firstFrameAt = System.currentTimeMillis();
+            if (sm.getProgress() >= 100) {
+                if (p.firstFrameAt < 0) p.firstFrameAt = System.currentTimeMillis();
+                p.completedAt = System.currentTimeMillis();
+                return;
+            }
+            Thread.sleep(POLL_MS);
+        }
+    }
+
+    public void printReport(PrintStream out) {
+        if ("true".equals(opts.get("live"))) {
+            printLiveReport(out);
+            return;
+        }
+        out.printf("%-14s %-7s %10s %10s %12s %10s%n", "peer", "role", "ttff_ms", "done_ms", "chunk_sent", "udp_sent");
+        List<Long> ttff = new ArrayList<>();
+        List<Long> completion = new ArrayList<>();
+        int finished = 0;
+        for (SimPeer p : peers) {
+            long chunk = p.daemon.getFileServer() == null ? 0 : p.daemon.getFileServer().getBytesSent();
+            long udp = p.daemon.getNetworkManager().getBytesSent();
+            if (p.replicator) {
+                ReplicationAgent agent = p.daemon.getReplicationAgent();
+                String held = agent == null ? "0" : String.valueOf(agent.getReplicas().size());
+                out.printf("%-14s %-7s %10s %10s %12d %10d%n", p.ip, "replica", "-", held, chunk, udp);
+                continue;
+            }
+            long first = p.firstFrameAt < 0 ? -1 : p.firstFrameAt - p.streamStartedAt;
+            long complete = p.completedAt < 0 ? -1 : p.completedAt - p.streamStartedAt;
+            if (!p.seed) {
+                if (first >= 0) ttff.add(first);
+                if (complete >= 0) {
+                    completion.add(complete);
+                    finished++;
+                }
+            }
+            out.printf("%-14s %-7s %10s %10s %12d %10d%n", p.ip, p.seed ? "seed" : "leecher",
+                    p.seed ? "-" : String.valueOf(first), p.seed ? "-" : String.valueOf(complete), chunk, udp);
+        }
+        out.println();
+        out.println("Chunk transport: " + opts.getOrDefault("transport", "tcp")
+                + (intOpt("fecData", 0) > 0 ? " (FEC " + intOpt("fecData", 0) + "+" + intOpt("fecParity", 2) + ")" : ""));
+        out.println("Completed: " + finished + "/" + countViewers());
+        out.println("Time to first frame (ms): " + summary(ttff));
+        out.println("Completion time (ms):     " + summary(completion));
+        if (intOpt("subnets", 1) > 1) printSubnetReport(out);
+    }
+
+    private void printSubnetReport(PrintStream out) {
+        long crossSubnet = 0;
+        long seedBytes = 0;
+        int replicas = 0;
+        for (SimPeer a : peers) {
+            for (SimPeer b : peers) {
+                if (a.subnet != b.subnet) crossSubnet += emulator.getBytesCarried(a.ip, b.ip);
+            }
+            if (a.seed && a.daemon.getFileServer() != null) seedBytes += a.daemon.getFileServer().getBytesSent();
+            ReplicationAgent agent = a.daemon.getReplicationAgent();
+            if (agent != null) replicas += agent.getReplicas().size();
+        }
+        out.println("Cross-subnet bytes: " + crossSubnet / 1024 + " KiB, seed chunk bytes: " + seedBytes / 1024
+                + " KiB, replicas made: " + replicas);
+    }
+
+    private void printLiveReport(PrintStream out) {
+        out.printf("%-14s %-7s %10s %10s %10s %10s %10s%n", "peer", "role", "first_ms", "received", "skipped", "lat_p50", "lat_p95");
+        List<Long> first = new ArrayList<>();
+        List<Long> latency = new ArrayList<>();
+        int finished = 0;
+        for (SimPeer p : peers) {
+            if (p.seed || p.replicator) {
+                out.printf("%-14s %-7s %10s %10s %10s %10s %10s%n", p.ip, p.seed ? "source" : "replica", "-", "-", "-", "-", "-");
+                continue;
+            }
+            long f = p.firstFrameAt < 0 ? -1 : p.firstFrameAt - p.streamStartedAt;
+            if (f >= 0) first.add(f);
+            if (p.completedAt >= 0) finished++;
+            List<Long> lat = new ArrayList<>(p.liveLatencies);
+            latency.addAll(lat);
+            Collections.sort(lat);
+            out.printf("%-14s %-7s %10d %10d %10d %10s %10s%n", p.ip, "viewer", f, p.liveReceived, p.liveSkipped,
+                    lat.isEmpty() ? "-" : String.valueOf(percentile(lat, 0.50)),
+                    lat.isEmpty() ? "-" : String.valueOf(percentile(lat, 0.95)));
+        }
+        out.println();
+        out.println("Live stream: " + intOpt("liveKbps", 4000) + " kbps for " + intOpt("liveSec", 20) + " s, max latency "
+                + intOpt("liveMaxLatencyMs", 5000) + " ms, " + intOpt("liveSubscribers", 4) + " subscribers per peer");
+        out.println("Reached end: " + finished + "/" + countViewers());
+        out.println("Time to first chunk (ms): " + summary(first));
+        out.println("Chunk latency (ms):       " + summary(latency));
+    }
+
+    private PeerConfig peerConfig(String ip, List<String> bootstrap) {
+        PeerConfig config = new PeerConfig();
+        config.setBindAddress(ip);
+        config.setUdpPort(intOpt("udpPort", 18888));
+        config.setTcpPort(intOpt("tcpPort", 18889));
+        config.setControlPort(0);
+        config.setUploadSlots(intOpt("uploadSlots", 4));
+        config.setChunkCacheMb(intOpt("chunkCacheMb", 64));
+        config.setChunkTransport(opts.getOrDefault("transport", "tcp"));
+        config.setChunking(opts.getOrDefault("chunking", "fixed"));
+        config.setFecDataPieces(intOpt("fecData", 0));
+        config.setFecParityPieces(intOpt("fecParity", 2));
+        config.setStripeSources(intOpt("stripes", 4));
+        config.setLiveMaxLatencyMs(intOpt("liveMaxLatencyMs", 5000));
+        config.setLiveMaxSubscribers(intOpt("liveSubscribers", 4));
+        config.setBootstrapPeers(ip.equals(bootstrap.get(0)) ? Collections.emptyList() : bootstrap);
+        config.setNetworkEmulator(emulator);
+        if (opts.containsKey("traceFolder")) config.setTraceFolder(new File(opts.get("traceFolder")));
+        return config;
+    }
+
+    private int countViewers() {
+        int n = 0;
+        for (SimPeer p : peers) if (!p.seed && !p.replicator) n++;
+        return n;
+    }
+
+    private int intOpt(String key, int def) {
+        String v = opts.get(key);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    private static String address(int index) {
+        return "127.1." + (index / 250) + "." + (index % 250 + 1);
+    }
+
+    private static String address(int subnet, int host) {
+        return "127.1." + subnet + "." + (host + 1);
+    }
+
+    private static String summary(List<Long> values) {
+        if (values.isEmpty()) return "n/a";
+        Collections.sort(values);
+        return "p50=" + percentile(values, 0.50) + " p95=" + percentile(values, 0.95) +
+                " p99=" + percentile(values, 0.99) + " max=" + values.get(values.size() - 1);
+    }
+
+    private static long percentile(List<Long> sorted, double q) {
+        int idx = (int) Math.ceil(q * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, idx)));
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        f.delete();
+    }
+
+    private static void writeRandomFile(File f, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = new FileOutputStream(f)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static void writeContainerIndex(File f, String container) throws IOException {
+        long size = f.length();
+        int indexBytes = (int) Math.max(64 * 1024, size / 100);
+        long indexStart = size - indexBytes;
+        ByteBuffer head = ByteBuffer.allocate(64);
+        ByteBuffer tail = ByteBuffer.allocate(12);
+        if ("mkv".equals(container)) {
+            head.putInt(0x1A45DFA3).put((byte) 0x8B).putShort((short) 0x4282).put((byte) 0x88)
+                    .put("matroska".getBytes(StandardCharsets.US_ASCII));
+            head.putInt(0x18538067).put((byte) 0x01).put(new byte[] {-1, -1, -1, -1, -1, -1, -1});
+            long segmentData = head.position();
+            head.putInt(0x114D9B74).put((byte) 0x95).putShort((short) 0x4DBB).put((byte) 0x92)
+                    .putShort((short) 0x53AB).put((byte) 0x84).putInt(0x1C53BB6B)
+                    .putShort((short) 0x53AC).put((byte) 0x88).putLong(indexStart - segmentData);
+            tail.putInt(0x1C53BB6B).putLong(1L << 56 | (indexBytes - 12L));
+        } else {
+            head.putInt(24).put("ftypisom".getBytes(StandardCharsets.US_ASCII)).putInt(0x200)
+                    .put("isommp41".getBytes(StandardCharsets.US_ASCII));
+            head.putInt((int) (indexStart - 24)).put("mdat".getBytes(StandardCharsets.US_ASCII));
+            tail.putInt(indexBytes).put("moov".getBytes(StandardCharsets.US_ASCII));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(head.array(), 0, head.position());
+            raf.seek(indexStart);
+            raf.write(tail.array(), 0, tail.position());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        PrintStream report = System.out;
+        if (!"false".equals(opts.get("quiet"))) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        SwarmSimulator sim = new SwarmSimulator(opts);
+        sim.run();
+        sim.printReport(report);
+        if (!"true".equals(opts.get("keepFiles"))) sim.cleanup();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,215 @@
+package cse471;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TcpChunkTransport implements ChunkTransport {
+
+    private interface RequestBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final int MAX_IDLE_PER_PEER = 4;
+    private static final long IDLE_TIMEOUT_MS = FileChunkServer.KEEP_ALIVE_MS - 5000;
+
+    private static class IdleSocket {
+        final Socket socket;
+        final long since = System.currentTimeMillis();
+
+        IdleSocket(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private final PeerConfig config;
+    private final Map<String, Deque<IdleSocket>> idle = new ConcurrentHashMap<>();
+    private final MetricsRegistry.Counter opened;
+    private final MetricsRegistry.Counter reused;
+
+    public TcpChunkTransport(PeerConfig config) {
+        this.config = config;
+        this.opened = config.getMetrics().counter("p2p_tcp_connections_opened_total", "Chunk connections opened to peers");
+        this.reused = config.getMetrics().counter("p2p_tcp_connections_reused_total", "Chunk requests sent on an idle kept-alive connection");
+    }
+
+    @Override
+    public byte[] fetch(String peer, String fileHash, int chunkIndex, int timeoutMs, ChunkTrace trace) throws IOException {
+        return request(peer, fileHash, chunkIndex, out -> out.writeInt(chunkIndex), timeoutMs, trace);
+    }
+
+    @Override
+    public byte[] fetchPiece(String peer, String fileHash, int chunkIndex, int dataPieces, int parityPieces, int piece,
+                             int timeoutMs, ChunkTrace trace) throws IOException {
+        return request(peer, fileHash, chunkIndex, out -> {
+            out.writeInt(FileChunkServer.PIECE_REQUEST);
+            out.writeInt(chunkIndex);
+            out.writeByte(dataPieces);
+            out.writeByte(parityPieces);
+            out.writeByte(piece);
+        }, timeoutMs, trace);
+    }
+
+    @Override
+    public byte[] fetchRange(String peer, String fileHash, int chunkIndex, int offset, int length, int timeoutMs,
+                             ChunkTrace trace) throws IOException {
+        return request(peer, fileHash, chunkIndex, out -> {
+            out.writeInt(FileChunkServer.RANGE_REQUEST);
+            out.writeInt(chunkIndex);
+            out.writeInt(offset);
+            out.writeInt(length);
+        }, timeoutMs, trace);
+    }
+
+    @Override
+    public boolean canWarm() {
+        return true;
+    }
+
+    @Override
+    public void warm(String peer, String fileHash, int chunkIndex, int timeoutMs) throws IOException {
+        request(peer, fileHash, chunkIndex, out -> {
+            out.writeInt(FileChunkServer.WARM_REQUEST);
+            out.writeInt(chunkIndex);
+        }, timeoutMs, new ChunkTrace(fileHash, 8));
+    }
+
+    private byte[] request(String peer, String fileHash, int chunkIndex, RequestBody body, int timeoutMs,
+                           ChunkTrace trace) throws IOException {
+        Socket socket = borrow(peer);
+        if (socket != null) {
+            try {
+                reused.inc();
+                trace.record(ChunkTrace.Stage.CONNECT, chunkIndex, peer, 0);
+                return exchange(socket, true, peer, fileHash, chunkIndex, body, timeoutMs, trace);
+            } catch (StaleConnectionException e) {
+            }
+        }
+
+        long connectStart = System.nanoTime();
+        try {
+            socket = openSocket(peer);
+            NetworkEmulator emulator = config.getNetworkEmulator();
+            if (emulator != null) emulator.roundTrip(config.getBindAddress(), peer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            socket.close();
+            throw new IOException("Interrupted", e);
+        } catch (IOException e) {
+            trace.failed(chunkIndex, peer, e.getClass().getSimpleName() + ": " + e.getMessage());
+            throw e;
+        }
+        opened.inc();
+        trace.record(ChunkTrace.Stage.CONNECT, chunkIndex, peer, System.nanoTime() - connectStart);
+        return exchange(socket, false, peer, fileHash, chunkIndex, body, timeoutMs, trace);
+    }
+
+    private byte[] exchange(Socket socket, boolean pooled, String peer, String fileHash, int chunkIndex,
+                            RequestBody body, int timeoutMs, ChunkTrace trace) throws IOException {
+        boolean replied = false;
+        try {
+            socket.setSoTimeout(timeoutMs);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            NetworkEmulator emulator = config.getNetworkEmulator();
+            if (emulator != null) {
+                try {
+                    emulator.roundTrip(config.getBindAddress(), peer);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+
+            out.writeUTF(fileHash);
+            body.write(out);
+            out.flush();
+            long requestSent = System.nanoTime();
+
+            int len = in.readInt();
+            replied = true;
+            trace.record(ChunkTrace.Stage.FIRST_BYTE, chunkIndex, peer, System.nanoTime() - requestSent);
+            if (len == FileChunkServer.REPLY_BUSY) {
+                release(peer, socket);
+                trace.failed(chunkIndex, peer, "busy");
+                throw new StreamManager.PeerBusyException(peer);
+            }
+            if (len <= 0) {
+                release(peer, socket);
+                trace.failed(chunkIndex, peer, len == 0 ? "past end of file" : "file not found");
+                return null;
+            }
+
+            byte[] data = new byte[len];
+            in.readFully(data);
+            release(peer, socket);
+            trace.record(ChunkTrace.Stage.COMPLETED, chunkIndex, peer, len);
+            return data;
+        } catch (StreamManager.PeerBusyException e) {
+            throw e;
+        } catch (IOException e) {
+            socket.close();
+            if (pooled && !replied && !(e instanceof SocketTimeoutException) && !Thread.currentThread().isInterrupted()) throw new StaleConnectionException(e);
+            trace.failed(chunkIndex, peer, e.getClass().getSimpleName() + ": " + e.getMessage());
+            throw e;
+        }
+    }
+
+    private Socket borrow(String peer) {
+        Deque<IdleSocket> sockets = idle.get(peer);
+        if (sockets == null) return null;
+        long now = System.currentTimeMillis();
+        while (true) {
+            IdleSocket s;
+            synchronized (sockets) {
+                s = sockets.pollLast();
+            }
+            if (s == null) return null;
+            if (now - s.since < IDLE_TIMEOUT_MS && !s.socket.isClosed()) return s.socket;
+            try { s.socket.close(); } catch (IOException e) {}
+        }
+    }
+
+    private void release(String peer, Socket socket) throws IOException {
+        Deque<IdleSocket> sockets = idle.computeIfAbsent(peer, p -> new ArrayDeque<>());
+        synchronized (sockets) {
+            if (sockets.size() < MAX_IDLE_PER_PEER) {
+                sockets.addLast(new IdleSocket(socket));
+                return;
+            }
+        }
+        socket.close();
+    }
+
+    public void close() {
+        for (Deque<IdleSocket> sockets : idle.values()) {
+            synchronized (sockets) {
+                for (IdleSocket s : sockets) {
+                    try { s.socket.close(); } catch (IOException e) {}
+                }
+                sockets.clear();
+            }
+        }
+    }
+
+    private Socket openSocket(String peer) throws IOException {
+        if (config.getBindAddress() == null) return new Socket(peer, config.getTcpPort());
+        return new Socket(InetAddress.getByName(peer), config.getTcpPort(), InetAddress.getByName(config.getBindAddress()), 0);
+    }
+}
@@ -0,0 +1,536 @@
+package cse471;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class UdpChunkTransport implements ChunkTransport {
+
+    static final byte TYPE_CHUNK_REQUEST = 0x0D;
+    static final byte TYPE_CHUNK_DATA = 0x0E;
+    static final byte TYPE_CHUNK_ACK = 0x0F;
+
+    static final int SEGMENT_SIZE = 1200;
+    private static final int DATA_HEADER = 20;
+    private static final int ACK_SIZE = 24;
+    private static final int SACK_BITS = 64;
+    private static final int STATUS_SEGMENT = -1;
+    private static final int WHOLE_CHUNK = -1;
+    private static final int RANGE_SPEC = -2;
+    private static final int ACK_FIN = Integer.MAX_VALUE;
+    private static final long REQUEST_RETRY_NANOS = 250_000_000L;
+    private static final long UPLOAD_IDLE_NANOS = 5_000_000_000L;
+    private static final long WAIT_MS = 20;
+    private static final int MAX_UPLOADS = 64;
+
+    public interface Link {
+        void send(String peer, byte type, byte[] payload);
+    }
+
+    public interface ChunkSource {
+        int prepareChunk(String peer, String fileHash, int chunkIndex, byte[] buffer) throws IOException;
+        int preparePiece(String peer, String fileHash, int chunkIndex, int dataPieces, int parityPieces, int piece,
+                         byte[] buffer) throws IOException;
+        int prepareRange(String peer, String fileHash, int chunkIndex, int offset, int length, byte[] buffer)
+                throws IOException;
+        int maxChunkLength(String fileHash);
+        void throttle(String peer, int bytes) throws InterruptedException;
+        void served(long requestStartNanos, boolean ok);
+    }
+
+    private static final class Download {
+        final String peer;
+        final BitSet received = new BitSet();
+        byte[] data;
+        int segments = -1;
+        int receivedCount;
+        long firstByteNanos;
+        long lastPacketNanos;
+        boolean complete;
+        boolean answered;
+        int status;
+
+        Download(String peer) {
+            this.peer = peer;
+        }
+    }
+
+    private final Link link;
+    private volatile ChunkSource source;
+    private volatile boolean running = true;
+    private final AtomicInteger nextRequestId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    private final Map<Integer, Download> downloads = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, LedbatController> controllers = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor uploadExecutor = new ThreadPoolExecutor(0, MAX_UPLOADS, 30L, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "UdpChunkUpload");
+                t.setDaemon(true);
+                return t;
+            });
+    private final MetricsRegistry.Counter segmentsSent;
+    private final MetricsRegistry.Counter retransmits;
+    private final MetricsRegistry.Counter timeouts;
+
+    public UdpChunkTransport(Link link, MetricsRegistry metrics) {
+        this.link = link;
+        this.segmentsSent = metrics.counter("p2p_udp_chunk_segments_sent_total", "Chunk data segments sent over UDP");
+        this.retransmits = metrics.counter("p2p_udp_chunk_retransmits_total", "Chunk data segments retransmitted after loss");
+        this.timeouts = metrics.counter("p2p_udp_chunk_timeouts_total", "Retransmission timeouts on UDP chunk uploads");
+        metrics.gaugeFn("p2p_udp_chunk_uploads_active", "UDP chunk uploads in progress", () -> uploads.size());
+    }
+
+    public void setChunkSource(ChunkSource source) {
+        this.source = source;
+    }
+
+    public void stop() {
+        running = false;
+        uploadExecutor.shutdown();
+        for (Upload u : uploads.values()) {
+            synchronized (u) {
+                u.notifyAll();
+            }
+        }
+    }
+
+    public long getCwndBytes(String peer) {
+        LedbatController cc = controllers.get(peer);
+        return cc == null ? 0 : cc.getCwndBytes();
+    }
+
+    @Override
+    public byte[] fetch(String peer, String fileHash, int chunkIndex, int timeoutMs, ChunkTrace trace) throws IOException {
+        return request(peer, fileHash, chunkIndex, WHOLE_CHUNK, 0, 0, timeoutMs, trace);
+    }
+
+    @Override
+    public byte[] fetchPiece(String peer, String fileHash, int chunkIndex, int dataPieces, int parityPieces, int piece,
+                             int timeoutMs, ChunkTrace trace) throws IOException {
+        return request(peer, fileHash, chunkIndex, dataPieces << 16 | parityPieces << 8 | piece, 0, 0, timeoutMs, trace);
+    }
+
+    @Override
+    public byte[] fetchRange(String peer, String fileHash, int chunkIndex, int offset, int length, int timeoutMs,
+                             ChunkTrace trace) throws IOException {
+        return request(peer, fileHash, chunkIndex, RANGE_SPEC, offset, length, timeoutMs, trace);
+    }
+
+    @Override
+    public boolean canWarm() {
+        return false;
+    }
+
+    @Override
+    public void warm(String peer, String fileHash, int chunkIndex, int timeoutMs) {
+    }
+
+    private byte[] request(String peer, String fileHash, int chunkIndex, int pieceSpec, int rangeOffset, int rangeLength,
+                           int timeoutMs, ChunkTrace trace) throws IOException {
+        int id = nextRequestId.incrementAndGet();
+        byte[] hash = fileHash.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bb = ByteBuffer.allocate(20 + hash.length).putInt(id).putInt(chunkIndex).putInt(pieceSpec);
+        if (pieceSpec == RANGE_SPEC) bb.putInt(rangeOffset).putInt(rangeLength);
+        byte[] request = Arrays.copyOf(bb.put(hash).array(), bb.position());
+        Download d = new Download(peer);
+        long requestSent = System.nanoTime();
+        downloads.put(id, d);
+        try {
+            synchronized (d) {
+                d.lastPacketNanos = requestSent;
+                long lastRequest = 0;
+                while (!d.complete && !d.answered) {
+                    long now = System.nanoTime();
+                    if (now - d.lastPacketNanos > timeoutMs * 1_000_000L) {
+                        throw new SocketTimeoutException("No chunk data for " + timeoutMs + "ms");
+                    }
+                    if (d.segments < 0 && now - lastRequest >= REQUEST_RETRY_NANOS) {
+                        link.send(peer, TYPE_CHUNK_REQUEST, request);
+                        lastRequest = now;
+                    }
+                    d.wait(WAIT_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            trace.failed(chunkIndex, peer, "interrupted");
+            throw new IOException("Interrupted", e);
+        } catch (IOException e) {
+            trace.failed(chunkIndex, peer, e.getClass().getSimpleName() + ": " + e.getMessage());
+            throw e;
+        } finally {
+            downloads.remove(id);
+        }
+
+        trace.record(ChunkTrace.Stage.FIRST_BYTE, chunkIndex, peer, d.firstByteNanos - requestSent);
+        if (d.answered) {
+            if (d.status == FileChunkServer.REPLY_BUSY) {
+                trace.failed(chunkIndex, peer, "busy");
+                throw new StreamManager.PeerBusyException(peer);
+            }
+            trace.failed(chunkIndex, peer, d.status == 0 ? "past end of file" : "file not found");
+            return null;
+        }
+        trace.record(ChunkTrace.Stage.COMPLETED, chunkIndex, peer, d.data.length);
+        return d.data;
+    }
+
+    void onPacket(String peer, byte type, byte[] buf, int offset, int length) {
+        if (!running || length - offset < 12) return;
+        ByteBuffer bb = ByteBuffer.wrap(buf, offset, length - offset);
+        switch (type) {
+            case TYPE_CHUNK_REQUEST:
+                onRequest(peer, bb);
+                break;
+            case TYPE_CHUNK_DATA:
+                onData(peer, bb);
+                break;
+            case TYPE_CHUNK_ACK:
+                onAck(peer, bb);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onRequest(String peer, ByteBuffer bb) {
+        int id = bb.getInt();
+        int chunkIndex = bb.getInt();
+        int pieceSpec = bb.getInt();
+        int rangeOffset = 0, rangeLength = 0;
+        if (pieceSpec == RANGE_SPEC) {
+            if (bb.remaining() < 8) return;
+            rangeOffset = bb.getInt();
+            rangeLength = bb.getInt();
+        }
+        byte[] hash = new byte[bb.remaining()];
+        bb.get(hash);
+        ChunkSource src = source;
+        if (src == null) {
+            sendStatus(peer, id, -1);
+            return;
+        }
+        String key = peer + "/" + id;
+        Upload u = new Upload(key, peer, id, new String(hash, StandardCharsets.UTF_8), chunkIndex, pieceSpec, src,
+                controllers.computeIfAbsent(peer, p -> new LedbatController(SEGMENT_SIZE)));
+        u.rangeOffset = rangeOffset;
+        u.rangeLength = rangeLength;
+        if (uploads.putIfAbsent(key, u) != null) return;
+        try {
+            uploadExecutor.execute(u);
+        } catch (RejectedExecutionException e) {
+            uploads.remove(key);
+            sendStatus(peer, id, FileChunkServer.REPLY_BUSY);
+        }
+    }
+
+    private void onData(String peer, ByteBuffer bb) {
+        if (bb.remaining() < DATA_HEADER) return;
+        int id = bb.getInt();
+        int seq = bb.getInt();
+        int total = bb.getInt();
+        int length = bb.getInt();
+        int sentUs = bb.getInt();
+
+        Download d = downloads.get(id);
+        if (d == null || !d.peer.equals(peer)) {
+            if (seq != STATUS_SEGMENT) sendAck(peer, id, ACK_FIN, 0, sentUs, 0);
+            return;
+        }
+
+        long now = System.nanoTime();
+        synchronized (d) {
+            d.lastPacketNanos = now;
+            if (d.firstByteNanos == 0) d.firstByteNanos = now;
+            if (seq == STATUS_SEGMENT) {
+                d.answered = true;
+                d.status = total;
+                d.notifyAll();
+                return;
+            }
+            if (d.data == null) {
+                if (length <= 0 || length > ChunkLayout.MAX_CHUNK_SIZE || total != segmentCount(length)) return;
+                d.data = new byte[length];
+                d.segments = total;
+            }
+            if (seq < 0 || seq >= d.segments) return;
+
+            int off = seq * SEGMENT_SIZE;
+            int n = Math.min(SEGMENT_SIZE, d.data.length - off);
+            if (bb.remaining() < n) return;
+            if (!d.received.get(seq)) {
+                bb.get(d.data, off, n);
+                d.received.set(seq);
+                d.receivedCount++;
+            }
+
+            int cum = d.received.nextClearBit(0);
+            long sack = 0;
+            for (int i = 0; i < SACK_BITS; i++) {
+                if (d.received.get(cum + 1 + i)) sack |= 1L << i;
+            }
+            sendAck(peer, id, cum, sack, sentUs, (micros() - sentUs) & 0xFFFFFFFFL);
+
+            if (d.receivedCount == d.segments) {
+                d.complete = true;
+                d.notifyAll();
+            }
+        }
+    }
+
+    private void onAck(String peer, ByteBuffer bb) {
+        if (bb.remaining() < ACK_SIZE) return;
+        int id = bb.getInt();
+        int cum = bb.getInt();
+        long sack = bb.getLong();
+        int echoUs = bb.getInt();
+        long delayUs = bb.getInt() & 0xFFFFFFFFL;
+        Upload u = uploads.get(peer + "/" + id);
+        if (u != null) u.onAck(cum, sack, echoUs, delayUs);
+    }
+
+    private void sendAck(String peer, int id, int cum, long sack, int echoUs, long delayUs) {
+        byte[] payload = ByteBuffer.allocate(ACK_SIZE).putInt(id).putInt(cum).putLong(sack)
+                .putInt(echoUs).putInt((int) Math.min(delayUs, 0xFFFFFFFFL)).array();
+        link.send(peer, TYPE_CHUNK_ACK, payload);
+    }
+
+    private void sendStatus(String peer, int id, int status) {
+        byte[] payload = ByteBuffer.allocate(DATA_HEADER).putInt(id).putInt(STATUS_SEGMENT).putInt(status)
+                .putInt(0).putInt(micros()).array();
+        link.send(peer, TYPE_CHUNK_DATA, payload);
+    }
+
+    private static int segmentCount(int length) {
+        return (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+    }
+
+    private static int micros() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    private final class Upload implements Runnable {
+        final String key;
+        final String peer;
+        final int id;
+        final String fileHash;
+        final int chunkIndex;
+        final int pieceSpec;
+        int rangeOffset;
+        int rangeLength;
+        final ChunkSource source;
+        final LedbatController cc;
+        final long requestStart = System.nanoTime();
+
+        final BitSet acked = new BitSet();
+        final BitSet inFlight = new BitSet();
+        final BitSet lost = new BitSet();
+        byte[] data;
+        int length;
+        int segments;
+        long[] sentAt;
+        int nextNew;
+        int cumAck;
+        long latestAckedSentAt;
+        long lastAckNanos;
+        boolean finished;
+        boolean spurious;
+        boolean probed;
+
+        Upload(String key, String peer, int id, String fileHash, int chunkIndex, int pieceSpec, ChunkSource source,
+               LedbatController cc) {
+            this.key = key;
+            this.peer = peer;
+            this.id = id;
+            this.fileHash = fileHash;
+            this.chunkIndex = chunkIndex;
+            this.pieceSpec = pieceSpec;
+            this.source = source;
+            this.cc = cc;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int bufferSize = source.maxChunkLength(fileHash);
+                if (pieceSpec == RANGE_SPEC) bufferSize = Math.max(0, Math.min(bufferSize, rangeLength));
+                else if (pieceSpec != WHOLE_CHUNK) {
+                    int dataPieces = Math.max(1, pieceSpec >>> 16 & 0xFF);
+                    bufferSize = (bufferSize + dataPieces - 1) / dataPieces;
+                }
+                byte[] buffer = new byte[bufferSize];
+                int len = pieceSpec == WHOLE_CHUNK ? source.prepareChunk(peer, fileHash, chunkIndex, buffer)
+                        : pieceSpec == RANGE_SPEC ? source.prepareRange(peer, fileHash, chunkIndex, rangeOffset, rangeLength, buffer)
+                        : source.preparePiece(peer, fileHash, chunkIndex, pieceSpec >>> 16 & 0xFF, pieceSpec >>> 8 & 0xFF,
+                        pieceSpec & 0xFF, buffer);
+                if (len <= 0) {
+                    sendStatus(peer, id, len);
+                    return;
+                }
+                synchronized (this) {
+                    data = buffer;
+                    length = len;
+                    segments = segmentCount(len);
+                    sentAt = new long[segments];
+                    lastAckNanos = System.nanoTime();
+                }
+                source.served(requestStart, sendAll());
+            } catch (IOException e) {
+                source.served(requestStart, false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    int bytes = 0;
+                    for (int s = inFlight.nextSetBit(0); s >= 0; s = inFlight.nextSetBit(s + 1)) bytes += segmentLength(s);
+                    inFlight.clear();
+                    cc.release(bytes);
+                }
+                uploads.remove(key);
+            }
+        }
+
+        private boolean sendAll() throws InterruptedException {
+            while (running) {
+                int seg;
+                long pause = 0;
+                synchronized (this) {
+                    if (cumAck >= segments) return true;
+                    if (finished) return false;
+                    long now = System.nanoTime();
+                    if (now - lastAckNanos > UPLOAD_IDLE_NANOS) return false;
+                    checkTimeout(now);
+
+                    seg = lost.nextSetBit(0);
+                    boolean retransmit = seg >= 0;
+                    if (!retransmit && nextNew < segments) seg = nextNew;
+                    if (seg < 0) {
+                        if (!probed && !inFlight.isEmpty() && now - lastAckNanos > cc.probeTimeoutNanos()) {
+                            int last = inFlight.previousSetBit(segments - 1);
+                            inFlight.clear(last);
+                            lost.set(last);
+                            cc.release(segmentLength(last));
+                            probed = true;
+                            continue;
+                        }
+                        wait(WAIT_MS);
+                        continue;
+                    }
+                    long wait = cc.acquire(segmentLength(seg), now);
+                    if (wait == LedbatController.WINDOW_FULL) {
+                        wait(WAIT_MS);
+                        continue;
+                    }
+                    if (wait > 0) {
+                        pause = wait;
+                    } else {
+                        if (retransmit) {
+                            lost.clear(seg);
+                            retransmits.inc();
+                        } else {
+                            nextNew++;
+                        }
+                        inFlight.set(seg);
+                        sentAt[seg] = now;
+                    }
+                }
+                if (pause > 0) {
+                    LockSupport.parkNanos(pause);
+                    continue;
+                }
+
+                int n = segmentLength(seg);
+                source.throttle(peer, n);
+                byte[] payload = ByteBuffer.allocate(DATA_HEADER + n).putInt(id).putInt(seg).putInt(segments)
+                        .putInt(length).putInt(micros()).put(data, seg * SEGMENT_SIZE, n).array();
+                link.send(peer, TYPE_CHUNK_DATA, payload);
+                segmentsSent.inc();
+            }
+            return false;
+        }
+
+        private void checkTimeout(long now) {
+            if (inFlight.isEmpty()) return;
+            long oldest = Long.MAX_VALUE;
+            for (int s = inFlight.nextSetBit(0); s >= 0; s = inFlight.nextSetBit(s + 1)) oldest = Math.min(oldest, sentAt[s]);
+            if (now - oldest < cc.rtoNanos()) return;
+
+            int bytes = 0;
+            for (int s = inFlight.nextSetBit(0); s >= 0; s = inFlight.nextSetBit(s + 1)) {
+                bytes += segmentLength(s);
+                lost.set(s);
+            }
+            inFlight.clear();
+            timeouts.inc();
+            cc.onTimeout(bytes, now);
+        }
+
+        synchronized void onAck(int cum, long sack, int echoUs, long delayUs) {
+            long now = System.nanoTime();
+            lastAckNanos = now;
+            if (cum == ACK_FIN) {
+                finished = true;
+                notifyAll();
+                return;
+            }
+            if (data == null) return;
+
+            int newlyAcked = 0;
+            int c = Math.min(cum, segments);
+            for (int s = cumAck; s < c; s++) newlyAcked += markAcked(s);
+            for (int i = 0; i < SACK_BITS; i++) {
+                int s = c + 1 + i;
+                if (s >= segments) break;
+                if ((sack >>> i & 1) != 0) newlyAcked += markAcked(s);
+            }
+            cumAck = Math.max(cumAck, c);
+            if (spurious) {
+                cc.onSpuriousLoss();
+                spurious = false;
+            }
+            cc.onAck(newlyAcked, delayUs, (micros() - echoUs) & 0xFFFFFFFFL, now);
+
+            if (newlyAcked > 0) probed = false;
+
+            int lostBytes = 0;
+            long deadline = latestAckedSentAt - cc.reorderWindowNanos();
+            for (int s = inFlight.nextSetBit(0); s >= 0; s = inFlight.nextSetBit(s + 1)) {
+                if (sentAt[s] >= deadline) continue;
+                inFlight.clear(s);
+                lost.set(s);
+                lostBytes += segmentLength(s);
+            }
+            if (lostBytes > 0) cc.onLoss(lostBytes, now);
+            notifyAll();
+        }
+
+        private int markAcked(int s) {
+            if (acked.get(s)) return 0;
+            acked.set(s);
+            latestAckedSentAt = Math.max(latestAckedSentAt, sentAt[s]);
+            if (lost.get(s)) {
+                lost.clear(s);
+                spurious = true;
+            }
+            if (!inFlight.get(s)) return 0;
+            inFlight.clear(s);
+            return segmentLength(s);
+        }
+
+        private int segmentLength(int s) {
+            return Math.min(SEGMENT_SIZE, length - s * SEGMENT_SIZE);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cse471;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class UploadScheduler {
+
+    private static final long RECHOKE_INTERVAL_MS = 10000;
+    private static final long OPTIMISTIC_INTERVAL_MS = 30000;
+    private static final long IDLE_TIMEOUT_MS = 5000;
+    private static final long FORGET_AFTER_MS = 60000;
+
+    private final int slots;
+    private final long perPeerRate;
+    private final TokenBucket totalBucket;
+    private final Map<String, PeerState> peers = new HashMap<>();
+    private final Random random = new Random();
+
+    private String optimisticPeer;
+    private long lastRechoke = System.currentTimeMillis();
+    private long lastOptimistic = 0;
+
+    private static class PeerState {
+        final String ip;
+        final TokenBucket bucket;
+        boolean unchoked;
+        long lastRequest;
+        long waitingSince;
+        long windowBytes;
+
+        PeerState(String ip, long rate) {
+            this.ip = ip;
+            this.bucket = new TokenBucket(rate);
+        }
+    }
+
+    static class TokenBucket {
+        private final long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            this.rate = bytesPerSecond;
+            this.tokens = bytesPerSecond;
+        }
+
+        void take(int bytes) throws InterruptedException {
+            if (rate <= 0) return;
+            while (true) {
+                long waitMs;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+                    lastRefill = now;
+                    if (tokens >= bytes || tokens >= rate) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    waitMs = (long) Math.ceil((bytes - tokens) * 1000.0 / rate);
+                }
+                Thread.sleep(Math.max(1, waitMs));
+            }
+        }
+    }
+
+    public UploadScheduler(int slots, long totalRateBytesPerSec, long perPeerRateBytesPerSec) {
+        this.slots = Math.max(1, slots);
+        this.perPeerRate = perPeerRateBytesPerSec;
+        this.totalBucket = new TokenBucket(totalRateBytesPerSec);
+    }
+
+    public static UploadScheduler fromConfig(PeerConfig config) {
+        return new UploadScheduler(config.getUploadSlots(),
+                config.getUploadRateKbps() * 1024, config.getUploadPeerRateKbps() * 1024);
+    }
+
+    public synchronized boolean tryAdmit(String peer) {
+        long now = System.currentTimeMillis();
+        maybeRechoke(now);
+
+        PeerState st = peers.computeIfAbsent(peer, k -> new PeerState(k, perPeerRate));
+        st.lastRequest = now;
+        if (st.unchoked) return true;
+
+        if (st.waitingSince == 0) st.waitingSince = now;
+        if (activeRegular(now).size() < slots) {
+            unchoke(st);
+            return true;
+        }
+        return false;
+    }
+
+    public void throttle(String peer, int bytes) throws InterruptedException {
+        PeerState st;
+        synchronized (this) {
+            st = peers.get(peer);
+            if (st != null) st.windowBytes += bytes;
+        }
+        totalBucket.take(bytes);
+        if (st != null) st.bucket.take(bytes);
+    }
+
+    public synchronized int getUnchokedCount() {
+        int n = 0;
+        for (PeerState st : peers.values()) {
+            if (st.unchoked) n++;
+        }
+        return n;
+    }
+
+    private List<PeerState> activeRegular(long now) {
+        List<PeerState> active = new ArrayList<>();
+        for (PeerState st : peers.values()) {
+            if (!st.unchoked) continue;
+            if (now - st.lastRequest > IDLE_TIMEOUT_MS) {
+                choke(st);
+                continue;
+            }
+            if (!st.ip.equals(optimisticPeer)) active.add(st);
+        }
+        return active;
+    }
+
+    private List<PeerState> waiting(long now) {
+        List<PeerState> waiting = new ArrayList<>();
+        for (PeerState st : peers.values()) {
+            if (!st.unchoked && st.waitingSince > 0 && now - st.lastRequest <= IDLE_TIMEOUT_MS) waiting.add(st);
+        }
+        waiting.sort(Comparator.comparingLong(st -> st.waitingSince));
+        return waiting;
+    }
+
+    private void maybeRechoke(long now) {
+        if (now - lastRechoke >= RECHOKE_INTERVAL_MS) {
+            List<PeerState> regular = activeRegular(now);
+            List<PeerState> waiting = waiting(now);
+            regular.sort(Comparator.comparingLong((PeerState st) -> st.windowBytes).reversed());
+
+            int swaps = regular.size() < slots ? 0 : Math.min(Math.min(waiting.size(), (slots + 1) / 2), regular.size());
+            for (int i = 0; i < swaps; i++) {
+                choke(regular.remove(0));
+                unchoke(waiting.get(i));
+            }
+
+            Iterator<PeerState> it = peers.values().iterator();
+            while (it.hasNext()) {
+                PeerState st = it.next();
+                st.windowBytes = 0;
+                if (!st.unchoked && now - st.lastRequest > FORGET_AFTER_MS) it.remove();
+            }
+            lastRechoke = now;
+        }
+
+        if (now - lastOptimistic >= OPTIMISTIC_INTERVAL_MS) {
+            PeerState previous = optimisticPeer == null ? null : peers.get(optimisticPeer);
+            optimisticPeer = null;
+            if (previous != null && previous.unchoked && activeRegular(now).size() > slots) choke(previous);
+
+            List<PeerState> waiting = waiting(now);
+            if (!waiting.isEmpty()) {
+                PeerState lucky = waiting.get(random.nextInt(waiting.size()));
+                unchoke(lucky);
+                optimisticPeer = lucky.ip;
+            }
+            lastOptimistic = now;
+        }
+    }
+
+    private void unchoke(PeerState st) {
+        st.unchoked = true;
+        st.waitingSince = 0;
+    }
+
+    private void choke(PeerState st) {
+        st.unchoked = false;
+        st.waitingSince = 0;
+    }
+}